@@ -0,0 +1,106 @@
+package cz.siret.prank.fforest;
+
+import cz.siret.prank.fforest2.FasterForest2;
+import cz.siret.prank.ffutils.ATimer;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instances;
+
+import java.util.Locale;
+
+/**
+ * Compares per-instance distributionForInstance() with batch distributionsForInstances()
+ * of FasterForest and FasterForest2.
+ *
+ * Command-line parameters: arff file, number of trees (default 100), comma separated list
+ * of numbers of threads for the batch path (default "1,0", 0 = autodetect), number of measured
+ * repetitions (default 10).
+ */
+public class BatchPredictionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        Instances data = FastRfUtils.readInstances(args[0]);
+        int numTrees = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        String[] threadNums = (args.length > 2 ? args[2] : "1,0").split(",");
+        int reps = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        FasterForest ff = new FasterForest();
+        ff.setNumTrees(numTrees);
+        ff.setCalcOutOfBag(false);
+        ff.setComputeImportances(false);
+        ff.buildClassifier(data);
+
+        FasterForest2 ff2 = new FasterForest2();
+        ff2.setNumTrees(numTrees);
+        ff2.setCalcOutOfBag(false);
+        ff2.setComputeImportances(false);
+        ff2.buildClassifier(data);
+
+        System.out.printf("%d instances, %d trees%n", data.numInstances(), numTrees);
+        System.out.println("classifier\tthreads\tper-instance ms\tbatch ms\tmax. difference");
+
+        for (AbstractClassifier classifier : new AbstractClassifier[] {ff, ff2}) {
+            for (String threads : threadNums) {
+                if (classifier instanceof FasterForest) {
+                    ((FasterForest) classifier).setNumThreads(Integer.parseInt(threads));
+                } else {
+                    ((FasterForest2) classifier).setNumThreads(Integer.parseInt(threads));
+                }
+
+                measurePerInstance(classifier, data, reps);  // warm-up
+                measureBatch(classifier, data, reps);
+
+                System.out.printf(Locale.US, "%s\t%s\t%d\t%d\t%.2e%n", classifier.getClass().getSimpleName(), threads,
+                        measurePerInstance(classifier, data, reps), measureBatch(classifier, data, reps),
+                        maxDifference(classifier, data));
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds spent calling distributionForInstance() on all instances reps times
+     */
+    private static long measurePerInstance(AbstractClassifier classifier, Instances data, int reps) throws Exception {
+        double sink = 0;
+        ATimer timer = ATimer.startTimer();
+        for (int r = 0; r != reps; ++r) {
+            for (int i = 0; i != data.numInstances(); ++i) {
+                sink += classifier.distributionForInstance(data.instance(i))[0];
+            }
+        }
+        long time = timer.getTime();
+        if (sink == Double.MIN_VALUE) {
+            System.out.println(sink); // keep the result alive
+        }
+        return time;
+    }
+
+    /**
+     * @return milliseconds spent calling distributionsForInstances() on all instances reps times
+     */
+    private static long measureBatch(AbstractClassifier classifier, Instances data, int reps) throws Exception {
+        double sink = 0;
+        ATimer timer = ATimer.startTimer();
+        for (int r = 0; r != reps; ++r) {
+            sink += classifier.distributionsForInstances(data)[0][0];
+        }
+        long time = timer.getTime();
+        if (sink == Double.MIN_VALUE) {
+            System.out.println(sink); // keep the result alive
+        }
+        return time;
+    }
+
+    private static double maxDifference(AbstractClassifier classifier, Instances data) throws Exception {
+        double[][] batch = classifier.distributionsForInstances(data);
+        double max = 0;
+        for (int i = 0; i != data.numInstances(); ++i) {
+            double[] single = classifier.distributionForInstance(data.instance(i));
+            for (int j = 0; j != single.length; ++j) {
+                max = Math.max(max, Math.abs(single[j] - batch[i][j]));
+            }
+        }
+        return max;
+    }
+
+}
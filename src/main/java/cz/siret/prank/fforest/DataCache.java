@@ -24,6 +24,7 @@ package cz.siret.prank.fforest;
 import weka.core.Instances;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Random;
 import java.util.concurrent.ForkJoinPool;
 
@@ -39,7 +40,10 @@ import java.util.concurrent.ForkJoinPool;
  */
 public class DataCache {
 
-  /** The dataset, first indexed by attribute, then by instance. */
+  /**
+   * The dataset, first indexed by attribute, then by instance. Null in a binned
+   * DataCache, see binCodesByte.
+   */
   protected final float[][] vals;
 
   /**
@@ -65,6 +69,13 @@ public class DataCache {
 
   /** Ordering of instances, indexed by attribute, then by instance. */ 
   protected int[][] sortedIndices;
+
+  /**
+   * Bootstrap samples only: buffers for sorted in-bag instances, indexed by
+   * attribute, then by instance (only the first numInBag are used). Kept when
+   * the DataCache is reused by resample(), see createInBagSortedIndices().
+   */
+  protected int[][] inBagSortedIndices = null;
   
   /** Weights of instances. */
   protected double[] instWeights;
@@ -76,6 +87,25 @@ public class DataCache {
 
   /** Used in training of FastRandomTrees. */
   protected int[] whatGoesWhere = null;
+
+  /** Temporary arrays of tree training, kept if the data is re-used (see FasterTreeTrainable.buildRootTree()). */
+  protected TrainingArena arena = null;
+
+  /**
+   * Binned DataCache (for histogram-based training) stores attribute values only
+   * as bin codes, indexed by attribute, then by instance. Codes are in binCodesByte
+   * if there are at most 256 bins, otherwise in binCodesShort. Both are null if the
+   * DataCache is not binned.
+   */
+  protected byte[][] binCodesByte = null;
+  protected short[][] binCodesShort = null;
+
+  /**
+   * Cut points between bins, indexed by attribute, then by bin; binCuts[a][b]
+   * lies between the values in bin b and bin b+1. Trees trained on binned data
+   * split only at these points.
+   */
+  protected double[][] binCuts = null;
   
   /**
    * Used in training of FastRandomTrees. Each tree can store its own
@@ -84,6 +114,53 @@ public class DataCache {
   protected Random reusableRandomGenerator = null;
 
 
+  /**
+   * Randomizes one attribute (in vals[][] or bin codes); returns a copy of
+   * the attribute column before randomization, for restoreAttribute().
+   * Training does not use it (importances read randomized values through
+   * PermutationImportances.errors()); it randomizes the data for
+   * PermutationImportances.error(int, ForkJoinPool) and full out-of-bag passes
+   * that the permutation path is checked against.
+   */
+  public Object scrambleAttribute( int attIndex, Random random ) {
+    if (!isBinned()) {
+      return scrambleOneAttribute(attIndex, random);
+    }
+
+    Object toReturn;
+    if (binCodesByte != null) {
+      byte[] codes = binCodesByte[attIndex];
+      toReturn = codes.clone();
+      for ( int i=0; i < codes.length; i++ ) {
+        int swapWith = random.nextInt(codes.length);
+        byte temp = codes[i];
+        codes[i] = codes[swapWith];
+        codes[swapWith] = temp;
+      }
+    } else {
+      short[] codes = binCodesShort[attIndex];
+      toReturn = codes.clone();
+      for ( int i=0; i < codes.length; i++ ) {
+        int swapWith = random.nextInt(codes.length);
+        short temp = codes[i];
+        codes[i] = codes[swapWith];
+        codes[swapWith] = temp;
+      }
+    }
+    return toReturn;
+  }
+
+  /** Restores an attribute column randomized by scrambleAttribute(). */
+  public void restoreAttribute( int attIndex, Object unscrambled ) {
+    if (!isBinned()) {
+      vals[attIndex] = (float[]) unscrambled;
+    } else if (binCodesByte != null) {
+      binCodesByte[attIndex] = (byte[]) unscrambled;
+    } else {
+      binCodesShort[attIndex] = (short[]) unscrambled;
+    }
+  }
+
   /** Randomizes one attribute in the vals[][]; returns a copy of the vals[] 
    * before randomization. */
   public float[] scrambleOneAttribute( int attIndex, Random random ) {
@@ -103,6 +180,20 @@ public class DataCache {
    * @param origData
    */
   public DataCache(Instances origData, int parallelism) throws Exception {
+    this(origData, 0, parallelism);
+  }
+
+  /**
+   * Creates a DataCache by copying data from a weka.core.Instances object.
+   * If maxBins > 0, creates a binned DataCache for histogram-based training:
+   * values of every attribute are split into at most maxBins bins and stored
+   * only as byte (or short, for more than 256 bins) bin codes; vals and
+   * sortedIndices are not kept (see computeBins()).
+   *
+   * @param origData
+   * @param maxBins max. number of bins per attribute (2 .. 65536), 0 = not binned
+   */
+  public DataCache(Instances origData, int maxBins, int parallelism) throws Exception {
 
     classIndex = origData.classIndex();
     numAttributes = origData.numAttributes();
@@ -120,13 +211,10 @@ public class DataCache {
     }
 
     /* Array is indexed by attribute first, to speed access in RF splitting. */
-    vals = new float[numAttributes][numInstances];       // TODO reuse
-    for (int a = 0; a < numAttributes; a++) {
-      for (int i = 0; i < numInstances; i++) {
-        if (origData.instance(i).isMissing(a))
-          vals[a][i] = Float.MAX_VALUE;  // to make sure missing values go to the end
-        else
-          vals[a][i] = (float) origData.instance(i).value(a);  // deep copy
+    vals = (maxBins == 0) ? new float[numAttributes][] : null;       // TODO reuse
+    if (vals != null) {
+      for (int a = 0; a < numAttributes; a++) {
+        vals[a] = copyColumn(origData, a, new float[numInstances]);
       }
     }
 
@@ -137,12 +225,19 @@ public class DataCache {
       instClassValues[i] = (int) origData.instance(i).classValue();
     }
 
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+    if (maxBins > 0) {
+      sortedIndices = null;
+      createBins(origData, maxBins, parallelism, pool);
+      pool.shutdown();
+      return;
+    }
+
     /* compute the sortedInstances for the whole dataset */
     
     sortedIndices = new int[numAttributes][];
 
-    ForkJoinPool pool = new ForkJoinPool(parallelism);
-
     for (int a = 0; a < numAttributes; a++) { // ================= attr by attr
 
       if (a == classIndex) 
@@ -189,7 +284,10 @@ public class DataCache {
 
     instWeights = origData.instWeights;     // shallow copied
 
-    // TODO recycle
+    binCodesByte = origData.binCodesByte;   // shallow copied
+    binCodesShort = origData.binCodesShort; // shallow copied
+    binCuts = origData.binCuts;             // shallow copied
+
     inBag = new boolean[numInstances];      // gets its own inBag array
     numInBag = 0;
     
@@ -214,11 +312,35 @@ public class DataCache {
    * constructor to see what's deep / shallow copied
    */
   public DataCache resample(int bagSize, Random random) {
+    return resample(bagSize, random, null);
+  }
 
-    DataCache result = new DataCache(this); // makes shallow copy of vals matrix
-
-    // TODO recycle
-    double[] newWeights = new double[ numInstances ]; // all 0.0 by default
+  /**
+   * Same as resample(bagSize, random), but can fill a bootstrap sample created
+   * earlier by this method instead of creating a new one. Its inBag, instWeights,
+   * whatGoesWhere and sorted index buffers are then overwritten and re-used, so
+   * a thread training many trees one after another allocates them only once.
+   *
+   * The reused sample must not be in use anymore (by a tree being trained or by
+   * anybody keeping a reference to its inBag).
+   *
+   * @param reuse a DataCache returned by resample() of this DataCache, or null
+   * @return reuse (or a new DataCache if reuse is null)
+   */
+  public DataCache resample(int bagSize, Random random, DataCache reuse) {
+
+    DataCache result;
+    if (reuse == null) {
+      result = new DataCache(this); // makes shallow copy of vals matrix
+      result.instWeights = new double[ numInstances ]; // all 0.0 by default
+    } else {
+      result = reuse;
+      Arrays.fill(result.inBag, false);
+      Arrays.fill(result.instWeights, 0.0);
+      result.numInBag = 0;
+      result.sortedIndices = sortedIndices;  // in-bag ones get created from these again
+    }
+    double[] newWeights = result.instWeights;
     
     for ( int r = 0; r < bagSize; r++ ) {
       int inst = random.nextInt( numInstances );
@@ -232,7 +354,6 @@ public class DataCache {
       
     }
 
-    result.instWeights = newWeights;
     result.reusableRandomGenerator = result.getRandomNumberGenerator(random.nextInt());
 
     // we also need to fill sortedIndices by peeking into the inBag array, but
@@ -245,11 +366,17 @@ public class DataCache {
 
   
 
-  /** Invoked only when tree is trained. */
+  /**
+   * Invoked only when tree is trained. Sorted indices of in-bag instances are
+   * written to the inBagSortedIndices buffers; those are allocated for all
+   * instances only once, so that they fit any bootstrap sample of this size.
+   * Only the first numInBag indices of each attribute are valid then.
+   */
   protected void createInBagSortedIndices() {
 
-    // TODO recycle
-    int[][] newSortedIndices = new int[ numAttributes ][ ];
+    if (inBagSortedIndices == null)
+      inBagSortedIndices = new int[ numAttributes ][ ];
+    int[][] newSortedIndices = inBagSortedIndices;
     
     for (int a = 0; a < numAttributes; a++) {
       
@@ -257,7 +384,8 @@ public class DataCache {
         continue;      
       
 
-      newSortedIndices[a] = new int[this.numInBag];
+      if (newSortedIndices[a] == null)
+        newSortedIndices[a] = new int[numInstances];
       int[] newSortedIndicesA = newSortedIndices[a];
       int[] sortedIndicesA = sortedIndices[a];
       
@@ -279,6 +407,169 @@ public class DataCache {
 
 
   
+  /**
+   * Copies values of one attribute; missing values are coded as Float.MAX_VALUE
+   * to make sure they go to the end when sorted.
+   */
+  private static float[] copyColumn(Instances origData, int a, float[] column) {
+    for (int i = 0; i < column.length; i++) {
+      if (origData.instance(i).isMissing(a))
+        column[i] = Float.MAX_VALUE;
+      else
+        column[i] = (float) origData.instance(i).value(a);  // deep copy
+    }
+    return column;
+  }
+
+  /**
+   * Fills binCuts and bin codes of a binned DataCache. Attributes are sorted one
+   * at a time, so only one float column and its sorted indices exist
+   * temporarily.
+   */
+  private void createBins(Instances origData, int maxBins, int parallelism, ForkJoinPool pool) {
+
+    binCuts = new double[numAttributes][];
+    if (maxBins <= 256) {
+      binCodesByte = new byte[numAttributes][];
+    } else {
+      binCodesShort = new short[numAttributes][];
+    }
+
+    float[] column = new float[numInstances];
+    int[] codes = new int[numInstances];
+
+    for (int a = 0; a < numAttributes; a++) {
+
+      if (a == classIndex)
+        continue;
+
+      copyColumn(origData, a, column);
+      int[] sortedIndicesA = FastRfUtils.sortIndicesParallel(column, parallelism, pool);
+      binCuts[a] = computeBins(column, sortedIndicesA, maxBins, codes);
+
+      if (binCodesByte != null) {
+        byte[] res = new byte[numInstances];
+        for (int i = 0; i < numInstances; i++)
+          res[i] = (byte) codes[i];
+        binCodesByte[a] = res;
+      } else {
+        short[] res = new short[numInstances];
+        for (int i = 0; i < numInstances; i++)
+          res[i] = (short) codes[i];
+        binCodesShort[a] = res;
+      }
+    }
+
+  }
+
+  /**
+   * Splits values of an attribute into at most maxBins bins with roughly the
+   * same number of instances. Instances with the same value always end up in
+   * the same bin, so attributes with at most maxBins distinct values get one bin
+   * per value. Missing values (coded as Float.MAX_VALUE) end up in the last bin.
+   *
+   * @param values values of the attribute
+   * @param sortedIndicesA indices of instances sorted by value
+   * @param maxBins max. number of bins
+   * @param codes gets filled with bin of each instance
+   * @return cut points between bins
+   */
+  static double[] computeBins(float[] values, int[] sortedIndicesA, int maxBins, int[] codes) {
+
+    int n = sortedIndicesA.length;
+    double[] cuts = new double[maxBins - 1];
+
+    int numDistinct = n > 0 ? 1 : 0;
+    for (int i = 1; i < n; i++) {
+      if (values[sortedIndicesA[i]] > values[sortedIndicesA[i-1]])
+        numDistinct++;
+    }
+    // minimal number of instances in a bin (except the last one)
+    double binSize = (numDistinct <= maxBins) ? 0 : (double) n / maxBins;
+
+    int bin = 0;
+    int binStart = 0;
+    for (int i = 0; i < n; i++) {
+      int inst = sortedIndicesA[i];
+      if ( i > 0 && bin < maxBins - 1 && i - binStart >= binSize
+              && values[inst] > values[sortedIndicesA[i-1]] ) {
+        cuts[bin] = ( (double) values[inst] + values[sortedIndicesA[i-1]] ) / 2.0;
+        bin++;
+        binStart = i;
+      }
+      codes[inst] = bin;
+    }
+
+    return Arrays.copyOf(cuts, bin);  // bin + 1 bins
+  }
+
+  /** Is this a binned DataCache (see binCodesByte)? */
+  public final boolean isBinned() {
+    return binCuts != null;
+  }
+
+  /** Number of bins of an attribute in a binned DataCache. */
+  public final int numBins( int attIndex ) {
+    return binCuts[attIndex].length + 1;
+  }
+
+  /** Bin code of an instance in a binned DataCache. */
+  public final int binCode( int attIndex, int instIndex ) {
+    return (binCodesByte != null) ? binCodesByte[attIndex][instIndex] & 0xFF : binCodesShort[attIndex][instIndex] & 0xFFFF;
+  }
+
+  /**
+   * Is the value of an instance in a binned DataCache below the split point?
+   * Exact if the split point is one of binCuts of the attribute (as in trees
+   * trained on the binned data).
+   */
+  public final boolean isBinnedValueBelow( int attIndex, int instIndex, double splitPoint ) {
+    int code = binCode(attIndex, instIndex);
+    return code == 0 || binCuts[attIndex][code - 1] < splitPoint;
+  }
+
+  /**
+   * Indices of in-bag instances. Invoked instead of createInBagSortedIndices()
+   * when the tree is trained in histogram mode.
+   */
+  protected int[] createInBagIndices() {
+    return createInBagIndices(new int[numInBag]);
+  }
+
+  /**
+   * Same as createInBagIndices(), but fills the given array.
+   *
+   * @param res array of at least numInBag elements, only the first numInBag get overwritten
+   */
+  protected int[] createInBagIndices(int[] res) {
+
+    int k = 0;
+    for (int i = 0; i < numInstances; i++) {
+      if (inBag[i])
+        res[k++] = i;
+    }
+    return res;
+
+  }
+
+
+  /**
+   * Copy of inBag that can be kept after this bootstrap sample is re-used
+   * (for OOB error and feature importances), one bit per instance instead of
+   * one byte.
+   */
+  public BitSet inBagAsBitSet() {
+
+    BitSet res = new BitSet(numInstances);
+    for (int i = 0; i < numInstances; i++) {
+      if (inBag[i])
+        res.set(i);
+    }
+    return res;
+
+  }
+
+
   /** Does the given attribute - instance combination contain a missing value? */
   public final boolean isValueMissing( int attIndex, int instIndex ) {
     return this.vals[attIndex][instIndex] == Float.MAX_VALUE;
@@ -305,7 +596,15 @@ public class DataCache {
     Random r = new Random(seed);
 
     //    long dataSignature = Arrays.toString( sortedIndices[ r.nextInt( numAttributes ) ] ).hashCode();
-    long dataSignature = Arrays.hashCode( sortedIndices[ r.nextInt( numAttributes ) ] );
+    int a = r.nextInt( numAttributes );
+    long dataSignature;
+    if (!isBinned()) {
+      dataSignature = Arrays.hashCode( sortedIndices[ a ] );
+    } else if (binCodesByte != null) {
+      dataSignature = Arrays.hashCode( binCodesByte[ a ] );
+    } else {
+      dataSignature = Arrays.hashCode( binCodesShort[ a ] );
+    }
     r.setSeed( dataSignature + seed );
 
     return r;
@@ -28,10 +28,14 @@ import weka.classifiers.RandomizableIteratedSingleClassifierEnhancer;
 import weka.core.*;
 
 import java.util.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -53,7 +57,7 @@ import java.util.concurrent.Future;
  * it will be set automatically to the available number of cores.
  * <p/>
  * <li>Estimating the out-of-bag (OOB) error is also multithreaded, using
- * the VotesCollector class
+ * the OutOfBagVotes class (blocks of instances, each run through all trees)
  * <p/>
  * <li>OOB estimation in Weka's Bagging is one tree - one vote. In FastRF 0.97
  * onwards, some trees will have a heavier weight in the overall vote
@@ -110,15 +114,8 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       FasterTreeTrainable curTree = new FasterTreeTrainable();
       // all parameters for training will be looked up in the motherForest (maxDepth, k_Value)
       curTree.m_MotherForest = motherForest;
-      // 0.99: reference to these arrays will get passed down all nodes so the array can be re-used 
-      // 0.99: this array is of size two as now all splits are binary - even categorical ones
-      curTree.tempProps = new double[2]; 
-      curTree.tempDists = new double[2][]; 
-      curTree.tempDists[0] = new double[data.numClasses()];
-      curTree.tempDists[1] = new double[data.numClasses()];
-      curTree.tempDistsOther = new double[2][]; 
-      curTree.tempDistsOther[0] = new double[data.numClasses()];
-      curTree.tempDistsOther[1] = new double[data.numClasses()];
+      // temporary arrays passed down all nodes are taken from the arena of the
+      // bootstrap sample in buildRootTree(), shared by the trees of one thread
       m_Classifiers[i] = curTree;
     }
 
@@ -133,17 +130,30 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
 
     // sorting is performed inside this constructor
-    DataCache myData = new DataCache(data, threads);
+    // in histogram mode only bin codes are stored, no values nor sorted indices
+    DataCache myData = new DataCache(data, motherForest.m_HistogramBins, threads);
 
     int bagSize = data.numInstances() * m_BagSizePercent / 100;
     Random random = new Random(m_Seed);
 
-    boolean[][] inBag = new boolean[m_Classifiers.length][];
+    BitSet[] inBag = new BitSet[m_Classifiers.length];
+
+    // incremental mode: OOB votes are added by the threads right after each tree is trained,
+    // in-bag sets are kept only if needed for feature importances
+    final OutOfBagVotes oobVotes = (getCalcOutOfBag() || getComputeImportances()) && getIncrementalOutOfBag()
+      ? new OutOfBagVotes(myData.numInstances, myData.numClasses) : null;
+    final boolean keepInBag = getComputeImportances() || (getCalcOutOfBag() && oobVotes == null);
 
     // thread management
-    ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+    // ForkJoinPool, so that large nodes of trees can be processed by parallel tasks in the same pool
+    ForkJoinPool threadPool = new ForkJoinPool(threads);
     List<Future<FasterTree>> futures =  new ArrayList<>(m_Classifiers.length);
 
+    // bootstrap samples no longer used by any tree; re-used for the next trees so
+    // their buffers (and training arenas) get allocated only once per thread
+    // (see DataCache.resample() and FasterTreeTrainable.buildRootTree())
+    Queue<DataCache> bagDataPool = new ConcurrentLinkedQueue<>();
+
     try {
       final int[] seeds = new int[m_Classifiers.length];
       for (int i = 0; i < m_Classifiers.length; i++) {
@@ -158,16 +168,22 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
           // for computing the out-of-bag error later
 
           Random rand = new Random(seeds[treeIdx]);
-          DataCache bagData = myData.resample(bagSize, rand);
+          DataCache bagData = myData.resample(bagSize, rand, bagDataPool.poll());
 
-          if (getCalcOutOfBag() || getComputeImportances()) {
-            inBag[treeIdx] = bagData.inBag; // large array, store only if we need it
+          if (keepInBag) {
+            inBag[treeIdx] = bagData.inBagAsBitSet(); // large, store only if we need it
           }
 
           FasterTreeTrainable aTree = (FasterTreeTrainable) m_Classifiers[treeIdx];
           aTree.buildRootTree(bagData);
+          FasterTree slimTree = aTree.toSlimVersion();
+
+          if (oobVotes != null) {
+            oobVotes.addTreeConcurrently(slimTree, bagData.inBag, myData, treeIdx);
+          }
+          bagDataPool.add(bagData);
 
-          return aTree.toSlimVersion();
+          return slimTree;
         });
 
         futures.add(future);
@@ -178,9 +194,12 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++) {
         m_Classifiers[treeIdx] = futures.get(treeIdx).get();
       }
+      bagDataPool.clear(); // allow GC
 
       // calc OOB error?
-      if (getCalcOutOfBag() || getComputeImportances()) {
+      if (oobVotes != null) {
+        m_OutOfBagError = oobVotes.error(myData);
+      } else if (getCalcOutOfBag() || getComputeImportances()) {
         m_OutOfBagError = computeOOBError( myData, inBag, threadPool);
       } else {
         m_OutOfBagError = 0;
@@ -194,16 +213,26 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
         ///m_FeatureNames = new String[data.numAttributes()];
         //Instances dataCopy = new Instances(data); //To scramble
         //int[] permutation = FastRfUtils.randomPermutation(data.numInstances(), random);
-        for (int j = 0; j < data.numAttributes(); j++) {
+
+        // leaves of OOB instances are cached once, then only trees splitting on the
+        // scrambled attribute are evaluated again
+        PermutationImportances importances = new PermutationImportances(m_Classifiers.length, myData);
+        importances.setTrees(getClassifiersAsTrees().toArray(new FasterTree[0]), inBag, threadPool);
+        Arrays.fill(inBag, null); // allow GC
+
+        // attributes are scrambled through permutations, more of them at once (myData is not changed)
+        int[] attributes = new int[data.numAttributes() - 1];
+        for (int j = 0, k = 0; j < data.numAttributes(); j++) {
           if (j != data.classIndex()) {
-            //double sError = computeOOBError(FastRfUtils.scramble(data, dataCopy, j, permutation), inBag, threadPool);
-            //double sError = computeOOBError(data, inBag, threadPool, j, 0);
-            float[] unscrambled = myData.scrambleOneAttribute(j, random);
-            double sError = computeOOBError(myData, inBag, threadPool);
-            myData.vals[j] = unscrambled; // restore the original state
-            m_FeatureImportances[j] = sError - m_OutOfBagError;
+            attributes[k++] = j;
           }
-          //m_FeatureNames[j] = data.attribute(j).name();
+        }
+        double[] sErrors = importances.errors(attributes, random, threadPool);
+        // votes summed in the order of trees as in sErrors (incremental m_OutOfBagError sums
+        // them in the order trees finish, which can break near-ties differently)
+        double baseError = importances.error();
+        for (int k = 0; k < attributes.length; k++) {
+          m_FeatureImportances[attributes[k]] = sErrors[k] - baseError;
         }
       }
 
@@ -231,13 +260,13 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
    * Compute the out-of-bag error for a set of instances.
    *
    * @param data       the instances
-   * @param inBag      numTrees x numInstances indicating out-of-bag instances
+   * @param inBag      in-bag instances of each tree, the rest is out-of-bag
    * @param threadPool the pool of threads
    *
    * @return the oob error
    */
   private double computeOOBError(Instances data,
-                                 boolean[][] inBag,
+                                 BitSet[] inBag,
                                  ExecutorService threadPool) throws InterruptedException, ExecutionException {
 
     boolean numeric = data.classAttribute().isNumeric();
@@ -279,39 +308,18 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
    * checked in the function!).
    *
    * @param data       the instances (as a DataCache)
-   * @param inBag      numTrees x numInstances indicating out-of-bag instances
+   * @param inBag      in-bag instances of each tree, the rest is out-of-bag
    * @param threadPool the pool of threads
    *
    * @return the oob error
    */
-  private double computeOOBError( DataCache data,
-                                 boolean[][] inBag,
-                                 ExecutorService threadPool ) throws InterruptedException, ExecutionException {
-
-
-    List<Future<Double>> votes =
-      new ArrayList<Future<Double>>(data.numInstances);
-    for (int i = 0; i < data.numInstances; i++) {
-      VotesCollectorDataCache aCollector = new VotesCollectorDataCache(m_Classifiers, i, data, inBag);
-      votes.add(threadPool.submit(aCollector));
-    }
-
-    double outOfBagCount = 0.0;
-    double errorSum = 0.0;
-
-    for (int i = 0; i < data.numInstances; i++) {
-
-      double vote = votes.get(i).get();
-      // error for instance
-      outOfBagCount += data.instWeights[i];
-      if ( (int) vote != data.instClassValues[i] ) {
-        errorSum += data.instWeights[i];
-      }
-
-    }
-
-    return errorSum / outOfBagCount;
+  private double computeOOBError(DataCache data,
+                                 BitSet[] inBag,
+                                 ForkJoinPool threadPool) throws InterruptedException, ExecutionException {
 
+    OutOfBagVotes votes = new OutOfBagVotes(data.numInstances, data.numClasses);
+    votes.addTrees(m_Classifiers, inBag, data, threadPool);
+    return votes.error(data);
   }
 
 
@@ -382,6 +390,11 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
    */
   protected boolean m_CalcOutOfBag = true;
 
+  /**
+   * Whether to collect out-of-bag votes right after each tree is trained
+   */
+  protected boolean m_IncrementalOutOfBag = false;
+
   /**
    * The out of bag error that has been calculated
    */
@@ -588,6 +601,40 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     return m_CalcOutOfBag;
   }
 
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String incrementalOutOfBagTipText() {
+    return "Whether the out-of-bag votes are collected right after each tree is trained.";
+  }
+
+  /**
+   * Set whether the out-of-bag votes of each tree are collected right after it is
+   * trained (by the same thread), instead of in a separate pass over all trees.
+   * In-bag sets of the trees then don't need to be kept (unless feature importances
+   * are computed). Votes are summed in the order in which the trees are finished,
+   * so ties may be resolved differently between runs.
+   *
+   * @param incrementalOutOfBag whether to collect out-of-bag votes during training
+   */
+  public void setIncrementalOutOfBag(boolean incrementalOutOfBag) {
+
+    m_IncrementalOutOfBag = incrementalOutOfBag;
+  }
+
+  /**
+   * Get whether the out-of-bag votes are collected during training.
+   *
+   * @return whether the out-of-bag votes are collected during training
+   */
+  public boolean getIncrementalOutOfBag() {
+
+    return m_IncrementalOutOfBag;
+  }
+
   /**
    * Gets the out of bag error that was calculated as the classifier
    * was built.
@@ -670,19 +717,99 @@ public class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
 
   public final double[] distributionForAttributes(double[] instanceAttributes, int numClasses) {
     double[] sums = new double[numClasses];
+    distributionForAttributes(instanceAttributes, sums);
+    return sums;
+  }
+
+  /**
+   * Allocation-free version of distributionForAttributes().
+   *
+   * @param instanceAttributes attribute values of the instance
+   * @param out receives the class distribution, length must be the number of classes
+   */
+  public final void distributionForAttributes(double[] instanceAttributes, double[] out) {
+    int numClasses = out.length;
     double[] newProbs;
 
+    Arrays.fill(out, 0d);
     for (int i = 0; i < m_NumIterations; i++) {
         newProbs = ((FasterTree)m_Classifiers[i]).distributionForAttributes(instanceAttributes);
         for (int j = 0; j < numClasses; j++)
+          out[j] += newProbs[j];
+    }
+
+    if (!Utils.eq(Utils.sum(out), 0)) {
+      Utils.normalize(out);
+    }
+  }
+
+  /**
+   * Number of instances evaluated by one task in distributionsForInstances().
+   */
+  private static final int BATCH_BLOCK_SIZE = 256;
+
+  /**
+   * Batch version of distributionForInstance(). Copies attribute values of the batch to columns,
+   * then evaluates blocks of instances in parallel in ForkJoinPool.commonPool(). Within a block, trees are the outer
+   * loop, so each tree is traversed for all instances of the block while its nodes are in cache.
+   * Results are the same as calling distributionForInstance() for each instance.
+   *
+   * @param insts instances to classify (with nominal class)
+   * @param numThreads max. number of threads (0 = autodetect), the common pool may provide fewer
+   * @return class distributions, one row per instance
+   */
+  public final double[][] distributionsForInstances(Instances insts, int numThreads) throws Exception {
+
+    int numInstances = insts.numInstances();
+    double[][] columns = new double[insts.numAttributes()][numInstances];
+    for (int i = 0; i < numInstances; i++) {
+      Instance instance = insts.instance(i);
+      for (int a = 0; a < columns.length; a++) {
+        columns[a][i] = instance.value(a);
+      }
+    }
+
+    double[][] res = new double[numInstances][insts.numClasses()];
+
+    int numBlocks = (numInstances + BATCH_BLOCK_SIZE - 1) / BATCH_BLOCK_SIZE;
+    int threads = Math.min(numBlocks, numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors());
+
+    if (threads <= 1) {
+      distributionsForBlock(columns, 0, numInstances, res);
+      return res;
+    }
+
+    // threads workers in the common pool take blocks one by one, the calling thread runs one of them
+    AtomicInteger nextBlock = new AtomicInteger();
+    List<ForkJoinTask<?>> workers = new ArrayList<>(threads);
+    for (int w = 0; w < threads; w++) {
+      workers.add(ForkJoinTask.adapt(() -> {
+        for (int b = nextBlock.getAndIncrement(); b < numBlocks; b = nextBlock.getAndIncrement()) {
+          int blockFrom = b * BATCH_BLOCK_SIZE;
+          distributionsForBlock(columns, blockFrom, Math.min(numInstances, blockFrom + BATCH_BLOCK_SIZE), res);
+        }
+      }));
+    }
+    ForkJoinTask.invokeAll(workers);
+
+    return res;
+  }
+
+  private void distributionsForBlock(double[][] columns, int from, int to, double[][] res) {
+    for (int t = 0; t < m_NumIterations; t++) {
+      FasterTree tree = (FasterTree) m_Classifiers[t];
+      for (int i = from; i < to; i++) {
+        double[] newProbs = tree.distributionForColumns(columns, i);
+        double[] sums = res[i];
+        for (int j = 0; j < newProbs.length; j++)
           sums[j] += newProbs[j];
+      }
     }
 
-    if (Utils.eq(Utils.sum(sums), 0)) {
-      return sums;
-    } else {
-      Utils.normalize(sums);
-      return sums;
+    for (int i = from; i < to; i++) {
+      if (!Utils.eq(Utils.sum(res[i]), 0)) {
+        Utils.normalize(res[i]);
+      }
     }
   }
 
@@ -25,7 +25,11 @@ package cz.siret.prank.fforest;
 
 import cz.siret.prank.fforest.api.FlatBinaryForest;
 import cz.siret.prank.fforest.api.FlatBinaryForestBuilder;
+import cz.siret.prank.fforest.api.FlatForest;
+import cz.siret.prank.fforest.api.FlatForestBuilder;
 import cz.siret.prank.fforest.api.FlattableForest;
+import cz.siret.prank.fforest.api.PackedBinaryForest;
+import cz.siret.prank.fforest.api.PackedBinaryForestBuilder;
 import weka.classifiers.AbstractClassifier;
 import weka.core.*;
 import weka.core.TechnicalInformation.Field;
@@ -85,6 +89,20 @@ import java.util.Vector;
  *  The maximum depth of the trees, 0 for unlimited.
  *  (default 0)</pre>
  * <p/>
+ * <pre> -psplit &lt;num&gt;
+ *  Min. number of instances in a node to search for its split and partition it
+ *  in parallel (with more threads), 0 to disable.
+ *  (default 100000)</pre>
+ * <p/>
+ * <pre> -fork &lt;num&gt;
+ *  Min. number of instances in a node to build its subtrees as separate tasks
+ *  (that idle threads can take over), 0 to disable.
+ *  (default 0)</pre>
+ * <p/>
+ * <pre> -bins &lt;num&gt;
+ *  Number of histogram bins per attribute, 0 for exact split search.
+ *  (default 0)</pre>
+ * <p/>
  * <pre> -D
  *  If set, classifier is run in debug mode and
  *  may output additional info to the console</pre>
@@ -130,6 +148,12 @@ public class FasterForest
    */
   protected boolean m_CalcOutOfBag = true;
 
+  /**
+   * Whether to collect out-of-bag votes right after each tree is trained
+   * (see FastRfBagging.setIncrementalOutOfBag())
+   */
+  protected boolean m_IncrementalOutOfBag = false;
+
   /**
    * The size of each bag sample, as a percentage of the training size
    */
@@ -141,6 +165,24 @@ public class FasterForest
   /** The maximum depth of the trees (0 = unlimited) */
   protected int m_MaxDepth = 0;
 
+  /**
+   * Min. number of instances in a node to evaluate candidate attributes and partition
+   * sorted indices in parallel ForkJoin tasks (0 = never). See FasterTreeTrainable.buildTree().
+   */
+  protected int m_ParallelSplitThreshold = 100000;
+
+  /**
+   * Min. number of instances in a node to build its two subtrees as separate ForkJoin
+   * tasks (0 = never). See FasterTreeTrainable.buildTree().
+   */
+  protected int m_ForkSubtreesThreshold = 0;
+
+  /**
+   * Number of histogram bins per attribute used in training (0 = exact split search on presorted data).
+   * See FasterTreeTrainable.buildTreeHistogram().
+   */
+  protected int m_HistogramBins = 0;
+
   /** The header information. */
   protected Instances m_Info = null;
 
@@ -309,6 +351,110 @@ public class FasterForest
     m_MaxDepth = value;
   }
 
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String parallelSplitThresholdTipText(){
+    return "Min. number of instances in a node to search for its split and partition it in parallel, 0 to disable.";
+  }
+
+  /**
+   * Get the min. number of instances in a node to search for its split and partition
+   * it in parallel, 0 for never.
+   *
+   * @return the min. number of instances.
+   */
+  public int getParallelSplitThreshold(){
+    return m_ParallelSplitThreshold;
+  }
+
+  /**
+   * Set the min. number of instances in a node to search for its split and partition
+   * it in parallel, 0 for never. Helps when there are fewer trees than threads, as
+   * otherwise large nodes near the root are processed by a single thread.
+   *
+   * @param value the min. number of instances, or 0.
+   */
+  public void setParallelSplitThreshold(int value){
+    if (value < 0) {
+      throw new IllegalArgumentException("Parallel split threshold must not be negative.");
+    }
+    m_ParallelSplitThreshold = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String forkSubtreesThresholdTipText(){
+    return "Min. number of instances in a node to build its subtrees as separate tasks (that idle threads can take over), 0 to disable.";
+  }
+
+  /**
+   * Get the min. number of instances in a node to build its subtrees as separate
+   * tasks, 0 for never.
+   *
+   * @return the min. number of instances.
+   */
+  public int getForkSubtreesThreshold(){
+    return m_ForkSubtreesThreshold;
+  }
+
+  /**
+   * Set the min. number of instances in a node to build its subtrees as separate
+   * tasks, 0 for never. Threads that finished their trees can then take over parts
+   * of the trees still being built. Subtrees of such nodes use their own random
+   * number generators, so the trees differ for different values of this threshold
+   * (but not for different numbers of threads). Off by default, so that forests
+   * trained with the same seed stay the same as in earlier versions.
+   *
+   * @param value the min. number of instances, or 0.
+   */
+  public void setForkSubtreesThreshold(int value){
+    if (value < 0) {
+      throw new IllegalArgumentException("Fork subtrees threshold must not be negative.");
+    }
+    m_ForkSubtreesThreshold = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String histogramBinsTipText(){
+    return "Number of quantile bins per attribute for histogram-based split search, 0 for exact split search.";
+  }
+
+  /**
+   * Get the number of histogram bins per attribute, 0 for exact split search.
+   *
+   * @return the number of bins.
+   */
+  public int getHistogramBins(){
+    return m_HistogramBins;
+  }
+
+  /**
+   * Set the number of histogram bins per attribute, 0 for exact split search.
+   * Histogram-based training doesn't need per-tree sorted indices and evaluates
+   * only boundaries between bins.
+   *
+   * @param value the number of bins (2 .. 65536), or 0.
+   */
+  public void setHistogramBins(int value){
+    if (value != 0 && (value < 2 || value > 65536)) {
+      throw new IllegalArgumentException("Number of histogram bins must be 0 or between 2 and 65536.");
+    }
+    m_HistogramBins = value;
+  }
+
   public boolean isCalcOutOfBag() {
     return m_CalcOutOfBag;
   }
@@ -317,6 +463,14 @@ public class FasterForest
     this.m_CalcOutOfBag = m_CalcOutOfBag;
   }
 
+  public boolean isIncrementalOutOfBag() {
+    return m_IncrementalOutOfBag;
+  }
+
+  public void setIncrementalOutOfBag(boolean m_IncrementalOutOfBag) {
+    this.m_IncrementalOutOfBag = m_IncrementalOutOfBag;
+  }
+
   public int getBagSizePercent() {
     return m_BagSizePercent;
   }
@@ -455,6 +609,23 @@ public class FasterForest
         + "\t(default 0)",
       "depth", 1, "-depth <num>"));
 
+    newVector.addElement(new Option(
+      "\tMin. number of instances in a node to search for its split and partition it\n"
+        + "\tin parallel (with more threads), 0 to disable.\n"
+        + "\t(default 100000)",
+      "psplit", 1, "-psplit <num>"));
+
+    newVector.addElement(new Option(
+      "\tMin. number of instances in a node to build its subtrees as separate tasks\n"
+        + "\t(that idle threads can take over), 0 to disable.\n"
+        + "\t(default 0)",
+      "fork", 1, "-fork <num>"));
+
+    newVector.addElement(new Option(
+      "\tNumber of histogram bins per attribute, 0 for exact split search.\n"
+        + "\t(default 0)",
+      "bins", 1, "-bins <num>"));
+
     newVector.addElement(new Option(
       "\tThe number of simultaneous threads to use for computation, 0 for autodetect.\n"
         + "\t(default 0)",
@@ -498,6 +669,17 @@ public class FasterForest
       result.add("" + getMaxDepth());
     }
 
+    result.add("-psplit");
+    result.add("" + getParallelSplitThreshold());
+
+    result.add("-fork");
+    result.add("" + getForkSubtreesThreshold());
+
+    if(getHistogramBins() > 0){
+      result.add("-bins");
+      result.add("" + getHistogramBins());
+    }
+
     if(getNumThreads() > 0){
       result.add("-threads");
       result.add("" + getNumThreads());
@@ -535,6 +717,20 @@ public class FasterForest
    *  The maximum depth of the trees, 0 for unlimited.
    *  (default 0)</pre>
    * <p/>
+   * <pre> -psplit &lt;num&gt;
+   *  Min. number of instances in a node to search for its split and partition it
+   *  in parallel (with more threads), 0 to disable.
+   *  (default 100000)</pre>
+   * <p/>
+   * <pre> -fork &lt;num&gt;
+   *  Min. number of instances in a node to build its subtrees as separate tasks
+   *  (that idle threads can take over), 0 to disable.
+   *  (default 0)</pre>
+   * <p/>
+   * <pre> -bins &lt;num&gt;
+   *  Number of histogram bins per attribute, 0 for exact split search.
+   *  (default 0)</pre>
+   * <p/>
    * <pre> -threads
    *  Number of simultaneous threads to use.
    *  (default 0 = autodetect number of available cores)</pre>
@@ -584,6 +780,27 @@ public class FasterForest
       setMaxDepth(0);
     }
 
+    tmpStr = Utils.getOption("psplit", options);
+    if ( tmpStr.length() != 0 ){
+      setParallelSplitThreshold(Integer.parseInt(tmpStr));
+    } else {
+      setParallelSplitThreshold(100000);
+    }
+
+    tmpStr = Utils.getOption("fork", options);
+    if ( tmpStr.length() != 0 ){
+      setForkSubtreesThreshold(Integer.parseInt(tmpStr));
+    } else {
+      setForkSubtreesThreshold(0);
+    }
+
+    tmpStr = Utils.getOption("bins", options);
+    if ( tmpStr.length() != 0 ){
+      setHistogramBins(Integer.parseInt(tmpStr));
+    } else {
+      setHistogramBins(0);
+    }
+
     tmpStr = Utils.getOption("threads", options);
     if ( tmpStr.length() != 0 ){
       setNumThreads(Integer.parseInt(tmpStr));
@@ -660,6 +877,7 @@ public class FasterForest
     m_bagger.setNumIterations(m_numTrees);
     m_bagger.setBagSizePercent(m_BagSizePercent);
     m_bagger.setCalcOutOfBag(m_CalcOutOfBag);
+    m_bagger.setIncrementalOutOfBag(m_IncrementalOutOfBag);
     m_bagger.setComputeImportances( this.getComputeImportances() );
     m_bagger.buildClassifier(data, m_NumThreads, this);
     
@@ -689,6 +907,46 @@ public class FasterForest
     return m_bagger.distributionForAttributes(instanceAttributes, numClasses);
   }
 
+  /**
+   * Computes class distribution for given attribute values into a caller provided array.
+   * Doesn't allocate, so the array can be reused between calls.
+   *
+   * @param instanceAttributes attribute values of the instance
+   * @param out receives the class distribution, length must be the number of classes
+   */
+  public final void distributionForAttributes(double[] instanceAttributes, double[] out) {
+    m_bagger.distributionForAttributes(instanceAttributes, out);
+  }
+
+  /**
+   * @return true, distributionsForInstances() evaluates the batch tree by tree in parallel
+   */
+  @Override
+  public boolean implementsMoreEfficientBatchPrediction() {
+    return true;
+  }
+
+  /**
+   * Calculates class distributions for a batch of instances.
+   * Uses up to getNumThreads() threads of the common ForkJoinPool, results are the same as from distributionForInstance().
+   *
+   * @param insts the instances to be classified
+   *
+   * @return the distributions the forest generates for the instances
+   *
+   * @throws Exception if computation fails
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts) throws Exception {
+
+    if (m_ZeroR != null || insts.classAttribute().isNumeric()) {
+      return super.distributionsForInstances(insts);
+    }
+
+    return m_bagger.distributionsForInstances(insts, m_NumThreads);
+
+  }
+
   /**
    * Outputs a description of this classifier.
    *
@@ -706,6 +964,7 @@ public class FasterForest
         + m_KValue + " random feature" + (m_KValue == 1 ? "" : "s") + ".\n"
         + "Out of bag error: " + Utils.doubleToString(m_bagger.measureOutOfBagError()*100.0, 3) + "%\n"
         + (getMaxDepth() > 0 ? ("Max. depth of trees: " + getMaxDepth() + "\n") : (""))
+        + (getHistogramBins() > 0 ? ("Histogram bins: " + getHistogramBins() + "\n") : (""))
         + "\n");
       if ( getComputeImportances() ) {
         sb.append("Feature importances - increase in out-of-bag error (as % misclassified instances) after feature permuted:\n");
@@ -751,6 +1010,14 @@ public class FasterForest
     return new FlatBinaryForestBuilder().buildFromFasterTrees(m_bagger.getClassifiersAsTrees());
   }
 
+  public PackedBinaryForest toPackedBinaryForest() {
+    return new PackedBinaryForestBuilder().buildFromFasterTrees(m_bagger.getClassifiersAsTrees());
+  }
+
+  public FlatForest toFlatForest() {
+    return new FlatForestBuilder().buildFromFasterTrees(m_bagger.getClassifiersAsTrees(), m_Info.numClasses());
+  }
+
 }
 
 
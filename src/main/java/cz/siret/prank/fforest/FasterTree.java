@@ -28,6 +28,7 @@ import weka.core.*;
 import weka.core.Capabilities.Capability;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 
 
 /**
@@ -233,6 +234,32 @@ public class FasterTree
 
   }
 
+  /**
+   * Computes class distribution of an instance stored in columnar form.
+   *
+   * @param columns attribute values, columns[attribute][row]
+   * @param row index of the instance
+   * @return class distribution of the leaf (must not be modified)
+   */
+  public final double[] distributionForColumns(double[][] columns, int row) {
+
+    FasterTree node = this;
+
+    while (true) {
+      if (node.m_Attribute == -1) {  // node is a leaf
+        return node.m_ClassProbs;
+      }
+
+      if (columns[node.m_Attribute][row] < node.m_SplitPoint) {
+        node = node.sucessorLeft;
+      } else {
+        node = node.sucessorRight;
+      }
+    }
+
+  }
+
+
 
 
   /**
@@ -267,60 +294,97 @@ public class FasterTree
 
   }
 
+  /**
+   * Computes class distribution of an instance in a binned DataCache, without
+   * real attribute values. Exact only for trees trained on the same binned data
+   * (those split only at bin cut points).
+   *
+   * @return the computed class distribution
+   */
+  public final double[] distributionForInstanceInBins(DataCache data, int instIdx) {
+
+      FasterTree node = this;
+
+      while (true) {
+        if (node.m_Attribute == -1) {  // node is a leaf
+          return node.m_ClassProbs;
+        }
+
+        if (data.isBinnedValueBelow(node.m_Attribute, instIdx, node.m_SplitPoint)) {
+          node = node.sucessorLeft;
+        } else {
+          node = node.sucessorRight;
+        }
+      }
+
+  }
+
   /**
    * Computes size of the tree.
    *
    * @return the number of nodes
    */
   public int numNodes() {
-    if (m_Attribute == -1) {
-      return 1;
-    } else {
-      int size = 1;
-
-      size += sucessorLeft.numNodes();
-      size += sucessorRight.numNodes();
-
-      return size;
+    int size = 0;
+
+    ArrayDeque<FasterTree> stack = new ArrayDeque<>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      FasterTree node = stack.pop();
+      size++;
+      if (node.m_Attribute != -1) {
+        stack.push(node.sucessorLeft);
+        stack.push(node.sucessorRight);
+      }
     }
+
+    return size;
   }
 
+  /**
+   * @return the number of split nodes (every split node has two children)
+   */
   public int numSplitNodes() {
-    if (m_Attribute == -1) {
-      return 0;
-    } else {
-      int size = 1;
-
-      size += sucessorLeft.numNodes();
-      size += sucessorRight.numNodes();
-
-      return size;
-    }
+    return (numNodes() - 1) / 2;
   }
 
+  /**
+   * @return the number of leaves
+   */
   public int numLeaves() {
-    if (m_Attribute == -1) {
-      return 1;
-    } else {
-      int size = 0;
-
-      size += sucessorLeft.numNodes();
-      size += sucessorRight.numNodes();
-
-      return size;
-    }
+    return (numNodes() + 1) / 2;
   }
 
   /**
    * destroys this tree in the process to free up memory
    */
   public FasterTree toSlimVersion() {
-    FasterTree left = sucessorLeft==null ? null : sucessorLeft.toSlimVersion();
-    sucessorLeft = null;
-    FasterTree right = sucessorRight==null ? null : sucessorRight.toSlimVersion();
-    sucessorRight = null;
-
-    FasterTree res = new FasterTree(left, right, m_Attribute, m_SplitPoint, m_ClassProbs);
+    // copy nodes top-down without recursion, each copy gets its children when they are copied
+    FasterTree res = new FasterTree(null, null, m_Attribute, m_SplitPoint, m_ClassProbs);
+
+    ArrayDeque<FasterTree> stack = new ArrayDeque<>();  // pairs: original node, its copy
+    stack.push(this);
+    stack.push(res);
+    while (!stack.isEmpty()) {
+      FasterTree copy = stack.pop();
+      FasterTree node = stack.pop();
+
+      FasterTree left = node.sucessorLeft;
+      node.sucessorLeft = null;
+      FasterTree right = node.sucessorRight;
+      node.sucessorRight = null;
+
+      if (left != null) {
+        copy.sucessorLeft = new FasterTree(null, null, left.m_Attribute, left.m_SplitPoint, left.m_ClassProbs);
+        stack.push(left);
+        stack.push(copy.sucessorLeft);
+      }
+      if (right != null) {
+        copy.sucessorRight = new FasterTree(null, null, right.m_Attribute, right.m_SplitPoint, right.m_ClassProbs);
+        stack.push(right);
+        stack.push(copy.sucessorRight);
+      }
+    }
 
     return res;
   }
@@ -2,7 +2,12 @@ package cz.siret.prank.fforest;
 
 import weka.core.Utils;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Extended version of FasterForest used in training.
@@ -38,10 +43,36 @@ public class FasterTreeTrainable extends FasterTree {
     protected transient double[][] tempDistsOther;
 
     /**
-     * created in run(), one for each root tree
+     * created in run(), one for each root tree; shared by subtrees built in parallel
+     * (see buildSubtreesInTasks()), as each node uses only its own range of it
      */
     private int[] tempIndices = null;
 
+    /**
+     * Random number generator used to choose attributes; the one of the DataCache
+     * (reusableRandomGenerator) shared by the whole tree, except for subtrees of
+     * nodes that build their subtrees in separate tasks.
+     */
+    protected transient Random random;
+
+    /**
+     * Histogram mode: temporary histogram of one attribute, re-used by all nodes
+     * in the tree that don't have full histograms.
+     */
+    protected transient double[] tempHist;
+
+    /**
+     * Histogram mode: full histograms (all attributes) no longer used by any node,
+     * re-used for the next ones. Created in buildRootTree(), one for each root tree.
+     */
+    protected transient ArrayDeque<double[][]> histPool;
+
+    /**
+     * Temporary arrays re-used by all nodes of the tree (and by the following
+     * trees trained by the same thread), see buildRootTree().
+     */
+    protected transient TrainingArena arena;
+
 
     /**
      * Get the value of K.
@@ -72,10 +103,14 @@ public class FasterTreeTrainable extends FasterTree {
         this.tempDistsOther = from.tempDistsOther;
         this.tempProps = from.tempProps;
         this.tempIndices = from.tempIndices;
+        this.random = from.random;
+        this.tempHist = from.tempHist;
+        this.histPool = from.histPool;
+        this.arena = from.arena;
     }
 
     /**
-     * Recursively generates a tree. A derivative of the buildTree function from
+     * Generates a tree. A derivative of the buildTree function from
      * the "weka.classifiers.trees.RandomTree" class, with the following changes
      * made:
      * <ul>
@@ -123,6 +158,11 @@ public class FasterTreeTrainable extends FasterTree {
      * and passed down to buildTree() as the original large matrix, but with
      * start and end points explicitly specified
      *
+     * <li>the tree is built without recursion: nodes waiting to be split are kept
+     *     on a SubtreeStack and built one by one by buildNode(), in the same order
+     *     as they were built recursively, so the depth of the tree is not limited
+     *     by the stack size of the thread
+     *
      * </ul>
      *
      * @param sortedIndices the indices of the instances of the whole bootstrap replicate
@@ -138,6 +178,28 @@ public class FasterTreeTrainable extends FasterTree {
                              int[] attIndicesWindow,
                              int depth)  {
 
+        SubtreeStack stack = arena.stack;
+        stack.push(this, startAt, endAt, classProbs, depth, null);
+
+        while (stack.size > 0) {
+            FasterTreeTrainable node = stack.pop();
+            node.buildNode(sortedIndices, stack.poppedStartAt, stack.poppedEndAt,
+                stack.poppedClassProbs, attIndicesWindow, stack.poppedDepth, stack);
+        }
+
+        stack.joinForked();
+    }
+
+    /**
+     * Splits one node of the tree built by buildTree() (or makes it a leaf),
+     * pushing its children to the stack instead of building them recursively.
+     */
+    private void buildNode(int[][] sortedIndices, int startAt, int endAt,
+                           double[] classProbs,
+                           int[] attIndicesWindow,
+                           int depth,
+                           SubtreeStack stack)  {
+
         //m_Debug = debug;
         int sortedIndicesLength = endAt - startAt + 1;
 
@@ -163,8 +225,8 @@ public class FasterTreeTrainable extends FasterTree {
 
         // new 0.99: all the following are for the best attribute only! they're updated while sequentially through the attributes
         double val = Double.NaN; // value of splitting criterion
-        double[][] dist = new double[2][data.numClasses];  // class distributions (contingency table), indexed first by branch, then by class
-        double[] prop = new double[2]; // the branch sizes (as fraction)
+        double[][] dist = arena.takeNodeDists();  // class distributions (contingency table), indexed first by branch, then by class
+        double[] prop = arena.nodeProps; // the branch sizes (as fraction)
         double split = Double.NaN;  // split point
 
         // Investigate K random attributes
@@ -176,9 +238,58 @@ public class FasterTreeTrainable extends FasterTree {
         double bestNegPosterior = -Double.MAX_VALUE;
         int bestAttIdx = -1;
 
+        if ( useParallelSplit(sortedIndicesLength) ) {
+
+            // large node: choose the first k attributes up front (the same ones the loop below
+            // would choose), evaluate them in parallel, and then go through the results in the
+            // order of choosing exactly as the loop would
+            int numCandidates = Math.min(k, windowSize);
+            int[] candidates = new int[numCandidates];
+            for (int c = 0; c < numCandidates; c++) {
+                int chosenIndex = random.nextInt(windowSize);
+                attIndex = attIndicesWindow[chosenIndex];
+                attIndicesWindow[chosenIndex] = attIndicesWindow[windowSize - 1];
+                attIndicesWindow[windowSize - 1] = attIndex;
+                windowSize--;
+                candidates[c] = attIndex;
+            }
+            k -= numCandidates;
+
+            double[][] candidateProps = new double[numCandidates][];
+            double[][][] candidateDists = new double[numCandidates][][];
+            double[] candidateSplits = distributionParallelAtts(candidateProps, candidateDists,
+                candidates, sortedIndices, startAt, endAt);
+
+            for (int c = 0; c < numCandidates; c++) {
+                if ( Double.isNaN(candidateSplits[c]) ) {
+                    continue;  // no split point
+                }
+                double negPosterior = - SplitCriteria.entropyConditionedOnRows(candidateDists[c]);
+                if ( negPosterior <= bestNegPosterior ) {
+                    continue;  // not better than a previous attribute
+                }
+                copyDists(candidateDists[c], dist);
+                System.arraycopy(candidateProps[c], 0, prop, 0, prop.length);
+                split = candidateSplits[c];
+                bestAttIdx = candidates[c];
+
+                if ( Double.isNaN(prior) ) {
+                    prior = SplitCriteria.entropyOverColumns(dist);
+                }
+                bestNegPosterior = negPosterior;
+
+                val = prior - (-negPosterior);
+                if ( val > 1e-2 ) {
+                    sensibleSplitFound = true;
+                }
+            }
+
+        }
+
+        // the remaining attributes (all k of them in a small node) one by one
         while ((windowSize > 0) && (k-- > 0 || !sensibleSplitFound ) ) {
 
-            int chosenIndex = data.reusableRandomGenerator.nextInt(windowSize);
+            int chosenIndex = random.nextInt(windowSize);
             attIndex = attIndicesWindow[chosenIndex];
 
             // shift chosen attIndex out of window
@@ -237,41 +348,35 @@ public class FasterTreeTrainable extends FasterTree {
             //m_Successors = new FasterTree[dist.length];  // dist.length now always == 2
             sucessorLeft = new FasterTreeTrainable(this);
             sucessorRight = new FasterTreeTrainable(this);
-            FasterTreeTrainable tree = (FasterTreeTrainable) sucessorLeft;
-            for (int i = 0; i < dist.length; i++) {    // 0..1
-                if (i==1)
-                    tree = (FasterTreeTrainable) sucessorRight;
 
-
-
-                // check if we're about to make an empty branch - this can happen with
-                // nominal attributes with more than two categories (as of ver. 0.98)
-                if ( belowTheSplitStartsAt - startAt == 0  ) {
-                    // in this case, modify the chosenAttDists[i] so that it contains
-                    // the current, before-split class probabilities, properly normalized
-                    // by the number of instances (as we won't be able to normalize
-                    // after the split)
+            // check if we're about to make an empty branch - this can happen with
+            // nominal attributes with more than two categories (as of ver. 0.98)
+            if ( belowTheSplitStartsAt - startAt == 0  ) {
+                // in this case, modify the chosenAttDists[i] so that it contains
+                // the current, before-split class probabilities, properly normalized
+                // by the number of instances (as we won't be able to normalize
+                // after the split)
+                for (int i = 0; i < dist.length; i++)
                     for ( int j = 0; j < dist[i].length; j++ )
                         dist[i][j] = classProbs[j] / sortedIndicesLength;
-                }
-
-                if ( i == 0 ) {   // before split
-                    tree.buildTree(sortedIndices, startAt, belowTheSplitStartsAt - 1,
-                        dist[i], attIndicesWindow, depth + 1);
-                } else {  // after split
-                    tree.buildTree(sortedIndices, belowTheSplitStartsAt, endAt,
-                        dist[i], attIndicesWindow, depth + 1);
-                }
-
-
-                dist[i] = null;
+            }
 
+            if ( useSubtreeTasks(sortedIndicesLength) ) {
+                buildSubtreesInTasks(sortedIndices, startAt, belowTheSplitStartsAt, endAt,
+                    dist, attIndicesWindow, depth, stack);
+            } else {
+                // right one first, so that the left one is built first
+                stack.push((FasterTreeTrainable) sucessorRight, belowTheSplitStartsAt, endAt, dist[1], depth + 1, null);
+                stack.push((FasterTreeTrainable) sucessorLeft, startAt, belowTheSplitStartsAt - 1, dist[0], depth + 1, null);
             }
+            arena.releaseClassDist(classProbs);  // children have their own ones
+            dist = null;
             sortedIndices = null;
 
 
         } else { // ------ make leaf --------
 
+            arena.releaseNodeDists();
             m_Attribute = -1;
 
             // normalize by dividing with the number of instances (as of ver. 0.97)
@@ -485,49 +590,181 @@ public class FasterTreeTrainable extends FasterTree {
 
         }
 
+        if ( useParallelSplit(endAt - startAt + 1) ) {
+            partitionParallel(sortedIndices, startAt, endAt, num0);
+            return startAt+num0;
+        }
+
         for (int a = 0; a < numAttributes; a++) { // xxxxxxxxxx attr by attr
 
             if (a == classIndex)
                 continue;
 
-            // the first index of the sortedIndices in the above branch, and the first index in the below
-            int startAbove = 0, startBelow = num0; // always only 2 sub-branches, remember where second starts
+            // the same range of tempIndices as of sortedIndices, so that subtrees built
+            // in parallel don't interfere
+            partitionAtt(sortedIndices[a], startAt, endAt, num0, whatGoesWhere, tempArr, startAt);
 
-            // TODO make faster custom fill
-            Arrays.fill(tempArr, 0, endAt-startAt+1, 0);
+        } // xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx end for attr by attr
 
-            //for (int branch = 0; branch < num.length; branch++) {
-            //  num[branch] = 0;
-            //}
+        return startAt+num0; // the first index of "below the split" instances
+
+    }
 
-            int[] sortedIndicesA = sortedIndices[a];
+    /**
+     * Reorders the sorted indices of one attribute between startAt and endAt
+     * (inclusive) so that instances going to branch 0 (see data.whatGoesWhere)
+     * come first. Used by splitDataNew().
+     *
+     * @param num0 number of instances going to branch 0
+     * @param tempArr temporary array, elements tempStart .. tempStart+endAt-startAt get overwritten
+     */
+    private static void partitionAtt(int[] sortedIndicesA, int startAt, int endAt, int num0,
+                                     int[] whatGoesWhere, int[] tempArr, int tempStart) {
 
-            // fill them with stuff by looking at goesWhere array
-            for (j = startAt; j <= endAt; j++) {
+        // the first index of the sortedIndices in the above branch, and the first index in the below
+        int startAbove = tempStart, startBelow = tempStart + num0; // always only 2 sub-branches, remember where second starts
 
-                int inst = sortedIndicesA[j];
-                int branch = whatGoesWhere[ inst ];  // can be only 0 or 1
+        // TODO make faster custom fill
+        Arrays.fill(tempArr, tempStart, tempStart+endAt-startAt+1, 0);
 
-                if ( branch==0 ) {
-                    tempArr[ startAbove ] = inst;
-                    startAbove++;
-                } else {
-                    tempArr[ startBelow ] = inst;
-                    startBelow++;
-                }
+        // fill them with stuff by looking at goesWhere array
+        for (int j = startAt; j <= endAt; j++) {
 
-                //subsetIndices[ branch == 0 ? startAbove :  ][ a ][ num[branch] ] = sortedIndices[a][j];
-                //num[branch]++;
+            int inst = sortedIndicesA[j];
+            int branch = whatGoesWhere[ inst ];  // can be only 0 or 1
 
+            if ( branch==0 ) {
+                tempArr[ startAbove ] = inst;
+                startAbove++;
+            } else {
+                tempArr[ startBelow ] = inst;
+                startBelow++;
             }
 
-            // now copy the tempArr into the sortedIndices, thus overwriting it
-            System.arraycopy( tempArr, 0, sortedIndicesA, startAt, endAt-startAt+1 );
+        }
 
-        } // xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx end for attr by attr
+        // now copy the tempArr into the sortedIndices, thus overwriting it
+        System.arraycopy( tempArr, tempStart, sortedIndicesA, startAt, endAt-startAt+1 );
+    }
 
-        return startAt+num0; // the first index of "below the split" instances
+    /**
+     * Parallel version of the attribute-by-attribute loop of splitDataNew(), used
+     * for large nodes. Attributes are divided among as many ForkJoin tasks as there
+     * are threads in the pool, each task with its own temporary array.
+     */
+    private void partitionParallel(int[][] sortedIndices, int startAt, int endAt, int num0) {
+
+        DataCache data = this.data;
+        int numTasks = Math.min(ForkJoinTask.getPool().getParallelism(), data.numAttributes - 1);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(numTasks);
+
+        for (int t = 0; t < numTasks; t++) {
+            final int firstAtt = t;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                int[] tempArr = new int[endAt - startAt + 1];
+                for (int a = firstAtt; a < data.numAttributes; a += numTasks) {
+                    if (a != data.classIndex)
+                        partitionAtt(sortedIndices[a], startAt, endAt, num0, data.whatGoesWhere, tempArr, 0);
+                }
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    /**
+     * Should the subtrees of a node with the given number of instances be built by
+     * buildSubtreesInTasks()? Depends only on the size of the node (see
+     * FasterForest.m_ForkSubtreesThreshold), so that the trees are the same
+     * regardless of the number of threads.
+     */
+    private boolean useSubtreeTasks(int numInstances) {
+        int threshold = m_MotherForest.m_ForkSubtreesThreshold;
+        return threshold > 0 && numInstances >= threshold;
+    }
+
+    /**
+     * Builds both subtrees of a large node: the right one in a ForkJoin task that
+     * can be taken over by an idle thread (e.g. one that has finished its trees
+     * while others are still being built), the left one in the current thread
+     * (it is pushed to the stack, the task is joined by buildTree() at the end).
+     *
+     * Both subtrees get their own random number generators, and the right one
+     * also its own arena and attribute window, so the result doesn't
+     * depend on the order in which (or threads by which) they are built. Outside
+     * of a ForkJoinPool, the subtrees are built one after another.
+     */
+    private void buildSubtreesInTasks(int[][] sortedIndices, int startAt, int belowTheSplitStartsAt, int endAt,
+                                      double[][] dist, int[] attIndicesWindow, int depth, SubtreeStack stack) {
+
+        FasterTreeTrainable left = (FasterTreeTrainable) sucessorLeft;
+        FasterTreeTrainable right = (FasterTreeTrainable) sucessorRight;
+        left.random = new Random(random.nextLong());
+        right.random = new Random(random.nextLong());
+        right.arena = new TrainingArena(data.numClasses);
+        right.tempProps = right.arena.tempProps;
+        right.tempDists = right.arena.tempDists;
+        right.tempDistsOther = right.arena.tempDistsOther;
+        int[] rightAttIndicesWindow = attIndicesWindow.clone();
+        double[] rightClassProbs = dist[1];
+
+        Runnable buildRight = () -> right.buildTree(sortedIndices, belowTheSplitStartsAt, endAt,
+            rightClassProbs, rightAttIndicesWindow, depth + 1);
+
+        if ( ForkJoinTask.inForkJoinPool() ) {
+            stack.forked.add(ForkJoinTask.adapt(buildRight).fork());
+        } else {
+            stack.deferred.add(buildRight);
+        }
+        stack.push(left, startAt, belowTheSplitStartsAt - 1, dist[0], depth + 1, null);
+    }
+
+    /**
+     * Should split search and partitioning of a node with the given number of
+     * instances run in parallel ForkJoin tasks? Only if the node is large enough
+     * (see FasterForest.m_ParallelSplitThreshold) and the tree is being trained
+     * in a ForkJoinPool with more threads, so that the tasks share the threads
+     * with training of other trees.
+     */
+    private boolean useParallelSplit(int numInstances) {
+        int threshold = m_MotherForest.m_ParallelSplitThreshold;
+        return threshold > 0 && numInstances >= threshold
+            && ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool().getParallelism() > 1;
+    }
 
+    /**
+     * Evaluates candidate attributes for a split of a large node in parallel
+     * ForkJoin tasks, each with its own temporary arrays. Unlike in the sequential
+     * search, every attribute gets its own props and dists (regardless of which
+     * one is the best).
+     *
+     * @param props gets filled with props of each candidate (see distributionSequentialAtt())
+     * @param dists gets filled with dists of each candidate
+     * @param candidates attributes to examine
+     * @return split points of candidates, NaN where there's no split point
+     */
+    private double[] distributionParallelAtts(double[][] props, double[][][] dists, int[] candidates,
+                                              int[][] sortedIndices, int startAt, int endAt) {
+
+        int numClasses = data.numClasses;
+        double[] splits = new double[candidates.length];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(candidates.length);
+
+        for (int c = 0; c < candidates.length; c++) {
+            final int cc = c;
+            props[c] = new double[2];
+            dists[c] = new double[2][numClasses];
+            tasks.add(ForkJoinTask.adapt(() -> {
+                FasterTreeTrainable worker = new FasterTreeTrainable(this);
+                worker.tempProps = new double[2];
+                worker.tempDists = new double[2][numClasses];
+                worker.tempDistsOther = new double[2][numClasses];
+                splits[cc] = worker.distributionSequentialAtt(props[cc], dists[cc],
+                    -Double.MAX_VALUE, candidates[cc], sortedIndices[candidates[cc]], startAt, endAt);
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        return splits;
     }
 
 
@@ -546,20 +783,17 @@ public class FasterTreeTrainable extends FasterTree {
      */
     public double[] distributionForInstanceInDataCache(DataCache data, int instIdx) {
 
-        if (m_Attribute != -1) {  // ============================ node is not a leaf
+        FasterTree node = this;
 
-            if ( data.vals[m_Attribute][instIdx] < m_SplitPoint) {
-                return ((FasterTreeTrainable)sucessorLeft).distributionForInstanceInDataCache(data, instIdx);
+        while (node.m_Attribute != -1) {  // node is not a leaf
+            if ( data.vals[node.m_Attribute][instIdx] < node.m_SplitPoint) {
+                node = node.sucessorLeft;
             } else {
-                return ((FasterTreeTrainable)sucessorRight).distributionForInstanceInDataCache(data, instIdx);
+                node = node.sucessorRight;
             }
-
-        } else { // =============================================== node is a leaf
-
-            return m_ClassProbs;
-
         }
 
+        return node.m_ClassProbs;
     }
 
 
@@ -906,6 +1140,409 @@ public class FasterTreeTrainable extends FasterTree {
     }
 
 
+    /**
+     * Histogram-based version of buildTree(), used when the DataCache is binned
+     * (see DataCache(Instances, int, int)). Differences:
+     * <ul>
+     *
+     * <li>split points are searched only at boundaries between bins, using
+     *     per-bin class counts (histograms) instead of scanning sorted indices;
+     *     split point is the cut point between the bins (DataCache.binCuts), so
+     *     instances of the binned data can be classified by bin codes only
+     *
+     * <li>instead of sortedIndices for every attribute there is a single array
+     *     of in-bag instances, partitioned in place at every split
+     *
+     * <li>a node either has full histograms (all attributes, computed from the parent
+     *     by subtracting histograms of the smaller sibling), or computes histograms only
+     *     for the examined attributes, whichever is expected to be cheaper (see
+     *     useFullHistograms())
+     *
+     * </ul>
+     *
+     * @param indices in-bag instances, gets reordered!
+     * @param startAt first index of the instance to consider in this split; inclusive.
+     * @param endAt last index of the instance to consider; inclusive.
+     * @param classProbs the class distribution
+     * @param attIndicesWindow the attribute window to choose attributes from
+     * @param depth the current depth
+     * @param hist full histograms of this node (hist[att][bin * numClasses + class]),
+     *        or null; this node takes ownership of them
+     */
+    protected void buildTreeHistogram(int[] indices, int startAt, int endAt,
+                                      double[] classProbs,
+                                      int[] attIndicesWindow,
+                                      int depth,
+                                      double[][] hist)  {
+
+        SubtreeStack stack = arena.stack;
+        stack.push(this, startAt, endAt, classProbs, depth, hist);
+
+        while (stack.size > 0) {
+            FasterTreeTrainable node = stack.pop();
+            node.buildNodeHistogram(indices, stack.poppedStartAt, stack.poppedEndAt,
+                stack.poppedClassProbs, attIndicesWindow, stack.poppedDepth, stack.poppedHist, stack);
+        }
+    }
+
+    /**
+     * Splits one node of the tree built by buildTreeHistogram() (or makes it a leaf),
+     * pushing its children to the stack instead of building them recursively.
+     */
+    private void buildNodeHistogram(int[] indices, int startAt, int endAt,
+                                    double[] classProbs,
+                                    int[] attIndicesWindow,
+                                    int depth,
+                                    double[][] hist,
+                                    SubtreeStack stack)  {
+
+        int sortedIndicesLength = endAt - startAt + 1;
+
+        // Check if node doesn't contain enough instances or is pure
+        // or maximum depth reached, make leaf.
+        if ( ( sortedIndicesLength < Math.max(2, getMinNum()) )  // small
+            || Utils.eq( classProbs[Utils.maxIndex(classProbs)], Utils.sum(classProbs) )       // pure
+            || ( (getMaxDepth() > 0)  &&  (depth >= getMaxDepth()) )                           // deep
+            ) {
+            releaseHistograms(hist);
+            m_Attribute = -1;  // indicates leaf (no useful attribute to split on)
+
+            if ( sortedIndicesLength != 0 )
+                for (int c = 0; c < classProbs.length; c++) {
+                    classProbs[c] /= sortedIndicesLength;
+                }
+            m_ClassProbs = classProbs;
+            this.data = null;
+            return;
+        } // (leaf making)
+
+        double val = Double.NaN; // value of splitting criterion
+        double[][] dist = arena.takeNodeDists();  // class distributions (contingency table), indexed first by branch, then by class
+        double[] prop = arena.nodeProps; // the branch sizes (as fraction)
+        double split = Double.NaN;  // split point
+        int bestBin = -1;  // last bin below the split
+
+        // Investigate K random attributes
+        int attIndex = 0;
+        int windowSize = attIndicesWindow.length;
+        int k = getKValue();
+        boolean sensibleSplitFound = false;
+        double prior = Double.NaN;
+        double bestNegPosterior = -Double.MAX_VALUE;
+        int bestAttIdx = -1;
+
+        while ((windowSize > 0) && (k-- > 0 || !sensibleSplitFound ) ) {
+
+            int chosenIndex = random.nextInt(windowSize);
+            attIndex = attIndicesWindow[chosenIndex];
+
+            // shift chosen attIndex out of window
+            attIndicesWindow[chosenIndex] = attIndicesWindow[windowSize - 1];
+            attIndicesWindow[windowSize - 1] = attIndex;
+            windowSize--;
+
+            double[] attHist;
+            if (hist != null) {
+                attHist = hist[attIndex];
+            } else {
+                attHist = tempHist;
+                computeHistogram(attHist, attIndex, indices, startAt, endAt);
+            }
+
+            int candidateBin = distributionHistogramAtt( prop, dist,
+                bestNegPosterior, attIndex, attHist );
+
+            if ( candidateBin < 0 ) {
+                continue;  // we did not improve over a previous attribute! "dist" is unchanged from before
+            }
+            bestBin = candidateBin;
+            bestAttIdx = attIndex;
+            split = data.binCuts[attIndex][candidateBin];
+
+            if ( Double.isNaN(prior) ) { // needs to be computed only once per branch - is same for all attributes
+                prior = SplitCriteria.entropyOverColumns(dist);
+            }
+
+            double negPosterior = - SplitCriteria.entropyConditionedOnRows(dist);  // this is an updated dist
+            if ( negPosterior > bestNegPosterior ) {
+                bestNegPosterior = negPosterior;
+            } else {
+                throw new IllegalArgumentException("Very strange!");
+            }
+
+            val = prior - (-negPosterior); // we want the greatest reduction in entropy
+            if ( val > 1e-2 ) {            // we allow some leeway here to compensate
+                sensibleSplitFound = true;   // for imprecision in entropy computation
+            }
+
+        }  // feature by feature in window
+
+        if ( sensibleSplitFound ) {
+
+            m_Attribute = bestAttIdx;
+            m_SplitPoint = split;
+
+            int belowTheSplitStartsAt = partitionByBin(m_Attribute, bestBin, indices, startAt, endAt);
+
+            // histograms of children: scan the smaller one, subtract it from the parent to get the larger one
+            double[][] histLeft = null;
+            double[][] histRight = null;
+            if (hist != null) {
+                int numLeft = belowTheSplitStartsAt - startAt;
+                int numRight = endAt - belowTheSplitStartsAt + 1;
+                boolean leftSmaller = numLeft <= numRight;
+                if (useFullHistograms(Math.min(numLeft, numRight), sortedIndicesLength)) {
+                    double[][] smaller = takeHistograms();
+                    if (leftSmaller) {
+                        computeHistograms(smaller, indices, startAt, belowTheSplitStartsAt - 1);
+                    } else {
+                        computeHistograms(smaller, indices, belowTheSplitStartsAt, endAt);
+                    }
+                    subtractHistograms(hist, smaller);  // hist now belongs to the larger child
+                    histLeft = leftSmaller ? smaller : hist;
+                    histRight = leftSmaller ? hist : smaller;
+                } else {
+                    releaseHistograms(hist);
+                }
+            }
+
+            sucessorLeft = new FasterTreeTrainable(this);
+            sucessorRight = new FasterTreeTrainable(this);
+
+            // right one first, so that the left one is built first
+            stack.push((FasterTreeTrainable) sucessorRight, belowTheSplitStartsAt, endAt,
+                dist[1], depth + 1, histRight);
+            stack.push((FasterTreeTrainable) sucessorLeft, startAt, belowTheSplitStartsAt - 1,
+                dist[0], depth + 1, histLeft);
+            arena.releaseClassDist(classProbs);  // children have their own ones
+
+        } else { // ------ make leaf --------
+
+            arena.releaseNodeDists();
+            releaseHistograms(hist);
+            m_Attribute = -1;
+
+            for (int c = 0; c < classProbs.length; c++) {
+                classProbs[c] /= sortedIndicesLength;
+            }
+
+            m_ClassProbs = classProbs;
+
+        }
+
+        this.data = null; // dereference all pointers so data can be GC'd after tree is built
+
+    }
+
+    /**
+     * Histogram version of distributionSequentialAtt(). Evaluates splits at
+     * boundaries after every non-empty bin.
+     *
+     * @param propsBestAtt see distributionSequentialAtt()
+     * @param distsBestAtt see distributionSequentialAtt()
+     * @param scoreBestAtt see distributionSequentialAtt()
+     * @param attToExamine the attribute index
+     * @param hist histogram of the attribute in this node, hist[bin * numClasses + class]
+     *
+     * @return the last bin below the best split point, or -1 if the attribute was
+     * not better than the previous one
+     */
+    protected final int distributionHistogramAtt(double[] propsBestAtt, double[][] distsBestAtt,
+                                                 double scoreBestAtt, int attToExamine, double[] hist) {
+
+        int numClasses = data.numClasses;
+        int numBins = data.numBins(attToExamine);
+
+        double[][] dist = this.tempDists;
+        double[] dist0 = dist[0];
+        double[] dist1 = dist[1];
+
+        double[][] currDist = this.tempDistsOther;
+        double[] currDist0 = currDist[0];
+        double[] currDist1 = currDist[1];
+
+        fill0(dist0, dist1, currDist0, currDist1);
+
+        // begin with moving all instances into second subset ("below split")
+        int lastNonEmptyBin = -1;
+        for (int b = 0; b < numBins; b++) {
+            boolean empty = true;
+            for (int c = 0; c < numClasses; c++) {
+                double w = hist[b * numClasses + c];
+                currDist1[c] += w;
+                empty &= (w <= 0);
+            }
+            if (!empty) {
+                lastNonEmptyBin = b;
+            }
+        }
+
+        double currVal; // current value of splitting criterion
+        double bestVal = -Double.MAX_VALUE; // best value of splitting criterion
+        int bestBin = -1;
+
+        for (int b = 0; b < lastNonEmptyBin; b++) {  // --- try all split points
+            boolean empty = true;
+            for (int c = 0; c < numClasses; c++) {
+                double w = hist[b * numClasses + c];
+                currDist0[c] += w;
+                currDist1[c] -= w;
+                empty &= (w <= 0);
+            }
+
+            // empty bin gives the same split as the previous one
+            if (!empty) {
+
+                currVal = -SplitCriteria.entropyConditionedOnRows(currDist);
+
+                if (currVal > bestVal) {
+                    bestVal = currVal;
+                    bestBin = b;
+                }
+
+            }
+        }                                             // ------- end trying split points
+
+        if (bestBin < 0) {
+            return -1;
+        }
+
+        // now make the correct dist[] for the best split point
+        for (int b = 0; b < numBins; b++) {
+            double[] d = (b <= bestBin) ? dist0 : dist1;
+            for (int c = 0; c < numClasses; c++) {
+                d[c] += hist[b * numClasses + c];
+            }
+        }
+
+        double[] props = this.tempProps;
+        countsToFreqs(dist, props);
+
+        double curScore = -SplitCriteria.entropyConditionedOnRows(dist);
+        if (curScore > scoreBestAtt) {  // overwrite the "distsBestAtt" and "propsBestAtt" with current values
+            copyDists(dist, distsBestAtt);
+            System.arraycopy(props, 0, propsBestAtt, 0, props.length);
+            return bestBin;
+        } else {
+            return -1;
+        }
+
+    }
+
+    /**
+     * Reorders indices[startAt..endAt] so instances with bin <= lastBinBelow come first.
+     *
+     * @return the first index of "above the split" instances
+     */
+    private int partitionByBin(int att, int lastBinBelow, int[] indices, int startAt, int endAt) {
+        int i = startAt;
+        int j = endAt;
+        if (data.binCodesByte != null) {
+            byte[] codes = data.binCodesByte[att];
+            while (i <= j) {
+                if ((codes[indices[i]] & 0xFF) <= lastBinBelow) {
+                    i++;
+                } else {
+                    int tmp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j--] = tmp;
+                }
+            }
+        } else {
+            short[] codes = data.binCodesShort[att];
+            while (i <= j) {
+                if ((codes[indices[i]] & 0xFFFF) <= lastBinBelow) {
+                    i++;
+                } else {
+                    int tmp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j--] = tmp;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Decides whether children of a node get full histograms. Scanning the smaller child
+     * for all attributes and subtracting histograms pays off only if it is cheaper than
+     * scanning both children for the ~K examined attributes.
+     */
+    private boolean useFullHistograms(int numSmaller, int numInstances) {
+        int numAttributes = data.numAttributes - 1;
+        long costFull = (long) numSmaller * numAttributes + (long) numAttributes * (tempHist.length);
+        long costPerAttribute = (long) numInstances * getKValue();
+        return costFull < costPerAttribute;
+    }
+
+    private double[][] takeHistograms() {
+        double[][] res = histPool.poll();
+        if (res == null) {
+            res = new double[data.numAttributes][];
+            for (int a = 0; a < data.numAttributes; a++) {
+                if (a != data.classIndex) {
+                    res[a] = new double[data.numBins(a) * data.numClasses];
+                }
+            }
+        }
+        return res;
+    }
+
+    private void releaseHistograms(double[][] hist) {
+        if (hist != null) {
+            histPool.push(hist);
+        }
+    }
+
+    /** Fills histograms of all attributes from instances indices[startAt..endAt]. */
+    private void computeHistograms(double[][] hist, int[] indices, int startAt, int endAt) {
+        for (int a = 0; a < data.numAttributes; a++) {
+            if (a != data.classIndex) {
+                computeHistogram(hist[a], a, indices, startAt, endAt);
+            }
+        }
+    }
+
+    /** Fills histogram of one attribute from instances indices[startAt..endAt]. */
+    private void computeHistogram(double[] attHist, int att, int[] indices, int startAt, int endAt) {
+        int numClasses = data.numClasses;
+        int[] instClassValues = data.instClassValues;
+        double[] instWeights = data.instWeights;
+
+        Arrays.fill(attHist, 0, data.numBins(att) * numClasses, 0d);
+        if (data.binCodesByte != null) {
+            byte[] codes = data.binCodesByte[att];
+            for (int j = startAt; j <= endAt; j++) {
+                int inst = indices[j];
+                attHist[(codes[inst] & 0xFF) * numClasses + instClassValues[inst]] += instWeights[inst];
+            }
+        } else {
+            short[] codes = data.binCodesShort[att];
+            for (int j = startAt; j <= endAt; j++) {
+                int inst = indices[j];
+                attHist[(codes[inst] & 0xFFFF) * numClasses + instClassValues[inst]] += instWeights[inst];
+            }
+        }
+    }
+
+    /**
+     * hist -= other. Values that should be zero but aren't because of rounding errors
+     * (possible with non-integer weights) are set to zero, so empty bins stay empty.
+     */
+    private static void subtractHistograms(double[][] hist, double[][] other) {
+        for (int a = 0; a < hist.length; a++) {
+            double[] h = hist[a];
+            if (h == null)
+                continue;
+            double[] o = other[a];
+            for (int i = 0; i < h.length; i++) {
+                double v = h[i] - o[i];
+                h[i] = (v > 1e-9) ? v : 0d;
+            }
+        }
+    }
+
+
     /**
      * Normalizes branch sizes so they contain frequencies (stored in "props")
      * instead of counts (stored in "dist"). Creates a new double[] which it
@@ -981,19 +1618,33 @@ public class FasterTreeTrainable extends FasterTree {
      * DataCache should have the "reusableRandomGenerator" field initialized.
      * The FastRfBagging class normally takes care of this before invoking this
      * function.
+     *
+     * Temporary arrays are taken from the TrainingArena of the DataCache (created
+     * by the first tree trained with it), so a re-used DataCache (see
+     * DataCache.resample()) brings the arrays of the previous tree along.
      */
     public void buildRootTree(DataCache data) {
         this.data = data;
+        this.random = data.reusableRandomGenerator;
         int n = data.numInstances;
 
+        if (data.arena == null)
+            data.arena = new TrainingArena(data.numClasses);
+        arena = data.arena;
+        tempProps = arena.tempProps;
+        tempDists = arena.tempDists;
+        tempDistsOther = arena.tempDistsOther;
+
         // compute initial class counts
-        double[] classProbs = new double[data.numClasses];
+        double[] classProbs = arena.takeClassDist();
         for (int i = 0; i < n; i++) {
             classProbs[data.instClassValues[i]] += data.instWeights[i];
         }
 
         // create the attribute indices window - skip class
-        int[] attIndicesWindow = new int[data.numAttributes - 1];
+        if (arena.attIndicesWindow == null)
+            arena.attIndicesWindow = new int[data.numAttributes - 1];
+        int[] attIndicesWindow = arena.attIndicesWindow;
         int j = 0;
         for (int i = 0; i < attIndicesWindow.length; i++) {
             if (j == data.classIndex)
@@ -1001,22 +1652,138 @@ public class FasterTreeTrainable extends FasterTree {
             attIndicesWindow[i] = j++;
         }
 
+        if (data.isBinned()) { // histogram mode, no sorted indices needed
+            if (arena.inBagIndices == null) {
+                arena.inBagIndices = new int[n];
+                int maxBins = 0;
+                for (int a : attIndicesWindow) {
+                    maxBins = Math.max(maxBins, data.numBins(a));
+                }
+                arena.tempHist = new double[maxBins * data.numClasses];
+            }
+            // only the first numInBag indices are valid
+            int[] indices = data.createInBagIndices(arena.inBagIndices);
+            int numInBag = data.numInBag;
+            tempHist = arena.tempHist;
+            histPool = arena.histPool;  // all histograms get back to the pool by the end of the tree
+
+            double[][] hist = null;
+            if (useFullHistograms(numInBag / 2, numInBag)) {
+                hist = takeHistograms();
+                computeHistograms(hist, indices, 0, numInBag - 1);
+            }
+            buildTreeHistogram(indices, 0, numInBag - 1, classProbs, attIndicesWindow, 0, hist);
+
+            tempHist = null;
+            histPool = null;
+            this.data = null;
+            this.random = null;
+            this.arena = null;
+            return;
+        }
+
         // prepare the DataCache by:
-        // ... creating an array for the whatGoesWhere field of the data
-        // ... creating the sortedIndices
-        // TODO recycle this array
-        data.whatGoesWhere = new int[ data.inBag.length ];
+        // ... creating an array for the whatGoesWhere field of the data (kept if the data is re-used)
+        // ... creating the sortedIndices (in buffers kept by the data)
+        if (data.whatGoesWhere == null)
+            data.whatGoesWhere = new int[ data.inBag.length ];
         data.createInBagSortedIndices();
 
-        // TODO recycle this array
-        tempIndices = new int[n];
+        if (arena.tempIndices == null)
+            arena.tempIndices = new int[n];
+        tempIndices = arena.tempIndices;
 
-        buildTree(data.sortedIndices, 0, data.sortedIndices[0].length-1,
+        // only the first numInBag sorted indices are valid
+        buildTree(data.sortedIndices, 0, data.numInBag-1,
             classProbs, attIndicesWindow, 0);
 
         this.data = null;
+        this.random = null;
+        this.arena = null;
 
     }
 
 
+    /**
+     * Nodes waiting to be built by buildTree() or buildTreeHistogram(), kept in
+     * parallel arrays (growing as needed) to avoid allocating an object per node.
+     * LIFO, so with the right child pushed before the left one the nodes are built
+     * depth-first, left to right, as they were recursively.
+     */
+    static final class SubtreeStack {
+
+        int size = 0;
+
+        private FasterTreeTrainable[] nodes = new FasterTreeTrainable[16];
+        private int[] startAt = new int[16];
+        private int[] endAt = new int[16];
+        private int[] depth = new int[16];
+        private double[][] classProbs = new double[16][];
+        private double[][][] hist = new double[16][][];
+
+        /** parameters of the node returned by the last pop() */
+        int poppedStartAt;
+        int poppedEndAt;
+        int poppedDepth;
+        double[] poppedClassProbs;
+        double[][] poppedHist;
+
+        /** subtrees built in ForkJoin tasks (see buildSubtreesInTasks()), joined by joinForked() */
+        final List<ForkJoinTask<?>> forked = new ArrayList<>();
+
+        /** subtrees that would be built in ForkJoin tasks if running in a ForkJoinPool */
+        final List<Runnable> deferred = new ArrayList<>();
+
+        void push(FasterTreeTrainable node, int startAt, int endAt, double[] classProbs, int depth, double[][] hist) {
+            if (size == nodes.length) {
+                int newLength = 2 * size;
+                nodes = Arrays.copyOf(nodes, newLength);
+                this.startAt = Arrays.copyOf(this.startAt, newLength);
+                this.endAt = Arrays.copyOf(this.endAt, newLength);
+                this.depth = Arrays.copyOf(this.depth, newLength);
+                this.classProbs = Arrays.copyOf(this.classProbs, newLength);
+                this.hist = Arrays.copyOf(this.hist, newLength);
+            }
+            nodes[size] = node;
+            this.startAt[size] = startAt;
+            this.endAt[size] = endAt;
+            this.depth[size] = depth;
+            this.classProbs[size] = classProbs;
+            this.hist[size] = hist;
+            size++;
+        }
+
+        /**
+         * @return the node on the top of the stack, its parameters are in popped* fields
+         */
+        FasterTreeTrainable pop() {
+            size--;
+            FasterTreeTrainable res = nodes[size];
+            poppedStartAt = startAt[size];
+            poppedEndAt = endAt[size];
+            poppedDepth = depth[size];
+            poppedClassProbs = classProbs[size];
+            poppedHist = hist[size];
+            nodes[size] = null;  // to allow gc
+            classProbs[size] = null;
+            hist[size] = null;
+            return res;
+        }
+
+        /**
+         * Waits for the subtrees built in ForkJoin tasks, builds the deferred ones.
+         */
+        void joinForked() {
+            for (int i = forked.size() - 1; i >= 0; i--) {
+                forked.get(i).join();
+            }
+            forked.clear();
+            for (int i = 0; i < deferred.size(); i++) {
+                deferred.get(i).run();
+            }
+            deferred.clear();
+        }
+
+    }
+
 }
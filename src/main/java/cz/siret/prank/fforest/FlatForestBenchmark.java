@@ -0,0 +1,190 @@
+package cz.siret.prank.fforest;
+
+import cz.siret.prank.fforest.api.BinaryForest;
+import cz.siret.prank.fforest.api.FlatBinaryForest;
+import cz.siret.prank.fforest.api.FlatBinaryForestFile;
+import cz.siret.prank.fforest.api.ForestCompiler;
+import cz.siret.prank.fforest.api.FlatBinaryForestBuilder;
+import cz.siret.prank.fforest.api.FlatBinaryForestBuilder.NodeLayout;
+import cz.siret.prank.fforest.api.PackedBinaryForestBuilder;
+import cz.siret.prank.fforest.api.QuantizedBinaryForest;
+import cz.siret.prank.fforest.api.QuantizedBinaryForestBuilder;
+import cz.siret.prank.fforest.api.ParallelBatchScorer;
+import cz.siret.prank.fforest.api.QuickScorerForestBuilder;
+import cz.siret.prank.ffutils.ATimer;
+import weka.core.Instances;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares inference speed of different flat representations of the same FasterForest.
+ *
+ * Command-line parameters: arff file, number of trees (default 100), max. depth
+ * (default 0 = unlimited), number of measured repetitions (default 10).
+ *
+ * Every variant first runs the same number of warm-up repetitions, so the JIT has compiled
+ * the traversal code before the measured runs.
+ *
+ * Then reports early exit savings of FlatBinaryForest.predictAbove() and rows/sec of
+ * ParallelBatchScorer in all modes for several batch sizes.
+ */
+public class FlatForestBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        Instances data = FastRfUtils.readInstances(args[0]);
+        int numTrees = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int maxDepth = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int reps = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        FasterForest ff = new FasterForest();
+        ff.setNumTrees(numTrees);
+        ff.setMaxDepth(maxDepth);
+        ff.setCalcOutOfBag(false);
+        ff.setComputeImportances(false);
+
+        ATimer timer = ATimer.startTimer();
+        ff.buildClassifier(data);
+        System.out.println("training: " + timer.getFormatted());
+
+        List<FasterTree> trees = ff.m_bagger.getClassifiersAsTrees();
+
+        Map<String, BinaryForest> variants = new LinkedHashMap<>();
+        for (NodeLayout layout : NodeLayout.values()) {
+            FlatBinaryForestBuilder builder = new FlatBinaryForestBuilder();
+            builder.setLayout(layout);
+            variants.put("flat-" + layout.name().toLowerCase(), builder.buildFromFasterTrees(trees));
+        }
+        variants.put("packed", new PackedBinaryForestBuilder().buildFromFasterTrees(trees));
+        variants.put("quickscorer", new QuickScorerForestBuilder().buildFromFasterTrees(trees));
+
+        FlatBinaryForest exact = ff.toFlatBinaryForest();
+        for (int leafBits : new int[] {8, 16}) {
+            QuantizedBinaryForestBuilder builder = new QuantizedBinaryForestBuilder();
+            builder.setLeafBits(leafBits);
+            QuantizedBinaryForest quantized = builder.buildFromFlatBinaryForest(exact);
+            variants.put("quantized-" + leafBits, quantized);
+
+            double[] error = QuantizedBinaryForestBuilder.measureError(exact, quantized, toRows(data));
+            System.out.printf(Locale.US, "quantized-%d: %d bytes (flat %d bytes, %.1fx smaller), max leaf error %.2e, max error %.2e, mean error %.2e%n",
+                    leafBits, quantized.getDataSizeBytes(), exact.getDataSizeBytes(),
+                    (double) exact.getDataSizeBytes() / quantized.getDataSizeBytes(), quantized.getMaxLeafError(), error[0], error[1]);
+        }
+
+        timer = ATimer.startTimer();
+        variants.put("compiled", new ForestCompiler().compile(trees));
+        System.out.println("compilation: " + timer.getTime() + " ms");
+
+        File modelFile = File.createTempFile("flat-forest", ".bin");
+        modelFile.deleteOnExit();
+        FlatBinaryForestFile.write(ff.toFlatBinaryForest(), modelFile);
+        timer = ATimer.startTimer();
+        variants.put("mapped", FlatBinaryForestFile.map(modelFile));
+        System.out.println("mapping " + modelFile.length() + " bytes: " + timer.getTime() + " ms");
+
+        double[][] rows = toRows(data);
+        double[] out = new double[rows.length];
+
+        System.out.printf("%d rows, %d trees, max depth %d%n", rows.length, numTrees, variants.values().iterator().next().getMaxDepth());
+        System.out.println("variant\tpredict ms\tpredictBatch ms\tchecksum");
+
+        for (Map.Entry<String, BinaryForest> variant : variants.entrySet()) {
+            BinaryForest forest = variant.getValue();
+
+            measureSingle(forest, rows, reps);  // warm-up
+            measureBatch(forest, rows, out, reps);
+
+            double checksum = 0;
+            for (int i = 0; i != rows.length; ++i) {
+                checksum += forest.predict(rows[i]);
+            }
+
+            System.out.printf(Locale.US, "%s\t%d\t%d\t%.6f%n", variant.getKey(),
+                    measureSingle(forest, rows, reps), measureBatch(forest, rows, out, reps), checksum);
+        }
+
+        System.out.println("threshold\tpredictAbove ms\tavg. trees evaluated\tfraction above");
+        FlatBinaryForest flat = ff.toFlatBinaryForest();
+        int[] treesEvaluated = new int[1];
+        for (double threshold : new double[] {0.1, 0.3, 0.5, 0.7}) {
+            long totalTrees = 0;
+            int above = 0;
+            for (int r = 0; r != 2 * reps; ++r) {
+                if (r == reps) {  // first half is warm-up
+                    timer = ATimer.startTimer();
+                    totalTrees = 0;
+                }
+                for (double[] row : rows) {
+                    if (flat.predictAbove(row, threshold, treesEvaluated)) {
+                        above++;
+                    }
+                    totalTrees += treesEvaluated[0];
+                }
+            }
+            System.out.printf(Locale.US, "%.1f\t%d\t%.1f\t%.3f%n", threshold, timer.getTime(),
+                    (double) totalTrees / (reps * rows.length), (double) above / (2 * reps * rows.length));
+        }
+
+        System.out.println("parallel mode\trows\trows/sec");
+        ParallelBatchScorer scorer = new ParallelBatchScorer(flat);
+        for (int batchSize : new int[] {16, 256, rows.length}) {
+            for (ParallelBatchScorer.Mode mode : ParallelBatchScorer.Mode.values()) {
+                scorer.setMode(mode);
+                double rowsPerSec = 0;
+                for (int r = 0; r != 2 * reps; ++r) {  // first half is warm-up
+                    double sum = 0;
+                    int n = 0;
+                    for (int from = 0; from + batchSize <= rows.length; from += batchSize) {
+                        scorer.predictBatch(rows, from, from + batchSize, out);
+                        sum += scorer.getLastRowsPerSecond();
+                        n++;
+                    }
+                    rowsPerSec = sum / n;
+                }
+                System.out.printf(Locale.US, "%s\t%d\t%.0f%n", mode == ParallelBatchScorer.Mode.AUTO ? "auto(" + scorer.getLastMode() + ")" : mode, batchSize, rowsPerSec);
+            }
+        }
+    }
+
+    private static double[][] toRows(Instances data) {
+        double[][] rows = new double[data.numInstances()][];
+        for (int i = 0; i != rows.length; ++i) {
+            rows[i] = data.instance(i).toDoubleArray();
+        }
+        return rows;
+    }
+
+    /**
+     * @return milliseconds spent calling predict() on all rows reps times
+     */
+    private static long measureSingle(BinaryForest forest, double[][] rows, int reps) {
+        double sink = 0;
+        ATimer timer = ATimer.startTimer();
+        for (int r = 0; r != reps; ++r) {
+            for (double[] row : rows) {
+                sink += forest.predict(row);
+            }
+        }
+        long time = timer.getTime();
+        if (sink == Double.MIN_VALUE) {
+            System.out.println(sink); // keep the result alive
+        }
+        return time;
+    }
+
+    /**
+     * @return milliseconds spent calling predictBatch() on all rows reps times
+     */
+    private static long measureBatch(BinaryForest forest, double[][] rows, double[] out, int reps) {
+        ATimer timer = ATimer.startTimer();
+        for (int r = 0; r != reps; ++r) {
+            forest.predictBatch(rows, out);
+        }
+        return timer.getTime();
+    }
+
+}
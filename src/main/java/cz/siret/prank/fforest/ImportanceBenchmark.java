@@ -0,0 +1,121 @@
+package cz.siret.prank.fforest;
+
+import cz.siret.prank.ffutils.ATimer;
+import weka.core.Instances;
+
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the time of computing permutation feature importances with a full
+ * out-of-bag pass per attribute (OutOfBagVotes) and with PermutationImportances,
+ * which re-evaluates only trees splitting on the randomized attribute, with
+ * attributes randomized in the data one by one and read through permutations
+ * (more attributes at once). Time of setting up the leaf cache is included in both.
+ *
+ * Command-line parameters: arff file, number of trees (default 100), number of
+ * features (default 0 = int(logM+1)), number of threads (default 0 = autodetect),
+ * number of histogram bins (default 0 = exact).
+ */
+public class ImportanceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        Instances data = FastRfUtils.readInstances(args[0]);
+        int numTrees = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int numFeatures = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int bins = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+
+        System.out.printf("%d instances, %d attributes, %d trees%n", data.numInstances(), data.numAttributes(), numTrees);
+
+        FasterForest ff = new FasterForest();
+        ff.setNumTrees(numTrees);
+        ff.setNumFeatures(numFeatures);
+        ff.setNumThreads(numThreads);
+        ff.setHistogramBins(bins);
+        ff.setCalcOutOfBag(false);
+        ff.setComputeImportances(false);
+        ff.buildClassifier(data);
+
+        FasterTree[] trees = ff.m_bagger.getClassifiersAsTrees().toArray(new FasterTree[0]);
+        DataCache myData = new DataCache(data, bins, threads);
+
+        // in-bag sets of the trees, drawn again from the seeds used by FastRfBagging
+        Random random = new Random(ff.getSeed());
+        int[] seeds = new int[numTrees];
+        for (int t = 0; t < numTrees; t++) {
+            seeds[t] = random.nextInt();
+        }
+        BitSet[] inBag = new BitSet[numTrees];
+        for (int t = 0; t < numTrees; t++) {
+            inBag[t] = myData.resample(myData.numInstances, new Random(seeds[t]), null).inBagAsBitSet();
+        }
+
+        ForkJoinPool threadPool = new ForkJoinPool(threads);
+        try {
+            ATimer timer = ATimer.startTimer();
+            OutOfBagVotes votes = new OutOfBagVotes(myData.numInstances, myData.numClasses);
+            votes.addTrees(trees, inBag, myData, threadPool);
+            double baseError = votes.error(myData);
+            double[] fullPass = new double[data.numAttributes()];
+            random = new Random(1);
+            for (int j = 0; j < data.numAttributes(); j++) {
+                if (j != data.classIndex()) {
+                    Object unscrambled = myData.scrambleAttribute(j, random);
+                    votes = new OutOfBagVotes(myData.numInstances, myData.numClasses);
+                    votes.addTrees(trees, inBag, myData, threadPool);
+                    fullPass[j] = votes.error(myData) - baseError;
+                    myData.restoreAttribute(j, unscrambled);
+                }
+            }
+            long fullPassTime = timer.getTime();
+
+            timer = ATimer.startTimer();
+            PermutationImportances importances = new PermutationImportances(numTrees, myData);
+            importances.setTrees(trees, inBag, threadPool);
+            baseError = importances.error();
+            long setupTime = timer.getTime();  // counted in both following methods
+            double[] affectedTrees = new double[data.numAttributes()];
+            random = new Random(1);
+            for (int j = 0; j < data.numAttributes(); j++) {
+                if (j != data.classIndex()) {
+                    Object unscrambled = myData.scrambleAttribute(j, random);
+                    affectedTrees[j] = importances.error(j, threadPool) - baseError;
+                    myData.restoreAttribute(j, unscrambled);
+                }
+            }
+            long affectedTreesTime = timer.getTime();
+
+            // attributes read through permutations, evaluated concurrently
+            timer = ATimer.startTimer();
+            int[] attributes = new int[data.numAttributes() - 1];
+            for (int j = 0, k = 0; j < data.numAttributes(); j++) {
+                if (j != data.classIndex()) {
+                    attributes[k++] = j;
+                }
+            }
+            double[] errors = importances.errors(attributes, new Random(1), threadPool);
+            long permutationsTime = setupTime + timer.getTime();
+
+            double maxDiff = 0;
+            for (int k = 0; k < attributes.length; k++) {
+                int j = attributes[k];
+                maxDiff = Math.max(maxDiff, Math.abs(fullPass[j] - affectedTrees[j]));
+                maxDiff = Math.max(maxDiff, Math.abs(fullPass[j] - (errors[k] - baseError)));
+            }
+
+            System.out.println("full pass ms\taffected trees ms\tspeedup\tpermutations ms\tspeedup\tmax. importance difference");
+            System.out.printf(Locale.US, "%d\t%d\t%.1f\t%d\t%.1f\t%g%n", fullPassTime, affectedTreesTime,
+                    (double) fullPassTime / Math.max(1, affectedTreesTime), permutationsTime,
+                    (double) fullPassTime / Math.max(1, permutationsTime), maxDiff);
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+}
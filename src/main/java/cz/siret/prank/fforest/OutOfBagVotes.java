@@ -0,0 +1,200 @@
+package cz.siret.prank.fforest;
+
+import weka.classifiers.Classifier;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Out-of-bag votes of a forest for all instances of the DataCache it was trained
+ * on, used to compute the OOB error (also when finding feature importances).
+ * Replaces one VotesCollectorDataCache task per instance.
+ *
+ * Instances are split into blocks that are processed by separate tasks. A task
+ * runs its out-of-bag instances through one tree after another, so that the tree
+ * and the vote rows of the block stay in cache. Each block owns its rows of the
+ * votes matrix, so the tasks need no synchronization and the votes of every
+ * instance are summed in the order of trees (the result does not depend on the
+ * number of threads).
+ *
+ * Alternatively, trees can be added one by one by more threads at once with
+ * addTreeConcurrently(), e.g. right after each of them is trained, so that their
+ * in-bag sets need not be kept.
+ */
+public class OutOfBagVotes {
+
+  /** Maximal number of instances processed by one task. */
+  static final int INSTANCE_BLOCK_SIZE = 4096;
+
+  protected final int numInstances;
+  protected final int numClasses;
+
+  /** Summed class distributions, numInstances x numClasses (row-major). */
+  protected final double[] votes;
+
+  /** Locks of the instance blocks, used by addTreeConcurrently(). */
+  protected final Object[] blockLocks;
+
+
+  public OutOfBagVotes(int numInstances, int numClasses) {
+    this.numInstances = numInstances;
+    this.numClasses = numClasses;
+    this.votes = new double[numInstances * numClasses];
+
+    int numBlocks = (numInstances + INSTANCE_BLOCK_SIZE - 1) / INSTANCE_BLOCK_SIZE;
+    this.blockLocks = new Object[numBlocks];
+    for (int b = 0; b < numBlocks; b++) {
+      blockLocks[b] = new Object();
+    }
+  }
+
+  /**
+   * Adds votes of a tree for its out-of-bag instances from a block.
+   *
+   * @param tree  the tree
+   * @param inBag in-bag instances of the tree
+   * @param from  first instance of the block
+   * @param to    end of the block (exclusive)
+   */
+  public void addTree(FasterTree tree, BitSet inBag, DataCache data, int from, int to) {
+
+    double[] votes = this.votes;
+    int numClasses = this.numClasses;
+    boolean binned = data.isBinned();
+
+    for (int i = inBag.nextClearBit(from); i < to; i = inBag.nextClearBit(i + 1)) {
+      double[] dist;
+      if (binned) {
+        dist = tree.distributionForInstanceInBins(data, i);
+      } else {
+        dist = tree.distributionForInstanceInDataCache(data.vals, i);
+      }
+      int row = i * numClasses;
+      for (int c = 0; c < numClasses; c++) {
+        votes[row + c] += dist[c];
+      }
+    }
+
+  }
+
+  /**
+   * Adds votes of a tree for all its out-of-bag instances. Can be called from more
+   * threads at once, each block of instances is updated under its own lock.
+   * Votes of an instance are then summed in the order in which the trees were added.
+   *
+   * @param tree       the tree
+   * @param inBag      in-bag instances of the tree (DataCache.inBag of its bootstrap sample)
+   * @param data       the DataCache the forest is trained on
+   * @param firstBlock block to start with (e.g. the index of the tree), so that threads
+   *                   adding different trees don't queue for the same lock
+   */
+  public void addTreeConcurrently(FasterTree tree, boolean[] inBag, DataCache data, int firstBlock) {
+
+    double[] votes = this.votes;
+    int numClasses = this.numClasses;
+    boolean binned = data.isBinned();
+    int numBlocks = blockLocks.length;
+
+    for (int k = 0; k < numBlocks; k++) {
+      int b = (firstBlock + k) % numBlocks;
+      int from = b * INSTANCE_BLOCK_SIZE;
+      int to = Math.min(numInstances, from + INSTANCE_BLOCK_SIZE);
+
+      synchronized (blockLocks[b]) {
+        for (int i = from; i < to; i++) {
+          if (inBag[i]) {
+            continue;
+          }
+          double[] dist;
+          if (binned) {
+            dist = tree.distributionForInstanceInBins(data, i);
+          } else {
+            dist = tree.distributionForInstanceInDataCache(data.vals, i);
+          }
+          int row = i * numClasses;
+          for (int c = 0; c < numClasses; c++) {
+            votes[row + c] += dist[c];
+          }
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Adds votes of all trees for their out-of-bag instances, in parallel.
+   *
+   * @param trees FasterTrees
+   * @param inBag in-bag instances of each tree, the rest is out-of-bag
+   */
+  public void addTrees(final Classifier[] trees, final BitSet[] inBag, final DataCache data,
+                       ForkJoinPool threadPool) throws InterruptedException, ExecutionException {
+
+    for (Classifier tree : trees) {
+      if (!(tree instanceof FasterTree))
+        throw new IllegalArgumentException("Only FasterTree accepted in the OutOfBagVotes.");
+    }
+
+    // at least one block per thread, even for small data
+    int parallelism = threadPool.getParallelism();
+    int blockSize = Math.min(INSTANCE_BLOCK_SIZE, (numInstances + parallelism - 1) / parallelism);
+    blockSize = Math.max(blockSize, 64);
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (int start = 0; start < numInstances; start += blockSize) {
+      final int from = start;
+      final int to = Math.min(numInstances, start + blockSize);
+      futures.add(threadPool.submit((Callable<Void>) () -> {
+        for (int t = 0; t < trees.length; t++) {
+          addTree((FasterTree) trees[t], inBag[t], data, from, to);
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+  }
+
+  /**
+   * @return index of the class with the most votes (the first one on ties, as
+   * weka.core.Utils.maxIndex())
+   */
+  public int vote(int instIdx) {
+    int row = instIdx * numClasses;
+    int res = 0;
+    for (int c = 1; c < numClasses; c++) {
+      if (votes[row + c] > votes[row + res]) {
+        res = c;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return weighted error of the votes (all instances count, also those
+   * without any vote)
+   */
+  public double error(DataCache data) {
+
+    double outOfBagCount = 0.0;
+    double errorSum = 0.0;
+
+    for (int i = 0; i < numInstances; i++) {
+      outOfBagCount += data.instWeights[i];
+      if (vote(i) != data.instClassValues[i]) {
+        errorSum += data.instWeights[i];
+      }
+    }
+
+    return errorSum / outOfBagCount;
+
+  }
+
+}
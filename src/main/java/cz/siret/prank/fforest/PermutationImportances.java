@@ -0,0 +1,632 @@
+package cz.siret.prank.fforest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Out-of-bag error of a forest with one attribute randomized, used for permutation
+ * feature importances. Replaces a full out-of-bag pass (OutOfBagVotes) per attribute.
+ *
+ * Trees are copied to arrays in pre-order (so that every subtree is a range of nodes)
+ * and the leaf reached by each of their out-of-bag instances is cached once. When an
+ * attribute is randomized, only trees that split on it are evaluated again, and only
+ * for instances whose cached leaf lies under a node splitting on the attribute;
+ * those are traversed from that node. Class sums of the affected instances are then
+ * updated by their changed leaves. When the update leaves a vote within rounding error
+ * of a tie, it is summed again from the cached leaves of all trees in the order of
+ * trees, so the error is the same as from a full pass over the randomized data.
+ *
+ * For each tree, the leaf cache keeps only its out-of-bag instances (about 37% of
+ * instances with bootstrap): an int index of the instance and a char leaf id (an int
+ * for trees of more than 65536 nodes), i.e. 6 bytes per out-of-bag instance and tree.
+ *
+ * With errors(), attributes are not randomized in the data but read through
+ * permutations of instances, so that more attributes can be evaluated at once.
+ */
+public class PermutationImportances {
+
+  /** Maximal number of instances processed by one task. */
+  static final int INSTANCE_BLOCK_SIZE = OutOfBagVotes.INSTANCE_BLOCK_SIZE;
+
+  /**
+   * A tree copied to arrays in pre-order; the left child of an inner node n is n + 1.
+   */
+  static final class Tree {
+
+    /** Split attribute, -1 for leaves. */
+    final int[] attribute;
+    final double[] splitPoint;
+    /** Right child of inner nodes. */
+    final int[] right;
+    /** End (exclusive) of the subtree of a node. */
+    final int[] end;
+    /** Class distributions of leaves. */
+    final double[][] classProbs;
+    /** Attributes the tree splits on. */
+    final BitSet usedAttributes = new BitSet();
+
+    /** Out-of-bag instances of the tree, ascending. */
+    int[] oobInstances;
+    /** Leaf reached by each out-of-bag instance, null if the tree has more than 65536 nodes. */
+    char[] charLeaves;
+    /** Leaf reached by each out-of-bag instance, if charLeaves is null. */
+    int[] intLeaves;
+
+    Tree(FasterTree root) {
+      int numNodes = root.numNodes();
+      attribute = new int[numNodes];
+      splitPoint = new double[numNodes];
+      right = new int[numNodes];
+      end = new int[numNodes];
+      classProbs = new double[numNodes][];
+
+      // nodes are numbered as they are popped; right child is pushed first, so the
+      // left one gets the next number and sets the right child number of its parent later
+      ArrayDeque<FasterTree> stack = new ArrayDeque<>();
+      int[] parents = new int[numNodes];
+      int stackSize = 0;
+      stack.push(root);
+      parents[stackSize++] = -1;
+      int n = 0;
+      while (!stack.isEmpty()) {
+        FasterTree node = stack.pop();
+        int parent = parents[--stackSize];
+        if (parent >= 0 && n != parent + 1) {
+          right[parent] = n;
+        }
+        attribute[n] = node.m_Attribute;
+        splitPoint[n] = node.m_SplitPoint;
+        if (node.m_Attribute == -1) {
+          classProbs[n] = node.m_ClassProbs;
+        } else {
+          usedAttributes.set(node.m_Attribute);
+          stack.push(node.sucessorRight);
+          parents[stackSize++] = n;
+          stack.push(node.sucessorLeft);
+          parents[stackSize++] = n;
+        }
+        n++;
+      }
+
+      for (n = numNodes - 1; n >= 0; n--) {
+        end[n] = attribute[n] == -1 ? n + 1 : end[right[n]];
+      }
+    }
+
+    /**
+     * Topmost nodes splitting on an attribute, as ranges of their subtrees
+     * (ascending starts).
+     */
+    int[][] subtreesSplittingOn(int attIndex) {
+      int[] starts = new int[8];
+      int[] ends = new int[8];
+      int count = 0;
+      for (int n = 0; n < attribute.length; ) {
+        if (attribute[n] == attIndex) {
+          if (count == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * count);
+            ends = Arrays.copyOf(ends, 2 * count);
+          }
+          starts[count] = n;
+          ends[count] = end[n];
+          count++;
+          n = end[n];
+        } else {
+          n++;
+        }
+      }
+      return new int[][] {Arrays.copyOf(starts, count), Arrays.copyOf(ends, count)};
+    }
+
+    /**
+     * @return leaf reached by the k-th out-of-bag instance
+     */
+    int leaf(int k) {
+      return charLeaves != null ? charLeaves[k] : intLeaves[k];
+    }
+
+    /**
+     * @return position in oobInstances of the first out-of-bag instance not below instIdx
+     */
+    int firstOutOfBag(int instIdx) {
+      int k = Arrays.binarySearch(oobInstances, instIdx);
+      return k >= 0 ? k : -k - 1;
+    }
+  }
+
+
+  protected final int numInstances;
+  protected final int numClasses;
+
+  /** Attribute values, null if binned. */
+  protected final float[][] vals;
+  /** Binned data, null if not binned. */
+  protected final DataCache binnedData;
+
+  protected final int[] classValues;
+  protected final double[] weights;
+
+  protected final Tree[] trees;
+
+  /** Classes voted for by the forest with no attribute randomized. */
+  protected int[] baseVotes;
+  /** Sums of class distributions of the forest with no attribute randomized, by instance and class. */
+  protected double[] baseSums;
+  /**
+   * Bound of the difference between sums updated by changed leaves and sums from all
+   * trees in the order of trees; votes with a smaller margin are summed again.
+   */
+  protected double tieMargin;
+
+
+  /**
+   * @param numTrees number of trees, set by setTree()
+   * @param data     the DataCache the forest was trained on
+   */
+  public PermutationImportances(int numTrees, DataCache data) {
+    this.numInstances = data.numInstances;
+    this.numClasses = data.numClasses;
+    this.vals = data.isBinned() ? null : data.vals;
+    this.binnedData = data.isBinned() ? data : null;
+    this.classValues = data.instClassValues;
+    this.weights = data.instWeights;
+    this.trees = new Tree[numTrees];
+  }
+
+  /**
+   * @param numTrees    number of trees, set by setTree()
+   * @param vals        attribute values of the training data, by attribute; an attribute
+   *                    is randomized by changing the values in its column
+   * @param classValues class of each instance
+   * @param weights     weight of each instance
+   * @param numClasses  number of classes
+   */
+  public PermutationImportances(int numTrees, float[][] vals, int[] classValues, double[] weights,
+                                int numClasses) {
+    this.numInstances = classValues.length;
+    this.numClasses = numClasses;
+    this.vals = vals;
+    this.binnedData = null;
+    this.classValues = classValues;
+    this.weights = weights;
+    this.trees = new Tree[numTrees];
+  }
+
+  /**
+   * Copies a tree and caches leaves of its out-of-bag instances. Can be called
+   * from more threads at once for different trees, before any attribute is randomized.
+   *
+   * @param inBag in-bag instances of the tree, the rest is out-of-bag
+   */
+  public void setTree(int treeIdx, FasterTree tree, BitSet inBag) {
+    Tree res = new Tree(tree);
+
+    int numOutOfBag = 0;
+    for (int i = inBag.nextClearBit(0); i < numInstances; i = inBag.nextClearBit(i + 1)) {
+      numOutOfBag++;
+    }
+    int[] oobInstances = new int[numOutOfBag];
+    int k = 0;
+    for (int i = inBag.nextClearBit(0); i < numInstances; i = inBag.nextClearBit(i + 1)) {
+      oobInstances[k++] = i;
+    }
+    res.oobInstances = oobInstances;
+
+    if (res.attribute.length <= Character.MAX_VALUE + 1) {
+      char[] leaves = new char[numOutOfBag];
+      for (k = 0; k < numOutOfBag; k++) {
+        leaves[k] = (char) descend(res, 0, oobInstances[k]);
+      }
+      res.charLeaves = leaves;
+    } else {
+      int[] leaves = new int[numOutOfBag];
+      for (k = 0; k < numOutOfBag; k++) {
+        leaves[k] = descend(res, 0, oobInstances[k]);
+      }
+      res.intLeaves = leaves;
+    }
+
+    trees[treeIdx] = res;
+    baseVotes = null;
+  }
+
+  /**
+   * Calls setTree() for all trees, in parallel.
+   *
+   * @param trees FasterTrees
+   * @param inBag in-bag instances of each tree, the rest is out-of-bag
+   */
+  public void setTrees(final FasterTree[] trees, final BitSet[] inBag, ForkJoinPool threadPool)
+    throws InterruptedException, ExecutionException {
+
+    List<Future<?>> futures = new ArrayList<>(trees.length);
+    for (int t = 0; t < trees.length; t++) {
+      final int treeIdx = t;
+      futures.add(threadPool.submit((Callable<Void>) () -> {
+        setTree(treeIdx, trees[treeIdx], inBag[treeIdx]);
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+
+  /**
+   * @return leaf reached from the given node by an instance
+   */
+  private int descend(Tree tree, int node, int instIdx) {
+    int[] attribute = tree.attribute;
+    double[] splitPoint = tree.splitPoint;
+    int n = node;
+    if (binnedData != null) {
+      while (attribute[n] != -1) {
+        n = binnedData.isBinnedValueBelow(attribute[n], instIdx, splitPoint[n]) ? n + 1 : tree.right[n];
+      }
+    } else {
+      float[][] vals = this.vals;
+      while (attribute[n] != -1) {
+        n = vals[attribute[n]][instIdx] < splitPoint[n] ? n + 1 : tree.right[n];
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Same as descend(), but values of attribute permAtt are taken from instance perm[instIdx].
+   */
+  private int descend(Tree tree, int node, int instIdx, int permAtt, int[] perm) {
+    int[] attribute = tree.attribute;
+    double[] splitPoint = tree.splitPoint;
+    int n = node;
+    if (binnedData != null) {
+      while (attribute[n] != -1) {
+        int idx = attribute[n] == permAtt ? perm[instIdx] : instIdx;
+        n = binnedData.isBinnedValueBelow(attribute[n], idx, splitPoint[n]) ? n + 1 : tree.right[n];
+      }
+    } else {
+      float[][] vals = this.vals;
+      while (attribute[n] != -1) {
+        int idx = attribute[n] == permAtt ? perm[instIdx] : instIdx;
+        n = vals[attribute[n]][idx] < splitPoint[n] ? n + 1 : tree.right[n];
+      }
+    }
+    return n;
+  }
+
+  /**
+   * @param cursors   position in oobInstances of each tree, not past instIdx; moved to
+   *                  the first out-of-bag instance not below instIdx, so instances must
+   *                  be voted for in ascending order
+   * @param newLeaves leaves to use instead of the cached ones for some trees (-1 = cached),
+   *                  indexed by tree, then by instance from blockStart; may be null
+   * @return class voted for by the forest for an instance, from the cached leaves
+   */
+  private int vote(int instIdx, int[] cursors, int[][] newLeaves, int blockStart, double[] sums) {
+    Arrays.fill(sums, 0d);
+    for (int t = 0; t < trees.length; t++) {
+      Tree tree = trees[t];
+      int[] oobInstances = tree.oobInstances;
+      int k = cursors[t];
+      while (k < oobInstances.length && oobInstances[k] < instIdx) {
+        k++;
+      }
+      cursors[t] = k;
+      if (k == oobInstances.length || oobInstances[k] != instIdx) {
+        continue;  // in-bag
+      }
+      int leaf = tree.leaf(k);
+      if (newLeaves != null && newLeaves[t] != null && newLeaves[t][instIdx - blockStart] >= 0) {
+        leaf = newLeaves[t][instIdx - blockStart];
+      }
+      double[] dist = tree.classProbs[leaf];
+      for (int c = 0; c < numClasses; c++) {
+        sums[c] += dist[c];
+      }
+    }
+
+    // the first one on ties, as weka.core.Utils.maxIndex()
+    int res = 0;
+    for (int c = 1; c < numClasses; c++) {
+      if (sums[c] > sums[res]) {
+        res = c;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return weighted error of the votes (all instances count, also those without any vote)
+   */
+  private double error(int[] votes) {
+    double outOfBagCount = 0.0;
+    double errorSum = 0.0;
+    for (int i = 0; i < numInstances; i++) {
+      outOfBagCount += weights[i];
+      if (votes[i] != classValues[i]) {
+        errorSum += weights[i];
+      }
+    }
+    return errorSum / outOfBagCount;
+  }
+
+  private int[] computeBaseVotes() {
+    int[] res = new int[numInstances];
+    baseSums = new double[numInstances * numClasses];
+    int[] cursors = new int[trees.length];
+    double[] sums = new double[numClasses];
+    for (int i = 0; i < numInstances; i++) {
+      res[i] = vote(i, cursors, null, 0, sums);
+      System.arraycopy(sums, 0, baseSums, i * numClasses, numClasses);
+    }
+
+    // all partial sums are below the sum of the largest leaf values of the trees; each of the
+    // at most 3 * numTrees additions of an updated sum and numTrees of an exact sum is off by
+    // half an ulp of that at most
+    double maxSum = 0;
+    for (Tree tree : trees) {
+      double max = 0;
+      for (double[] dist : tree.classProbs) {
+        if (dist != null) {
+          for (double p : dist) {
+            max = Math.max(max, Math.abs(p));
+          }
+        }
+      }
+      maxSum += max;
+    }
+    tieMargin = 4 * trees.length * Math.ulp(maxSum);
+
+    return res;
+  }
+
+  /**
+   * @return class with the largest sum (the first one on ties), or -1 if another one
+   * is within tieMargin
+   */
+  private int clearVote(double[] sums, int offset) {
+    int res = 0;
+    for (int c = 1; c < numClasses; c++) {
+      if (sums[offset + c] > sums[offset + res]) {
+        res = c;
+      }
+    }
+    for (int c = 0; c < numClasses; c++) {
+      if (c != res && sums[offset + res] - sums[offset + c] <= tieMargin) {
+        return -1;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return out-of-bag error of the forest with no attribute randomized
+   */
+  public double error() {
+    if (baseVotes == null) {
+      baseVotes = computeBaseVotes();
+    }
+    return error(baseVotes);
+  }
+
+  /**
+   * Out-of-bag error of the forest on the current data, where values of only the given
+   * attribute differ from the data the leaves were cached on.
+   *
+   * @param attIndex the randomized attribute
+   */
+  public double error(final int attIndex, ForkJoinPool threadPool) throws InterruptedException, ExecutionException {
+
+    if (baseVotes == null) {
+      baseVotes = computeBaseVotes();
+    }
+
+    // subtrees of nodes splitting on the attribute, null for trees that don't use it
+    final int[][][] subtrees = subtreesSplittingOn(attIndex);
+
+    final int[] votes = baseVotes.clone();
+
+    int parallelism = threadPool.getParallelism();
+    int blockSize = Math.min(INSTANCE_BLOCK_SIZE, (numInstances + parallelism - 1) / parallelism);
+    blockSize = Math.max(blockSize, 64);
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (int start = 0; start < numInstances; start += blockSize) {
+      final int from = start;
+      final int to = Math.min(numInstances, start + blockSize);
+      futures.add(threadPool.submit((Callable<Void>) () -> {
+        revote(subtrees, from, to, votes, -1, null);
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    return error(votes);
+  }
+
+  /**
+   * Out-of-bag errors of the forest with each of the given attributes randomized.
+   * The data are not changed: values of a randomized attribute are read through
+   * a permutation of instances, so that blocks of instances of more attributes
+   * can be evaluated at once.
+   *
+   * Permutations are the same as DataCache.scrambleAttribute() would make, if
+   * called for the attributes in the given order with the same random.
+   * Permutations of up to the parallelism of the pool of attributes are kept at once.
+   *
+   * @param attributes the attributes to randomize, one at a time
+   * @return error for each of the attributes
+   */
+  public double[] errors(int[] attributes, Random random, ForkJoinPool threadPool)
+    throws InterruptedException, ExecutionException {
+
+    if (baseVotes == null) {
+      baseVotes = computeBaseVotes();
+    }
+
+    double outOfBagCount = 0.0;
+    for (int i = 0; i < numInstances; i++) {
+      outOfBagCount += weights[i];
+    }
+
+    int parallelism = threadPool.getParallelism();
+    int blockSize = Math.min(INSTANCE_BLOCK_SIZE, (numInstances + parallelism - 1) / parallelism);
+    blockSize = Math.max(blockSize, 64);
+    int numBlocks = (numInstances + blockSize - 1) / blockSize;
+
+    int groupSize = Math.min(attributes.length, parallelism);
+    int[][] perms = new int[groupSize][numInstances];
+
+    double[] res = new double[attributes.length];
+    for (int group = 0; group < attributes.length; group += groupSize) {
+      int groupEnd = Math.min(attributes.length, group + groupSize);
+
+      List<Future<Double>> futures = new ArrayList<>((groupEnd - group) * numBlocks);
+      for (int k = group; k < groupEnd; k++) {
+        final int attIndex = attributes[k];
+        final int[] perm = perms[k - group];
+        scramblePermutation(perm, random);
+        final int[][][] subtrees = subtreesSplittingOn(attIndex);
+
+        for (int start = 0; start < numInstances; start += blockSize) {
+          final int from = start;
+          final int to = Math.min(numInstances, start + blockSize);
+          futures.add(threadPool.submit(() -> revote(subtrees, from, to, null, attIndex, perm)));
+        }
+      }
+
+      int f = 0;
+      for (int k = group; k < groupEnd; k++) {
+        double errorSum = 0.0;
+        for (int b = 0; b < numBlocks; b++) {
+          errorSum += futures.get(f++).get();
+        }
+        res[k] = errorSum / outOfBagCount;
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * Fills perm with the permutation of instances made by DataCache.scrambleAttribute():
+   * the randomized value of instance i is the original value of instance perm[i].
+   */
+  static void scramblePermutation(int[] perm, Random random) {
+    for (int i = 0; i < perm.length; i++) {
+      perm[i] = i;
+    }
+    for (int i = 0; i < perm.length; i++) {
+      int swapWith = random.nextInt(perm.length);
+      int temp = perm[i];
+      perm[i] = perm[swapWith];
+      perm[swapWith] = temp;
+    }
+  }
+
+  /**
+   * @return subtrees of the topmost nodes splitting on the attribute by tree, null for
+   * trees that don't use it (see Tree.subtreesSplittingOn())
+   */
+  private int[][][] subtreesSplittingOn(int attIndex) {
+    int[][][] res = new int[trees.length][][];
+    for (int t = 0; t < trees.length; t++) {
+      if (trees[t].usedAttributes.get(attIndex)) {
+        res[t] = trees[t].subtreesSplittingOn(attIndex);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Evaluates affected trees for a block of instances and votes again for instances
+   * that reached a different leaf in any of them. Base sums of such instances are
+   * updated by the changed leaves; only votes too close to a tie to be decided that way
+   * are summed again from all trees in the order of trees, as in a full pass.
+   *
+   * @param votes   receives the new votes if not null
+   * @param permAtt attribute read through perm, -1 if the attribute is randomized in the data
+   * @param perm    permutation of instances for permAtt, or null
+   * @return weighted error sum of the block
+   */
+  private double revote(int[][][] subtrees, int from, int to, int[] votes, int permAtt, int[] perm) {
+
+    int[][] newLeaves = new int[trees.length][];
+    boolean[] changed = new boolean[to - from];
+    double[] blockSums = Arrays.copyOfRange(baseSums, from * numClasses, to * numClasses);
+
+    for (int t = 0; t < trees.length; t++) {
+      if (subtrees[t] == null) {
+        continue;
+      }
+      Tree tree = trees[t];
+      int[] starts = subtrees[t][0];
+      int[] ends = subtrees[t][1];
+      int[] oobInstances = tree.oobInstances;
+
+      for (int k = tree.firstOutOfBag(from); k < oobInstances.length && oobInstances[k] < to; k++) {
+        int i = oobInstances[k];
+        int leaf = tree.leaf(k);
+        // the last subtree starting before the leaf
+        int s = Arrays.binarySearch(starts, leaf);
+        if (s < 0) {
+          s = -s - 2;
+          if (s < 0 || leaf >= ends[s]) {
+            continue;  // path of the instance doesn't split on the attribute
+          }
+        }
+
+        int newLeaf = perm == null ? descend(tree, starts[s], i) : descend(tree, starts[s], i, permAtt, perm);
+        if (newLeaf != leaf) {
+          if (newLeaves[t] == null) {
+            newLeaves[t] = new int[to - from];
+            Arrays.fill(newLeaves[t], -1);
+          }
+          newLeaves[t][i - from] = newLeaf;
+          changed[i - from] = true;
+          double[] oldDist = tree.classProbs[leaf];
+          double[] newDist = tree.classProbs[newLeaf];
+          int offset = (i - from) * numClasses;
+          for (int c = 0; c < numClasses; c++) {
+            blockSums[offset + c] += newDist[c] - oldDist[c];
+          }
+        }
+      }
+    }
+
+    int[] cursors = new int[trees.length];
+    for (int t = 0; t < trees.length; t++) {
+      cursors[t] = trees[t].firstOutOfBag(from);
+    }
+
+    double errorSum = 0.0;
+    double[] sums = new double[numClasses];
+    for (int i = from; i < to; i++) {
+      int vote = baseVotes[i];
+      if (changed[i - from]) {
+        vote = clearVote(blockSums, (i - from) * numClasses);
+        if (vote < 0) {
+          vote = vote(i, cursors, newLeaves, from, sums);
+        }
+      }
+      if (votes != null) {
+        votes[i] = vote;
+      }
+      if (vote != classValues[i]) {
+        errorSum += weights[i];
+      }
+    }
+    return errorSum;
+  }
+
+}
@@ -0,0 +1,97 @@
+package cz.siret.prank.fforest;
+
+import java.util.ArrayDeque;
+
+/**
+ * Temporary arrays used while training a tree by FasterTreeTrainable. The arena
+ * is kept by the bootstrap sample (DataCache.arena) and so re-used by all trees a
+ * thread trains one after another (see DataCache.resample()); nodes only take
+ * arrays from it and give them back, so training a tree allocates (almost) only
+ * the tree itself, i.e. its nodes and class distributions of its leaves.
+ *
+ * Used by one thread at a time; subtrees built in separate ForkJoin tasks get an
+ * arena of their own.
+ */
+class TrainingArena {
+
+    final int numClasses;
+
+    /** see FasterTreeTrainable.tempProps */
+    final double[] tempProps = new double[2];
+
+    /** see FasterTreeTrainable.tempDists */
+    final double[][] tempDists;
+    final double[][] tempDistsOther;
+
+    /** props of the best split of the node being built */
+    final double[] nodeProps = new double[2];
+
+    /** dists of the best split of the node being built, rows are class distributions taken by takeNodeDists() */
+    final double[][] nodeDists = new double[2][];
+
+    /** nodes waiting to be built */
+    final FasterTreeTrainable.SubtreeStack stack = new FasterTreeTrainable.SubtreeStack();
+
+    /** class distributions of nodes that are no longer needed (split nodes keep only the attribute and split point) */
+    private final ArrayDeque<double[]> classDistPool = new ArrayDeque<>();
+
+    /** see FasterTreeTrainable.tempIndices; numInstances long, allocated by the first tree */
+    int[] tempIndices;
+
+    /** attribute window of the root */
+    int[] attIndicesWindow;
+
+    /** histogram mode: in-bag instances, only the first numInBag are valid */
+    int[] inBagIndices;
+
+    /** histogram mode: see FasterTreeTrainable.tempHist */
+    double[] tempHist;
+
+    /** histogram mode: see FasterTreeTrainable.histPool */
+    final ArrayDeque<double[][]> histPool = new ArrayDeque<>();
+
+
+    TrainingArena(int numClasses) {
+        this.numClasses = numClasses;
+        tempDists = new double[2][numClasses];
+        tempDistsOther = new double[2][numClasses];
+    }
+
+    /**
+     * @return class distribution filled with zeros
+     */
+    double[] takeClassDist() {
+        double[] res = classDistPool.poll();
+        if (res == null) {
+            return new double[numClasses];
+        }
+        for (int c = 0; c < numClasses; c++) {
+            res[c] = 0;
+        }
+        return res;
+    }
+
+    void releaseClassDist(double[] dist) {
+        classDistPool.push(dist);
+    }
+
+    /**
+     * @return nodeDists with new zero class distributions in both rows
+     */
+    double[][] takeNodeDists() {
+        nodeDists[0] = takeClassDist();
+        nodeDists[1] = takeClassDist();
+        return nodeDists;
+    }
+
+    /**
+     * Gives back both rows of nodeDists, when the node didn't pass them to its children.
+     */
+    void releaseNodeDists() {
+        releaseClassDist(nodeDists[0]);
+        releaseClassDist(nodeDists[1]);
+        nodeDists[0] = null;
+        nodeDists[1] = null;
+    }
+
+}
@@ -0,0 +1,93 @@
+package cz.siret.prank.fforest;
+
+import cz.siret.prank.ffutils.ATimer;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * Compares training time, peak heap and training accuracy of FasterForest
+ * with exact split search and with histogram-based split search.
+ *
+ * Command-line parameters: arff file, number of trees (default 100), number of
+ * features (default 0 = int(logM+1)), number of threads (default 0 = autodetect),
+ * number of measured repetitions (default 3).
+ *
+ * Peak heap is measured as the sum of peak usage of heap memory pools (after a GC
+ * before each run), so it is only a rough estimate; run with a small -Xmn to make it
+ * more precise.
+ */
+public class TrainingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        Instances data = FastRfUtils.readInstances(args[0]);
+        int numTrees = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int numFeatures = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int reps = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        System.out.printf("%d instances, %d attributes, %d trees%n", data.numInstances(), data.numAttributes(), numTrees);
+        System.out.println("bins\ttraining ms\tpeak heap MB\ttraining accuracy");
+
+        for (int bins : new int[] {0, 256, 64}) {
+            FasterForest ff = null;
+            long time = 0;
+            long peakHeap = 0;
+            for (int r = 0; r != reps + 1; ++r) {  // first run is warm-up
+                ff = new FasterForest();
+                ff.setNumTrees(numTrees);
+                ff.setNumFeatures(numFeatures);
+                ff.setNumThreads(numThreads);
+                ff.setHistogramBins(bins);
+                ff.setCalcOutOfBag(false);
+                ff.setComputeImportances(false);
+
+                resetPeakHeap();
+                ATimer timer = ATimer.startTimer();
+                ff.buildClassifier(data);
+                if (r > 0) {
+                    time += timer.getTime();
+                    peakHeap = Math.max(peakHeap, getPeakHeap());
+                }
+            }
+
+            System.out.printf(Locale.US, "%s\t%d\t%.1f\t%.4f%n", bins == 0 ? "exact" : bins, time / reps,
+                    peakHeap / 1e6, trainingAccuracy(ff, data));
+        }
+    }
+
+    private static double trainingAccuracy(FasterForest ff, Instances data) throws Exception {
+        int correct = 0;
+        for (Instance inst : data) {
+            if (ff.classifyInstance(inst) == inst.classValue()) {
+                correct++;
+            }
+        }
+        return (double) correct / data.numInstances();
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long res = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                res += pool.getPeakUsage().getUsed();
+            }
+        }
+        return res;
+    }
+
+}
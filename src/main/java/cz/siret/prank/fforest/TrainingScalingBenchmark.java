@@ -0,0 +1,89 @@
+package cz.siret.prank.fforest;
+
+import cz.siret.prank.fforest2.FasterForest2;
+import cz.siret.prank.ffutils.ATimer;
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instances;
+
+import java.util.Locale;
+
+/**
+ * Measures how training time of FasterForest and FasterForest2 scales with the number
+ * of threads, with trees as the only unit of parallel work (subtree tasks and parallel
+ * split search disabled) and with large subtrees built in separate ForkJoin tasks that
+ * idle threads can take over.
+ *
+ * Command-line parameters: arff file, number of trees (default 100), comma separated list
+ * of numbers of threads (default "1,2,4,8"), number of measured repetitions (default 3),
+ * threshold for subtree tasks (default 10000, FasterForest default is 0; see FasterForest.setForkSubtreesThreshold()).
+ *
+ * Speedup is relative to the first number of threads with the same mode. It is most visible
+ * when the number of trees is not much larger than the number of threads.
+ */
+public class TrainingScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        Instances data = FastRfUtils.readInstances(args[0]);
+        int numTrees = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        String[] threadNums = (args.length > 2 ? args[2] : "1,2,4,8").split(",");
+        int reps = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        int forkThreshold = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+
+        System.out.printf("%d instances, %d attributes, %d trees, %d available processors%n", data.numInstances(),
+                data.numAttributes(), numTrees, Runtime.getRuntime().availableProcessors());
+        for (String threads : threadNums) {
+            if (Integer.parseInt(threads) > Runtime.getRuntime().availableProcessors()) {
+                System.out.println("warning: " + threads + " threads on fewer processors, speedup is not meaningful");
+            }
+        }
+        System.out.println("classifier\tsubtree tasks\tthreads\ttraining ms\tspeedup");
+
+        for (boolean ff2 : new boolean[] {false, true}) {
+            for (boolean subtreeTasks : new boolean[] {false, true}) {
+                long baseTime = 0;
+                for (String threads : threadNums) {
+                    long time = 0;
+                    for (int r = 0; r != reps + 1; ++r) {  // first run is warm-up
+                        AbstractClassifier classifier = createClassifier(ff2, numTrees, Integer.parseInt(threads),
+                                subtreeTasks ? forkThreshold : 0);
+                        ATimer timer = ATimer.startTimer();
+                        classifier.buildClassifier(data);
+                        if (r > 0) {
+                            time += timer.getTime();
+                        }
+                    }
+                    time /= reps;
+                    if (baseTime == 0) {
+                        baseTime = Math.max(1, time);
+                    }
+
+                    System.out.printf(Locale.US, "%s\t%s\t%s\t%d\t%.2f%n", ff2 ? "FasterForest2" : "FasterForest",
+                            subtreeTasks ? forkThreshold : "no", threads, time, (double) baseTime / Math.max(1, time));
+                }
+            }
+        }
+    }
+
+    private static AbstractClassifier createClassifier(boolean ff2, int numTrees, int numThreads, int forkThreshold) {
+        if (ff2) {
+            FasterForest2 res = new FasterForest2();
+            res.setNumTrees(numTrees);
+            res.setNumThreads(numThreads);
+            res.setForkSubtreesThreshold(forkThreshold);
+            res.setParallelSplitThreshold(forkThreshold == 0 ? 0 : res.getParallelSplitThreshold());
+            res.setCalcOutOfBag(false);
+            res.setComputeImportances(false);
+            return res;
+        }
+        FasterForest res = new FasterForest();
+        res.setNumTrees(numTrees);
+        res.setNumThreads(numThreads);
+        res.setForkSubtreesThreshold(forkThreshold);
+        res.setParallelSplitThreshold(forkThreshold == 0 ? 0 : res.getParallelSplitThreshold());
+        res.setCalcOutOfBag(false);
+        res.setComputeImportances(false);
+        return res;
+    }
+
+}
@@ -24,6 +24,7 @@ package cz.siret.prank.fforest;
 import weka.classifiers.Classifier;
 import weka.core.Utils;
 
+import java.util.BitSet;
 import java.util.concurrent.Callable;
 
 /**
@@ -43,12 +44,12 @@ public class VotesCollectorDataCache implements Callable<Double>{
   protected final Classifier[] m_Classifiers;
   protected final int instanceIdx;
   protected final DataCache data;
-  /** NumTrees x numInstances indicating out-of-bag instances. */
-  protected final boolean[][] inBag;
+  /** In-bag instances of each tree (set bits), the rest is out-of-bag. */
+  protected final BitSet[] inBag;
 
 
   public VotesCollectorDataCache(Classifier[] m_Classifiers, int instanceIdx,
-                                 DataCache data, boolean[][] inBag){
+                                 DataCache data, BitSet[] inBag){
     this.m_Classifiers = m_Classifiers;
     this.instanceIdx = instanceIdx;
     this.data = data;
@@ -67,7 +68,7 @@ public class VotesCollectorDataCache implements Callable<Double>{
     
     for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++){
 
-      if ( inBag[treeIdx][instanceIdx] ) {
+      if ( inBag[treeIdx].get(instanceIdx) ) {
         continue;
       }
 
@@ -80,7 +81,11 @@ public class VotesCollectorDataCache implements Callable<Double>{
         throw new IllegalArgumentException("Only FasterTree accepted in the VotesCollector.");
 
       double[] curDist;
-      curDist = aTree.distributionForInstanceInDataCache(data.vals, instanceIdx);
+      if (data.isBinned()) {
+        curDist = aTree.distributionForInstanceInBins(data, instanceIdx);
+      } else {
+        curDist = aTree.distributionForInstanceInDataCache(data.vals, instanceIdx);
+      }
 
       for(int classIdx = 0; classIdx < curDist.length; classIdx++) {
         classProbs[classIdx] += curDist[classIdx];
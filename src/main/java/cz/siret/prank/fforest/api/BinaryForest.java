@@ -13,4 +13,48 @@ public interface BinaryForest {
 
     double predict(double[] instanceAttributes);
 
+    /**
+     * Predicts scores for a batch of instances.
+     *
+     * @param rows instance attribute vectors
+     * @param out receives the score of rows[i] at out[i], must be at least rows.length long
+     */
+    default void predictBatch(double[][] rows, double[] out) {
+        predictBatch(rows, 0, rows.length, out);
+    }
+
+    /**
+     * Predicts scores for rows[from] .. rows[to-1].
+     *
+     * @param rows instance attribute vectors
+     * @param from first row (inclusive)
+     * @param to last row (exclusive)
+     * @param out receives the score of rows[i] at out[i]
+     */
+    default void predictBatch(double[][] rows, int from, int to, double[] out) {
+        for (int i = from; i < to; ++i) {
+            out[i] = predict(rows[i]);
+        }
+    }
+
+    /**
+     * @return predict(instanceAttributes) > threshold
+     */
+    default boolean predictAbove(double[] instanceAttributes, double threshold) {
+        return predictAbove(instanceAttributes, threshold, null);
+    }
+
+    /**
+     * Same result as predict(instanceAttributes) > threshold, implementations may stop
+     * evaluating trees as soon as the result is decided.
+     *
+     * @param treesEvaluated if not null, receives the number of evaluated trees at [0]
+     */
+    default boolean predictAbove(double[] instanceAttributes, double threshold, int[] treesEvaluated) {
+        if (treesEvaluated != null) {
+            treesEvaluated[0] = getNumTrees();
+        }
+        return predict(instanceAttributes) > threshold;
+    }
+
 }
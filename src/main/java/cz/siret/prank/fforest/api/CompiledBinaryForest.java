@@ -0,0 +1,47 @@
+package cz.siret.prank.fforest.api;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * BinaryForest compiled to Java bytecode by ForestCompiler.
+ * Gives the same results as the FlatBinaryForest it was compiled from.
+ *
+ * @see ForestCompiler
+ */
+public class CompiledBinaryForest implements BinaryForest {
+
+    private final int numTrees;
+    private final int maxDepth;
+    private final double numTreesDouble;
+
+    /** generated code returning sum of scores of all trees */
+    private final ToDoubleFunction<double[]> treeSum;
+
+    CompiledBinaryForest(int numTrees, int maxDepth, ToDoubleFunction<double[]> treeSum) {
+        this.numTrees = numTrees;
+        this.maxDepth = maxDepth;
+        this.numTreesDouble = numTrees;
+        this.treeSum = treeSum;
+    }
+
+    @Override
+    public int getNumClasses() {
+        return 2;
+    }
+
+    @Override
+    public int getNumTrees() {
+        return numTrees;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public double predict(double[] instanceAttributes) {
+        return treeSum.applyAsDouble(instanceAttributes) / numTreesDouble;
+    }
+
+}
@@ -2,18 +2,27 @@ package cz.siret.prank.fforest.api;
 
 import weka.classifiers.Classifier;
 import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.CapabilitiesHandler;
 import weka.core.Instance;
 import weka.core.Instances;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  *
  */
-public class FlatBinaryForest implements BinaryForest, Classifier, Serializable {
+public class FlatBinaryForest implements BinaryForest, Classifier, CapabilitiesHandler, Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of rows processed together in predictBatch(). Rows of one block are pushed through
+     * a tree before moving to the next tree, so the nodes of that tree stay in cache.
+     */
+    private static final int BATCH_BLOCK_SIZE = 256;
+
     private final int numTrees;
     private transient int maxDepth = -1; // lazy, -1 = not calculated yet
 
@@ -25,6 +34,23 @@ public class FlatBinaryForest implements BinaryForest, Classifier, Serializable
     private final double[] splitPoint;
     private final double[] score;
 
+    /**
+     * Index of the root node of each tree. Identity (tree i starts at node i) for the original
+     * ROOTS_FIRST layout, see FlatBinaryForestBuilder.NodeLayout.
+     */
+    private final int[] treeRoots;
+
+    /**
+     * Sum of minimal (maximal) leaf scores of trees i .. numTrees-1, used by predictAbove().
+     */
+    private transient final double[] minRemaining;
+    private transient final double[] maxRemaining;
+
+    /**
+     * Slack for early exit decisions in predictAbove(), much larger than rounding errors of the sum.
+     */
+    private static final double EARLY_EXIT_EPS = 1e-9;
+
     @Override
     public int getNumClasses() {
         return 2;
@@ -47,12 +73,19 @@ public class FlatBinaryForest implements BinaryForest, Classifier, Serializable
         int max = 0;
 
         for (int i=0; i!=numTrees; ++i) {
-            max = Math.max(max, calculateTreeDepth(i));
+            max = Math.max(max, calculateTreeDepth(treeRoots[i]));
         }
 
         return max;
     }
 
+    /**
+     * @return size of model arrays in bytes
+     */
+    public long getDataSizeBytes() {
+        return childLeft.length * (4L + 4L + 4L + 8L) + score.length * 8L + treeRoots.length * 4L;
+    }
+
     @Override
     public double predict(double[] instanceAttributes) {
         double sum = 0d;
@@ -64,10 +97,67 @@ public class FlatBinaryForest implements BinaryForest, Classifier, Serializable
         return sum / numTreesDouble;
     }
 
+    /**
+     * Evaluates trees in order and stops as soon as the sum of scores of remaining trees cannot move
+     * the prediction across the threshold (using min/max leaf score of each tree).
+     */
+    @Override
+    public boolean predictAbove(double[] instanceAttributes, double threshold, int[] treesEvaluated) {
+        double thresholdSum = threshold * numTreesDouble;
+        double sum = 0d;
+
+        for (int i = 0; i != numTrees; ) {
+            sum += predictTree(i, instanceAttributes);
+            i++;
+
+            if (sum + minRemaining[i] > thresholdSum + EARLY_EXIT_EPS) {
+                setTreesEvaluated(treesEvaluated, i);
+                return true;
+            }
+            if (sum + maxRemaining[i] < thresholdSum - EARLY_EXIT_EPS) {
+                setTreesEvaluated(treesEvaluated, i);
+                return false;
+            }
+        }
+
+        // undecided until the last tree: compare exactly as predict() would
+        setTreesEvaluated(treesEvaluated, numTrees);
+        return sum / numTreesDouble > threshold;
+    }
+
+    private static void setTreesEvaluated(int[] treesEvaluated, int value) {
+        if (treesEvaluated != null) {
+            treesEvaluated[0] = value;
+        }
+    }
+
+    /**
+     * Batch version of predict(). Loops tree-outer and row-inner over blocks of rows.
+     * Results are the same as calling predict() for each row.
+     */
+    @Override
+    public void predictBatch(double[][] rows, int from, int to, double[] out) {
+        for (int blockStart = from; blockStart < to; blockStart += BATCH_BLOCK_SIZE) {
+            int blockEnd = Math.min(to, blockStart + BATCH_BLOCK_SIZE);
+
+            for (int i = blockStart; i != blockEnd; ++i) {
+                out[i] = 0d;
+            }
+            for (int tree = 0; tree != numTrees; ++tree) {
+                for (int i = blockStart; i != blockEnd; ++i) {
+                    out[i] += predictTree(tree, rows[i]);
+                }
+            }
+            for (int i = blockStart; i != blockEnd; ++i) {
+                out[i] /= numTreesDouble;
+            }
+        }
+    }
+
 //===============================================================================================//
 
-    private double predictTree(int tree, double[] instanceAttributes) {
-        int currentNode = tree;
+    double predictTree(int tree, double[] instanceAttributes) {
+        int currentNode = treeRoots[tree];
         int attr;
 
         while (true) {
@@ -86,21 +176,53 @@ public class FlatBinaryForest implements BinaryForest, Classifier, Serializable
         
     }
 
+    /**
+     * @return number of split node levels below (and including) the node, computed with an explicit stack
+     */
     private int calculateTreeDepth(int tree) {
         if (tree < 0) {
             return 0;
         }
 
-        int left = calculateTreeDepth(childLeft[tree]);
-        int right = calculateTreeDepth(childRight[tree]);
+        int max = 0;
+        int[] stack = new int[16];      // split nodes
+        int[] stackDepth = new int[16]; // their depths (root = 1)
+        int sp = 0;
+        stack[sp] = tree;
+        stackDepth[sp++] = 1;
+        while (sp > 0) {
+            int node = stack[--sp];
+            int depth = stackDepth[sp];
+            max = Math.max(max, depth);
+
+            if (sp + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                stackDepth = Arrays.copyOf(stackDepth, 2 * stackDepth.length);
+            }
+            if (childLeft[node] >= 0) {
+                stack[sp] = childLeft[node];
+                stackDepth[sp++] = depth + 1;
+            }
+            if (childRight[node] >= 0) {
+                stack[sp] = childRight[node];
+                stackDepth[sp++] = depth + 1;
+            }
+        }
 
-        return Math.max(left, right) + 1;
+        return max;
     }
 
 //===============================================================================================//
 
 
     public FlatBinaryForest(int numTrees, int[] childRight, int[] childLeft, int[] attributeIndex, double[] splitPoint, double[] score) {
+        this(numTrees, childRight, childLeft, attributeIndex, splitPoint, score, null);
+    }
+
+    /**
+     * @param treeRoots root node index for each tree, null if tree i starts at node i
+     */
+    public FlatBinaryForest(int numTrees, int[] childRight, int[] childLeft, int[] attributeIndex, double[] splitPoint, double[] score, int[] treeRoots) {
         this.numTrees = numTrees;
         this.childRight = childRight;
         this.childLeft = childLeft;
@@ -108,7 +230,89 @@ public class FlatBinaryForest implements BinaryForest, Classifier, Serializable
         this.splitPoint = splitPoint;
         this.score = score;
 
+        if (treeRoots == null) {
+            treeRoots = new int[numTrees];
+            for (int i=0; i!=numTrees; ++i) {
+                treeRoots[i] = i;
+            }
+        }
+        this.treeRoots = treeRoots;
+
         this.numTreesDouble = numTrees;
+
+        this.minRemaining = new double[numTrees + 1];
+        this.maxRemaining = new double[numTrees + 1];
+        for (int i = numTrees - 1; i >= 0; --i) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int leaf : leavesOfTree(treeRoots[i])) {
+                min = Math.min(min, score[leaf]);
+                max = Math.max(max, score[leaf]);
+            }
+            minRemaining[i] = minRemaining[i + 1] + min;
+            maxRemaining[i] = maxRemaining[i + 1] + max;
+        }
+    }
+
+    /**
+     * @return score indexes of all leaves of the tree
+     */
+    private int[] leavesOfTree(int root) {
+        int[] res = new int[16];
+        int n = 0;
+        int[] stack = new int[16];
+        int sp = 0;
+        stack[sp++] = root;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (node < 0) {
+                if (n == res.length) {
+                    res = Arrays.copyOf(res, n * 2);
+                }
+                res[n++] = -node;
+            } else {
+                if (sp + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[sp++] = childLeft[node];
+                stack[sp++] = childRight[node];
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    /**
+     * Re-creates transient fields after deserialization (also fills treeRoots for models serialized before it existed).
+     */
+    private Object readResolve() {
+        return new FlatBinaryForest(numTrees, childRight, childLeft, attributeIndex, splitPoint, score, treeRoots);
+    }
+
+//===============================================================================================//
+// package-private access for alternative inference engines
+
+    int getTreeRoot(int tree) {
+        return treeRoots[tree];
+    }
+
+    int[] getChildLeft() {
+        return childLeft;
+    }
+
+    int[] getChildRight() {
+        return childRight;
+    }
+
+    int[] getAttributeIndex() {
+        return attributeIndex;
+    }
+
+    double[] getSplitPoint() {
+        return splitPoint;
+    }
+
+    double[] getScore() {
+        return score;
     }
 
 //===============================================================================================//
@@ -118,19 +322,66 @@ public class FlatBinaryForest implements BinaryForest, Classifier, Serializable
         // do nothing
     }
 
+    /**
+     * Predicts class 1 if the score is above 0.5 (ties go to class 0 like in weka.core.Utils.maxIndex()).
+     */
     @Override
     public double classifyInstance(Instance instance) throws Exception {
-        return 0;
+        return predict(instance) > 0.5 ? 1 : 0;
     }
 
+    /**
+     * @return {1 - score, score}
+     */
     @Override
     public double[] distributionForInstance(Instance instance) throws Exception {
-        return new double[0];
+        double p = predict(instance);
+        return new double[] {1d - p, p};
     }
 
     @Override
     public Capabilities getCapabilities() {
-        return null;
+        Capabilities result = new Capabilities(this);
+
+        result.disableAll();
+
+        // attributes
+        result.enable(Capability.NUMERIC_ATTRIBUTES);
+
+        // class
+        result.enable(Capability.BINARY_CLASS);
+
+        return result;
     }
-    
+
+    /**
+     * Same as predict(double[]), reads attribute values directly from the instance (without toDoubleArray()).
+     * Attribute indexes are the same as in the training data, i.e. including the class attribute.
+     */
+    public double predict(Instance instance) {
+        double sum = 0d;
+
+        for (int i=0; i!=numTrees; ++i) {
+            sum += predictTree(i, instance);
+        }
+
+        return sum / numTreesDouble;
+    }
+
+    private double predictTree(int tree, Instance instance) {
+        int currentNode = treeRoots[tree];
+
+        while (true) {
+            if (instance.value(attributeIndex[currentNode]) < splitPoint[currentNode]) {
+                currentNode = childLeft[currentNode];
+            } else {
+                currentNode = childRight[currentNode];
+            }
+
+            if (currentNode < 0) {
+                return score[-currentNode];
+            }
+        }
+    }
+
 }
@@ -2,18 +2,44 @@ package cz.siret.prank.fforest.api;
 
 import cz.siret.prank.fforest.FasterTree;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
  */
 public class FlatBinaryForestBuilder {
 
+    /**
+     * Order in which split nodes are stored in the flat arrays.
+     */
+    public enum NodeLayout {
+        /**
+         * Roots of all trees first, remaining split nodes of each tree after them (original layout).
+         */
+        ROOTS_FIRST,
+        /**
+         * Each tree in its own contiguous block, nodes in breadth-first order.
+         * Split children of a node are stored next to each other.
+         */
+        BFS,
+        /**
+         * Each tree in its own contiguous block, nodes in van Emde Boas order
+         * (recursively: top half of the levels first, then each bottom subtree).
+         */
+        VEB
+    }
+
     /**
      * Use only positive class probability
      */
     boolean useOnlyPositive = false;
 
+    NodeLayout layout = NodeLayout.ROOTS_FIRST;
 
 //===============================================================================================//
 
@@ -28,6 +54,14 @@ public class FlatBinaryForestBuilder {
 
 //===============================================================================================//
 
+    public NodeLayout getLayout() {
+        return layout;
+    }
+
+    public void setLayout(NodeLayout layout) {
+        this.layout = layout;
+    }
+
     /**
      * @param trees
      * @param useOnlyPositiveClassProbability Use only positive class probability p_class[1] instead of ratio p_class[1] / (p_class[0] + p_class[1])
@@ -39,17 +73,20 @@ public class FlatBinaryForestBuilder {
 
 
     public FlatBinaryForest buildFromFasterTrees(List<FasterTree> trees) {
+        if (layout != NodeLayout.ROOTS_FIRST) {
+            return buildPerTreeBlocks(trees);
+        }
 
-        int splitNodes = 0;
+        int m = 0;
         int leaves = 0;
 
         for (FasterTree tree : trees) {
-            splitNodes += tree.numSplitNodes();
-            leaves += tree.numLeaves();
+            int splitNodes = tree.numSplitNodes();
+            m += Math.max(1, splitNodes); // at least one node for tree
+            leaves += splitNodes + 1;     // binary tree: leaves = split nodes + 1
         }
 
         int numTrees = trees.size();
-        int m = Math.max(numTrees, splitNodes); // at least one node for tree
 
         childRight = new int[m];
         childLeft = new int[m];
@@ -58,6 +95,7 @@ public class FlatBinaryForestBuilder {
         score = new double[leaves+1];
 
         posSplitNodes = numTrees; // leave first n as root nodes for each tree
+        posScore = 1;
 
         for (int i=0; i!=numTrees; ++i) {
             compileTree(i, trees.get(i));
@@ -77,43 +115,237 @@ public class FlatBinaryForestBuilder {
         }
     }
 
+    /**
+     * Compiles split nodes of the subtree in depth-first order (left subtree first),
+     * using an explicit stack instead of recursion.
+     */
     private void compileSplitNode(int treeIdx, FasterTree tree) {
-        attributeIndex[treeIdx] = tree.getAttribute();
-        splitPoint[treeIdx] = tree.getSplitPoint();
+        FasterTree[] stack = new FasterTree[16];
+        int[] stackIdx = new int[16];  // positions of the nodes in the flat arrays
+        int sp = 0;
+        stack[sp] = tree;
+        stackIdx[sp++] = treeIdx;
 
-        FasterTree left = tree.getSucessorLeft();
-        FasterTree right = tree.getSucessorRight();
+        while (sp > 0) {
+            FasterTree node = stack[--sp];
+            int nodeIdx = stackIdx[sp];
 
-        int leftIdx = -1;
-        int rightIdx = -1;
+            attributeIndex[nodeIdx] = node.getAttribute();
+            splitPoint[nodeIdx] = node.getSplitPoint();
 
-        if (left.isLeaf()) {
-            childLeft[treeIdx] = -posScore;
-            score[posScore] = getScoreFromProbs(left.getClassProbs());
-            posScore++;
-        } else {
-            leftIdx = posSplitNodes++;
-            childLeft[treeIdx] = leftIdx;
+            FasterTree left = node.getSucessorLeft();
+            FasterTree right = node.getSucessorRight();
+
+            int leftIdx = -1;
+            int rightIdx = -1;
+
+            if (left.isLeaf()) {
+                childLeft[nodeIdx] = -posScore;
+                score[posScore] = getScoreFromProbs(left.getClassProbs());
+                posScore++;
+            } else {
+                leftIdx = posSplitNodes++;
+                childLeft[nodeIdx] = leftIdx;
+            }
+
+            if (right.isLeaf()) {
+                childRight[nodeIdx] = -posScore;
+                score[posScore] = getScoreFromProbs(right.getClassProbs());
+                posScore++;
+            } else {
+                rightIdx = posSplitNodes++;
+                childRight[nodeIdx] = rightIdx;
+            }
+
+            if (sp + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                stackIdx = Arrays.copyOf(stackIdx, 2 * stackIdx.length);
+            }
+            // right one first, so that the left one is compiled first
+            if (rightIdx >= 0) {
+                stack[sp] = right;
+                stackIdx[sp++] = rightIdx;
+            }
+            if (leftIdx >= 0) {
+                stack[sp] = left;
+                stackIdx[sp++] = leftIdx;
+            }
         }
+    }
 
-        if (right.isLeaf()) {
-            childRight[treeIdx] = -posScore;
-            score[posScore] = getScoreFromProbs(right.getClassProbs());
-            posScore++;
+//===============================================================================================//
+
+    /**
+     * Lays out every tree in its own contiguous block of nodes (BFS or VEB order).
+     * Root of each tree is the first node of its block.
+     */
+    private FlatBinaryForest buildPerTreeBlocks(List<FasterTree> trees) {
+        int numTrees = trees.size();
+
+        List<List<FasterTree>> orders = new ArrayList<>(numTrees);
+        int m = 0;
+        int leaves = 0;
+        for (FasterTree tree : trees) {
+            List<FasterTree> order = (layout == NodeLayout.BFS) ? bfsOrder(tree) : vebOrder(tree);
+            orders.add(order);
+            m += Math.max(1, order.size()); // at least one node for tree
+            leaves += order.size() + 1;     // binary tree: leaves = split nodes + 1
+        }
+
+        childRight = new int[m];
+        childLeft = new int[m];
+        attributeIndex = new int[m];
+        splitPoint = new double[m];
+        score = new double[leaves+1];
+        int[] treeRoots = new int[numTrees];
+
+        posSplitNodes = 0;
+        posScore = 1;
+
+        Map<FasterTree, Integer> nodeIndex = new IdentityHashMap<>();
+
+        for (int t=0; t!=numTrees; ++t) {
+            FasterTree tree = trees.get(t);
+            List<FasterTree> order = orders.get(t);
+            treeRoots[t] = posSplitNodes;
+
+            if (tree.isLeaf()) {
+                compileTree(posSplitNodes++, tree);
+                continue;
+            }
+
+            nodeIndex.clear();
+            for (FasterTree node : order) {
+                nodeIndex.put(node, posSplitNodes++);
+            }
+            for (FasterTree node : order) {
+                int idx = nodeIndex.get(node);
+                attributeIndex[idx] = node.getAttribute();
+                splitPoint[idx] = node.getSplitPoint();
+                childLeft[idx] = childIndex(node.getSucessorLeft(), nodeIndex);
+                childRight[idx] = childIndex(node.getSucessorRight(), nodeIndex);
+            }
+        }
+
+        return new FlatBinaryForest(numTrees, childRight, childLeft, attributeIndex, splitPoint, score, treeRoots);
+    }
+
+    private int childIndex(FasterTree child, Map<FasterTree, Integer> nodeIndex) {
+        if (child.isLeaf()) {
+            score[posScore] = getScoreFromProbs(child.getClassProbs());
+            return -posScore++;
         } else {
-            rightIdx = posSplitNodes++;
-            childRight[treeIdx] = rightIdx;
+            return nodeIndex.get(child);
+        }
+    }
+
+    /**
+     * @return split nodes of the tree in breadth-first order
+     */
+    static List<FasterTree> bfsOrder(FasterTree root) {
+        List<FasterTree> res = new ArrayList<>();
+        if (root.isLeaf()) {
+            return res;
+        }
+
+        ArrayDeque<FasterTree> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            FasterTree node = queue.poll();
+            res.add(node);
+            if (!node.getSucessorLeft().isLeaf()) {
+                queue.add(node.getSucessorLeft());
+            }
+            if (!node.getSucessorRight().isLeaf()) {
+                queue.add(node.getSucessorRight());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return split nodes of the tree in van Emde Boas order
+     */
+    static List<FasterTree> vebOrder(FasterTree root) {
+        List<FasterTree> res = new ArrayList<>();
+        if (!root.isLeaf()) {
+            vebLayout(root, splitHeight(root), res);
+        }
+        return res;
+    }
+
+    /**
+     * Lays out the top 'height' levels of split nodes under root.
+     * Recursion depth is only O(log(height)).
+     */
+    private static void vebLayout(FasterTree root, int height, List<FasterTree> res) {
+        if (height == 1) {
+            res.add(root);
+            return;
         }
 
-        if (leftIdx >= 0) {
-            compileSplitNode(leftIdx, tree.getSucessorLeft());
+        int topHeight = height / 2;
+        int bottomHeight = height - topHeight;
+
+        vebLayout(root, topHeight, res);
+        for (FasterTree bottomRoot : splitNodesAtDepth(root, topHeight)) {
+            vebLayout(bottomRoot, bottomHeight, res);
         }
-        if (rightIdx >= 0) {
-            compileSplitNode(rightIdx, tree.getSucessorRight());
+    }
+
+    /**
+     * @return split nodes exactly 'depth' levels below root, left to right
+     */
+    private static List<FasterTree> splitNodesAtDepth(FasterTree root, int depth) {
+        List<FasterTree> level = new ArrayList<>();
+        level.add(root);
+        for (int d=0; d!=depth; ++d) {
+            List<FasterTree> next = new ArrayList<>(level.size() * 2);
+            for (FasterTree node : level) {
+                if (!node.getSucessorLeft().isLeaf()) {
+                    next.add(node.getSucessorLeft());
+                }
+                if (!node.getSucessorRight().isLeaf()) {
+                    next.add(node.getSucessorRight());
+                }
+            }
+            level = next;
         }
+        return level;
     }
 
+    /**
+     * @return number of levels of split nodes in the tree
+     */
+    private static int splitHeight(FasterTree root) {
+        int height = 0;
+        List<FasterTree> level = new ArrayList<>();
+        if (!root.isLeaf()) {
+            level.add(root);
+        }
+        while (!level.isEmpty()) {
+            height++;
+            List<FasterTree> next = new ArrayList<>(level.size() * 2);
+            for (FasterTree node : level) {
+                if (!node.getSucessorLeft().isLeaf()) {
+                    next.add(node.getSucessorLeft());
+                }
+                if (!node.getSucessorRight().isLeaf()) {
+                    next.add(node.getSucessorRight());
+                }
+            }
+            level = next;
+        }
+        return height;
+    }
+
+//===============================================================================================//
+
     private double getScoreFromProbs(double[] classProbs) {
+        return getScoreFromProbs(classProbs, useOnlyPositive);
+    }
+
+    static double getScoreFromProbs(double[] classProbs, boolean useOnlyPositive) {
         double p1 = classProbs[1];
 
         if (useOnlyPositive) {
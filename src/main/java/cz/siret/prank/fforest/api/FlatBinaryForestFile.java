@@ -0,0 +1,222 @@
+package cz.siret.prank.fforest.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Binary file format of FlatBinaryForest that can be memory-mapped.
+ *
+ * All values are little-endian. Layout (version 1):
+ * <pre>
+ *   int      magic (MAGIC)
+ *   int      version
+ *   int      numTrees
+ *   int      numNodes
+ *   int      numScores
+ *   int      reserved (0)
+ *   int[]    treeRoots       [numTrees]
+ *   int[]    childLeft       [numNodes]
+ *   int[]    childRight      [numNodes]
+ *   int[]    attributeIndex  [numNodes]
+ *            padding to a multiple of 8 bytes
+ *   double[] splitPoint      [numNodes]
+ *   double[] score           [numScores]
+ * </pre>
+ *
+ * map() returns MappedBinaryForest that reads the arrays directly from the mapped file, so the model is not copied
+ * to the heap and processes that map the same file share the pages of the OS page cache.
+ * Node indexes are validated when the file is mapped, a corrupted file is rejected with IOException.
+ */
+public class FlatBinaryForestFile {
+
+    /** "FBFF" */
+    public static final int MAGIC = 0x46464246;
+
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 6 * 4;
+
+//===============================================================================================//
+
+    /**
+     * Writes the forest to the file (overwrites existing file).
+     */
+    public static void write(FlatBinaryForest forest, File file) throws IOException {
+        int numTrees = forest.getNumTrees();
+        int numNodes = forest.getChildLeft().length;
+        int numScores = forest.getScore().length;
+
+        Layout layout = new Layout(numTrees, numNodes, numScores);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(layout.fileSize);
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, layout.fileSize);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putInt(numTrees);
+            buf.putInt(numNodes);
+            buf.putInt(numScores);
+            buf.putInt(0);
+
+            IntBuffer treeRoots = intView(buf, layout.treeRootsOffset, numTrees);
+            for (int i = 0; i != numTrees; ++i) {
+                treeRoots.put(i, forest.getTreeRoot(i));
+            }
+            intView(buf, layout.childLeftOffset, numNodes).put(forest.getChildLeft());
+            intView(buf, layout.childRightOffset, numNodes).put(forest.getChildRight());
+            intView(buf, layout.attributeIndexOffset, numNodes).put(forest.getAttributeIndex());
+            doubleView(buf, layout.splitPointOffset, numNodes).put(forest.getSplitPoint());
+            doubleView(buf, layout.scoreOffset, numScores).put(forest.getScore());
+
+            buf.force();
+        }
+    }
+
+    /**
+     * Maps the file to memory without copying.
+     * Mapping stays valid until the returned forest is garbage collected.
+     */
+    public static MappedBinaryForest map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a FlatBinaryForest file (too short): " + file);
+            }
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            int magic = buf.getInt(0);
+            int version = buf.getInt(4);
+            if (magic != MAGIC) {
+                throw new IOException("Not a FlatBinaryForest file (bad magic number): " + file);
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported FlatBinaryForest file version " + version + ": " + file);
+            }
+            int numTrees = buf.getInt(8);
+            int numNodes = buf.getInt(12);
+            int numScores = buf.getInt(16);
+            if (numTrees < 0 || numNodes < 0 || numScores < 0) {
+                throw new IOException("Corrupted FlatBinaryForest file header: " + file);
+            }
+
+            Layout layout = new Layout(numTrees, numNodes, numScores);
+            if (size < layout.fileSize) {
+                throw new IOException("Truncated FlatBinaryForest file: " + file);
+            }
+
+            IntBuffer treeRoots = intView(buf, layout.treeRootsOffset, numTrees);
+            IntBuffer childLeft = intView(buf, layout.childLeftOffset, numNodes);
+            IntBuffer childRight = intView(buf, layout.childRightOffset, numNodes);
+            IntBuffer attributeIndex = intView(buf, layout.attributeIndexOffset, numNodes);
+            validate(numNodes, numScores, treeRoots, childLeft, childRight, attributeIndex, file);
+
+            return new MappedBinaryForest(numTrees, treeRoots, childLeft, childRight, attributeIndex,
+                    doubleView(buf, layout.splitPointOffset, numNodes),
+                    doubleView(buf, layout.scoreOffset, numScores));
+        }
+    }
+
+    /**
+     * Reads the file to a heap FlatBinaryForest (copies arrays).
+     */
+    public static FlatBinaryForest read(File file) throws IOException {
+        return map(file).toFlatBinaryForest();
+    }
+
+//===============================================================================================//
+
+    /**
+     * Checks the node indexes once, so that MappedBinaryForest can follow them without bounds checks.
+     * Split children must point forward (nodes are stored before their split children in all layouts),
+     * which also rules out cycles, so nodes reachable from the roots are found in one pass.
+     * Leaf children -i must point into score (score[0] is unused). Unused node slots are not checked.
+     */
+    private static void validate(int numNodes, int numScores, IntBuffer treeRoots, IntBuffer childLeft,
+                                 IntBuffer childRight, IntBuffer attributeIndex, File file) throws IOException {
+        BitSet reachable = new BitSet(numNodes);
+        for (int t = 0; t != treeRoots.capacity(); ++t) {
+            int root = treeRoots.get(t);
+            if (root < 0 || root >= numNodes) {
+                throw new IOException("Corrupted FlatBinaryForest file (root of tree " + t + " out of range): " + file);
+            }
+            reachable.set(root);
+        }
+        for (int i = reachable.nextSetBit(0); i >= 0; i = reachable.nextSetBit(i + 1)) {
+            int left = childLeft.get(i);
+            int right = childRight.get(i);
+            if (!isValidChild(i, left, numNodes, numScores) || !isValidChild(i, right, numNodes, numScores)) {
+                throw new IOException("Corrupted FlatBinaryForest file (child of node " + i + " out of range): " + file);
+            }
+            if (attributeIndex.get(i) < 0) {
+                throw new IOException("Corrupted FlatBinaryForest file (negative attribute of node " + i + "): " + file);
+            }
+            if (left > 0) {
+                reachable.set(left);
+            }
+            if (right > 0) {
+                reachable.set(right);
+            }
+        }
+    }
+
+    private static boolean isValidChild(int node, int child, int numNodes, int numScores) {
+        if (child < 0) {
+            return child > -numScores;
+        }
+        return child > node && child < numNodes;
+    }
+
+    private static IntBuffer intView(ByteBuffer buf, long offset, int length) {
+        return slice(buf, offset, length * 4L).asIntBuffer();
+    }
+
+    private static DoubleBuffer doubleView(ByteBuffer buf, long offset, int length) {
+        return slice(buf, offset, length * 8L).asDoubleBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, long offset, long length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position((int) offset);
+        dup.limit((int) (offset + length));
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);  // slice() resets byte order
+    }
+
+    /**
+     * Offsets of sections in the file.
+     */
+    private static class Layout {
+        final long treeRootsOffset;
+        final long childLeftOffset;
+        final long childRightOffset;
+        final long attributeIndexOffset;
+        final long splitPointOffset;
+        final long scoreOffset;
+        final long fileSize;
+
+        Layout(int numTrees, int numNodes, int numScores) {
+            treeRootsOffset = HEADER_SIZE;
+            childLeftOffset = treeRootsOffset + numTrees * 4L;
+            childRightOffset = childLeftOffset + numNodes * 4L;
+            attributeIndexOffset = childRightOffset + numNodes * 4L;
+            splitPointOffset = (attributeIndexOffset + numNodes * 4L + 7) & ~7L;
+            scoreOffset = splitPointOffset + numNodes * 8L;
+            fileSize = scoreOffset + numScores * 8L;
+
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("FlatBinaryForest file larger than 2GB is not supported");
+            }
+        }
+    }
+
+}
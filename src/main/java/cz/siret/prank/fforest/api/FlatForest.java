@@ -0,0 +1,172 @@
+package cz.siret.prank.fforest.api;
+
+import weka.core.Utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Flat representation of a forest for any number of classes.
+ *
+ * Split nodes are stored the same way as in FlatBinaryForest. Negative child index -k points to leaf k,
+ * whose class distribution is stored in leafDistributions[k*numClasses .. (k+1)*numClasses).
+ * Leaf 0 is unused.
+ */
+public class FlatForest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int numTrees;
+    private final int numClasses;
+    private transient int maxDepth = -1; // lazy, -1 = not calculated yet
+
+    private final int[] childRight;
+    private final int[] childLeft;
+    private final int[] attributeIndex;
+    private final double[] splitPoint;
+    private final float[] leafDistributions;
+
+    /**
+     * Root of tree i is node i.
+     */
+    public FlatForest(int numTrees, int numClasses, int[] childRight, int[] childLeft, int[] attributeIndex, double[] splitPoint, float[] leafDistributions) {
+        this.numTrees = numTrees;
+        this.numClasses = numClasses;
+        this.childRight = childRight;
+        this.childLeft = childLeft;
+        this.attributeIndex = attributeIndex;
+        this.splitPoint = splitPoint;
+        this.leafDistributions = leafDistributions;
+    }
+
+//===============================================================================================//
+
+    public int getNumClasses() {
+        return numClasses;
+    }
+
+    public int getNumTrees() {
+        return numTrees;
+    }
+
+    public int getMaxDepth() {
+        if (maxDepth < 0) {
+            maxDepth = calculateMaxDepth();
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Same result as FastRfBagging.distributionForAttributes() (up to float precision of leaf distributions).
+     *
+     * @return normalized class distribution
+     */
+    public double[] distributionForAttributes(double[] instanceAttributes) {
+        double[] res = new double[numClasses];
+        distributionForAttributes(instanceAttributes, res);
+        return res;
+    }
+
+    /**
+     * Writes normalized class distribution to out.
+     *
+     * @param out array of length at least numClasses
+     */
+    public void distributionForAttributes(double[] instanceAttributes, double[] out) {
+        for (int c = 0; c != numClasses; ++c) {
+            out[c] = 0d;
+        }
+
+        for (int i=0; i!=numTrees; ++i) {
+            int offset = findLeaf(i, instanceAttributes) * numClasses;
+            for (int c = 0; c != numClasses; ++c) {
+                out[c] += leafDistributions[offset + c];
+            }
+        }
+
+        double sum = 0d;
+        for (int c = 0; c != numClasses; ++c) {
+            sum += out[c];
+        }
+        if (!Utils.eq(sum, 0)) {
+            for (int c = 0; c != numClasses; ++c) {
+                out[c] /= sum;
+            }
+        }
+    }
+
+//===============================================================================================//
+
+    /**
+     * @return index of the leaf
+     */
+    private int findLeaf(int tree, double[] instanceAttributes) {
+        int currentNode = tree;
+
+        while (true) {
+            if (instanceAttributes[attributeIndex[currentNode]] < splitPoint[currentNode]) {
+                currentNode = childLeft[currentNode];
+            } else {
+                currentNode = childRight[currentNode];
+            }
+
+            if (currentNode < 0) {
+                return -currentNode;
+            }
+        }
+    }
+
+    /**
+     * Re-creates transient fields after deserialization.
+     */
+    private Object readResolve() {
+        return new FlatForest(numTrees, numClasses, childRight, childLeft, attributeIndex, splitPoint, leafDistributions);
+    }
+
+    private int calculateMaxDepth() {
+        int max = 0;
+
+        for (int i=0; i!=numTrees; ++i) {
+            max = Math.max(max, calculateTreeDepth(i));
+        }
+
+        return max;
+    }
+
+    /**
+     * @return number of split node levels below (and including) the node, computed with an explicit stack
+     */
+    private int calculateTreeDepth(int tree) {
+        if (tree < 0) {
+            return 0;
+        }
+
+        int max = 0;
+        int[] stack = new int[16];      // split nodes
+        int[] stackDepth = new int[16]; // their depths (root = 1)
+        int sp = 0;
+        stack[sp] = tree;
+        stackDepth[sp++] = 1;
+        while (sp > 0) {
+            int node = stack[--sp];
+            int depth = stackDepth[sp];
+            max = Math.max(max, depth);
+
+            if (sp + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                stackDepth = Arrays.copyOf(stackDepth, 2 * stackDepth.length);
+            }
+            if (childLeft[node] >= 0) {
+                stack[sp] = childLeft[node];
+                stackDepth[sp++] = depth + 1;
+            }
+            if (childRight[node] >= 0) {
+                stack[sp] = childRight[node];
+                stackDepth[sp++] = depth + 1;
+            }
+        }
+
+        return max;
+    }
+
+}
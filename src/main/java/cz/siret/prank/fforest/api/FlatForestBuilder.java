@@ -0,0 +1,133 @@
+package cz.siret.prank.fforest.api;
+
+import cz.siret.prank.fforest.FasterTree;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Builds multiclass FlatForest from a list of trained trees.
+ */
+public class FlatForestBuilder {
+
+    int numClasses;
+
+    int[] childRight;
+    int[] childLeft;
+    int[] attributeIndex;
+    double[] splitPoint;
+    float[] leafDistributions;
+
+    int posSplitNodes = 0;
+    int posLeaf = 1;
+
+//===============================================================================================//
+
+    /**
+     * @param numClasses number of classes (length of class distributions in the leaves)
+     */
+    public FlatForest buildFromFasterTrees(List<FasterTree> trees, int numClasses) {
+        this.numClasses = numClasses;
+
+        int m = 0;
+        int leaves = 0;
+
+        for (FasterTree tree : trees) {
+            int splitNodes = countNodes(tree) / 2; // binary tree: nodes = 2 * split nodes + 1
+            m += Math.max(1, splitNodes);          // at least one node for tree
+            leaves += splitNodes + 1;
+        }
+
+        int numTrees = trees.size();
+
+        childRight = new int[m];
+        childLeft = new int[m];
+        attributeIndex = new int[m];
+        splitPoint = new double[m];
+        leafDistributions = new float[(leaves + 1) * numClasses];
+
+        posSplitNodes = numTrees; // leave first n as root nodes for each tree
+        posLeaf = 1;
+
+        for (int i=0; i!=numTrees; ++i) {
+            compileTree(i, trees.get(i));
+        }
+
+        return new FlatForest(numTrees, numClasses, childRight, childLeft, attributeIndex, splitPoint, leafDistributions);
+    }
+
+    private void compileTree(int treeIdx, FasterTree tree) {
+        if (tree.isLeaf()) {
+            int leaf = addLeaf(tree);
+            childLeft[treeIdx] = leaf;
+            childRight[treeIdx] = leaf;
+        } else {
+            compileSplitNode(treeIdx, tree);
+        }
+    }
+
+    /**
+     * Compiles split nodes of the subtree in depth-first order (left subtree first),
+     * using an explicit stack instead of recursion.
+     */
+    private void compileSplitNode(int treeIdx, FasterTree tree) {
+        ArrayDeque<FasterTree> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> stackIdx = new ArrayDeque<>();
+        stack.push(tree);
+        stackIdx.push(treeIdx);
+
+        while (!stack.isEmpty()) {
+            FasterTree node = stack.pop();
+            int nodeIdx = stackIdx.pop();
+
+            attributeIndex[nodeIdx] = node.getAttribute();
+            splitPoint[nodeIdx] = node.getSplitPoint();
+
+            FasterTree left = node.getSucessorLeft();
+            FasterTree right = node.getSucessorRight();
+
+            int leftIdx = left.isLeaf() ? addLeaf(left) : posSplitNodes++;
+            int rightIdx = right.isLeaf() ? addLeaf(right) : posSplitNodes++;
+            childLeft[nodeIdx] = leftIdx;
+            childRight[nodeIdx] = rightIdx;
+
+            // right one first, so that the left one is compiled first
+            if (rightIdx >= 0) {
+                stack.push(right);
+                stackIdx.push(rightIdx);
+            }
+            if (leftIdx >= 0) {
+                stack.push(left);
+                stackIdx.push(leftIdx);
+            }
+        }
+    }
+
+    /**
+     * @return child index pointing to the new leaf
+     */
+    private int addLeaf(FasterTree leaf) {
+        double[] probs = leaf.getClassProbs();
+        int offset = posLeaf * numClasses;
+        for (int c = 0; c != numClasses; ++c) {
+            leafDistributions[offset + c] = (float) probs[c];
+        }
+        return -posLeaf++;
+    }
+
+    private static int countNodes(FasterTree tree) {
+        int res = 0;
+        ArrayDeque<FasterTree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            FasterTree node = stack.pop();
+            res++;
+            if (!node.isLeaf()) {
+                stack.push(node.getSucessorLeft());
+                stack.push(node.getSucessorRight());
+            }
+        }
+        return res;
+    }
+
+}
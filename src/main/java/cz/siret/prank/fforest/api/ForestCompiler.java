@@ -0,0 +1,399 @@
+package cz.siret.prank.fforest.api;
+
+import cz.siret.prank.fforest.FasterTree;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Compiles a forest to Java bytecode: every tree becomes nested if-else statements with split points and scores
+ * as constants, so the JIT can treat them as immediate values.
+ *
+ * Source is generated in memory, compiled by javax.tools compiler (requires JDK, not only JRE) and loaded by
+ * a private class loader, so generated classes can be unloaded together with the CompiledBinaryForest.
+ *
+ * Large trees are split into several methods (maxNodesPerMethod) to stay under the JIT limit for huge methods
+ * (8000 bytes of bytecode) and far under the 64KB method limit. Methods are split into several classes
+ * (maxNodesPerClass) to stay under the constant pool limit.
+ */
+public class ForestCompiler {
+
+    private static final String PACKAGE = "fforestgen";
+    private static final String MAIN_CLASS = "ForestSum";
+    private static final String TREES_CLASS = "Trees";
+
+    /** number of trees summed by one method of the main class */
+    private static final int TREES_PER_SUM_METHOD = 64;
+
+    /**
+     * ~12 bytes of bytecode per split node, ~4 per leaf
+     */
+    int maxNodesPerMethod = 256;
+
+    int maxNodesPerClass = 4096;
+
+//===============================================================================================//
+
+    private FlatBinaryForest forest;
+    private int[] childLeft;
+    private int[] childRight;
+    private int[] subtreeSize;
+
+    private List<StringBuilder> classes;
+    private int allocatedInClass;
+
+    private ArrayDeque<PendingMethod> pending;
+    private int methodCounter;
+
+    private static class PendingMethod {
+        final String qualifiedName;
+        final int classIdx;
+        final int node;
+
+        PendingMethod(String qualifiedName, int classIdx, int node) {
+            this.qualifiedName = qualifiedName;
+            this.classIdx = classIdx;
+            this.node = node;
+        }
+
+        String simpleName() {
+            return qualifiedName.substring(qualifiedName.indexOf('.') + 1);
+        }
+    }
+
+//===============================================================================================//
+
+    public int getMaxNodesPerMethod() {
+        return maxNodesPerMethod;
+    }
+
+    /**
+     * @param maxNodesPerMethod max. number of split nodes in one generated method
+     */
+    public void setMaxNodesPerMethod(int maxNodesPerMethod) {
+        this.maxNodesPerMethod = maxNodesPerMethod;
+    }
+
+    public int getMaxNodesPerClass() {
+        return maxNodesPerClass;
+    }
+
+    /**
+     * @param maxNodesPerClass max. number of split nodes in one generated class
+     */
+    public void setMaxNodesPerClass(int maxNodesPerClass) {
+        this.maxNodesPerClass = maxNodesPerClass;
+    }
+
+    public CompiledBinaryForest compile(List<FasterTree> trees) {
+        return compile(new FlatBinaryForestBuilder().buildFromFasterTrees(trees));
+    }
+
+    /**
+     * @throws IllegalStateException if the compiler is not available or compilation fails
+     */
+    public CompiledBinaryForest compile(FlatBinaryForest forest) {
+        Map<String, String> sources = generateSources(forest);
+        Map<String, byte[]> classBytes = compileSources(sources);
+
+        try {
+            ClassLoader loader = new GeneratedClassLoader(classBytes, ForestCompiler.class.getClassLoader());
+            @SuppressWarnings("unchecked")
+            ToDoubleFunction<double[]> treeSum = (ToDoubleFunction<double[]>)
+                    loader.loadClass(PACKAGE + "." + MAIN_CLASS).getDeclaredConstructor().newInstance();
+
+            return new CompiledBinaryForest(forest.getNumTrees(), forest.getMaxDepth(), treeSum);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to load compiled forest", e);
+        }
+    }
+
+//===============================================================================================//
+// source generation
+
+    /**
+     * @return map of fully qualified class name to source code
+     */
+    Map<String, String> generateSources(FlatBinaryForest forest) {
+        this.forest = forest;
+        this.childLeft = forest.getChildLeft();
+        this.childRight = forest.getChildRight();
+        this.subtreeSize = new int[childLeft.length];
+        this.classes = new ArrayList<>();
+        this.allocatedInClass = 0;
+        this.pending = new ArrayDeque<>();
+        this.methodCounter = 0;
+
+        int numTrees = forest.getNumTrees();
+        String[] treeMethods = new String[numTrees];
+
+        classes.add(new StringBuilder());
+        for (int t = 0; t != numTrees; ++t) {
+            int root = forest.getTreeRoot(t);
+            calculateSubtreeSizes(root);
+            PendingMethod method = allocateMethod(root);
+            treeMethods[t] = method.qualifiedName;
+
+            pending.add(method);
+            while (!pending.isEmpty()) {
+                generateMethod(pending.poll());
+            }
+        }
+
+        Map<String, String> sources = new HashMap<>();
+        for (int c = 0; c != classes.size(); ++c) {
+            String name = TREES_CLASS + c;
+            sources.put(PACKAGE + "." + name, "package " + PACKAGE + ";\n\npublic final class " + name + " {\n\n" + classes.get(c) + "}\n");
+        }
+        sources.put(PACKAGE + "." + MAIN_CLASS, generateMainClass(treeMethods));
+
+        this.forest = null;
+        this.classes = null;
+        this.subtreeSize = null;
+
+        return sources;
+    }
+
+    /**
+     * Sums trees in the same order as FlatBinaryForest.predict(), so results are identical.
+     */
+    private String generateMainClass(String[] treeMethods) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(PACKAGE).append(";\n\n");
+        sb.append("public final class ").append(MAIN_CLASS).append(" implements java.util.function.ToDoubleFunction<double[]> {\n\n");
+
+        int numSumMethods = (treeMethods.length + TREES_PER_SUM_METHOD - 1) / TREES_PER_SUM_METHOD;
+
+        sb.append("public double applyAsDouble(double[] x) {\ndouble s = 0d;\n");
+        for (int m = 0; m != numSumMethods; ++m) {
+            sb.append("s = sum").append(m).append("(x, s);\n");
+        }
+        sb.append("return s;\n}\n\n");
+
+        for (int m = 0; m != numSumMethods; ++m) {
+            sb.append("static double sum").append(m).append("(double[] x, double s) {\n");
+            int to = Math.min(treeMethods.length, (m + 1) * TREES_PER_SUM_METHOD);
+            for (int t = m * TREES_PER_SUM_METHOD; t != to; ++t) {
+                sb.append("s += ").append(treeMethods[t]).append("(x);\n");
+            }
+            sb.append("return s;\n}\n\n");
+        }
+
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Assigns a name and a class to a new method that will contain the subtree under node.
+     */
+    private PendingMethod allocateMethod(int node) {
+        int size = Math.min(subtreeSize[node], maxNodesPerMethod);
+        if (allocatedInClass > 0 && allocatedInClass + size > maxNodesPerClass) {
+            classes.add(new StringBuilder());
+            allocatedInClass = 0;
+        }
+        allocatedInClass += size;
+
+        int classIdx = classes.size() - 1;
+        String name = TREES_CLASS + classIdx + ".m" + methodCounter++;
+        return new PendingMethod(name, classIdx, node);
+    }
+
+    private int nodesInMethod;
+
+    private void generateMethod(PendingMethod method) {
+        StringBuilder sb = classes.get(method.classIdx);
+        sb.append("public static double ").append(method.simpleName()).append("(double[] x) {\n");
+        nodesInMethod = 0;
+        generateNode(sb, method.node);
+        sb.append("}\n\n");
+    }
+
+    private void generateNode(StringBuilder sb, int node) {
+        if (node < 0) {
+            sb.append("return ").append(literal(forest.getScore()[-node])).append(";\n");
+            return;
+        }
+
+        nodesInMethod++;
+        sb.append("if (x[").append(forest.getAttributeIndex()[node]).append("] < ")
+          .append(literal(forest.getSplitPoint()[node])).append(") {\n");
+        generateChild(sb, childLeft[node]);
+        sb.append("} else {\n");
+        generateChild(sb, childRight[node]);
+        sb.append("}\n");
+    }
+
+    private void generateChild(StringBuilder sb, int child) {
+        if (child >= 0 && nodesInMethod + subtreeSize[child] > maxNodesPerMethod) {
+            PendingMethod method = allocateMethod(child);
+            pending.add(method);
+            sb.append("return ").append(method.qualifiedName).append("(x);\n");
+        } else {
+            generateNode(sb, child);
+        }
+    }
+
+    /**
+     * Calculates number of split nodes under each split node of the tree (post-order, without recursion).
+     */
+    private void calculateSubtreeSizes(int root) {
+        int[] stack = new int[16];
+        int[] preOrder = new int[16];
+        int sp = 0;
+        int numVisited = 0;
+        stack[sp++] = root;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (numVisited == preOrder.length) {
+                preOrder = Arrays.copyOf(preOrder, 2 * preOrder.length);
+            }
+            preOrder[numVisited++] = node;
+            if (sp + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            if (childLeft[node] >= 0) {
+                stack[sp++] = childLeft[node];
+            }
+            if (childRight[node] >= 0) {
+                stack[sp++] = childRight[node];
+            }
+        }
+        for (int i = numVisited - 1; i >= 0; --i) {
+            int node = preOrder[i];
+            subtreeSize[node] = 1 + size(childLeft[node]) + size(childRight[node]);
+        }
+    }
+
+    private int size(int node) {
+        return node < 0 ? 0 : subtreeSize[node];
+    }
+
+    private static String literal(double value) {
+        if (Double.isNaN(value)) {
+            return "Double.NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        return Double.toString(value);  // shortest representation that parses back to the same double
+    }
+
+//===============================================================================================//
+// compilation
+
+    private static Map<String, byte[]> compileSources(Map<String, String> sources) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Java compiler is not available (running on JRE instead of JDK?)");
+        }
+
+        List<JavaFileObject> units = new ArrayList<>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            units.add(new SourceFile(source.getKey(), source.getValue()));
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standardManager = compiler.getStandardFileManager(diagnostics, null, null);
+        InMemoryFileManager fileManager = new InMemoryFileManager(standardManager);
+
+        List<String> options = Arrays.asList("-g:none", "-nowarn", "-proc:none");
+        boolean ok = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+
+        if (!ok) {
+            StringBuilder msg = new StringBuilder("Compilation of generated forest failed:");
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                msg.append("\n").append(d.getMessage(null));
+            }
+            throw new IllegalStateException(msg.toString());
+        }
+
+        return fileManager.getClassBytes();
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String code;
+
+        SourceFile(String className, String code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private static class ClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+    }
+
+    private static class InMemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        private final Map<String, ClassFile> classFiles = new HashMap<>();
+
+        InMemoryFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+            ClassFile file = new ClassFile(className);
+            classFiles.put(className, file);
+            return file;
+        }
+
+        Map<String, byte[]> getClassBytes() {
+            Map<String, byte[]> res = new HashMap<>();
+            for (Map.Entry<String, ClassFile> e : classFiles.entrySet()) {
+                res.put(e.getKey(), e.getValue().bytes.toByteArray());
+            }
+            return res;
+        }
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classBytes;
+
+        GeneratedClassLoader(Map<String, byte[]> classBytes, ClassLoader parent) {
+            super(parent);
+            this.classBytes = classBytes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classBytes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package cz.siret.prank.fforest.api;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * FlatBinaryForest backed by a memory-mapped file instead of heap arrays.
+ * Same structure and results as FlatBinaryForest.
+ *
+ * @see FlatBinaryForestFile#map(java.io.File)
+ */
+public class MappedBinaryForest implements BinaryForest {
+
+    private final int numTrees;
+    private int maxDepth = -1; // lazy, -1 = not calculated yet
+
+    private final IntBuffer treeRoots;
+    private final IntBuffer childLeft;
+    private final IntBuffer childRight;
+    private final IntBuffer attributeIndex;
+    private final DoubleBuffer splitPoint;
+    private final DoubleBuffer score;
+
+    MappedBinaryForest(int numTrees, IntBuffer treeRoots, IntBuffer childLeft, IntBuffer childRight,
+                       IntBuffer attributeIndex, DoubleBuffer splitPoint, DoubleBuffer score) {
+        this.numTrees = numTrees;
+        this.treeRoots = treeRoots;
+        this.childLeft = childLeft;
+        this.childRight = childRight;
+        this.attributeIndex = attributeIndex;
+        this.splitPoint = splitPoint;
+        this.score = score;
+    }
+
+//===============================================================================================//
+
+    @Override
+    public int getNumClasses() {
+        return 2;
+    }
+
+    @Override
+    public int getNumTrees() {
+        return numTrees;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        if (maxDepth < 0) {
+            maxDepth = calculateMaxDepth();
+        }
+        return maxDepth;
+    }
+
+    @Override
+    public double predict(double[] instanceAttributes) {
+        double sum = 0d;
+
+        for (int i=0; i!=numTrees; ++i) {
+            sum += predictTree(i, instanceAttributes);
+        }
+
+        return sum / numTrees;
+    }
+
+    /**
+     * @return heap copy of the forest
+     */
+    public FlatBinaryForest toFlatBinaryForest() {
+        return new FlatBinaryForest(numTrees, toArray(childRight), toArray(childLeft), toArray(attributeIndex),
+                toArray(splitPoint), toArray(score), toArray(treeRoots));
+    }
+
+//===============================================================================================//
+
+    /**
+     * Node indexes were validated in FlatBinaryForestFile.map(), so the loop always ends in a leaf.
+     */
+    private double predictTree(int tree, double[] instanceAttributes) {
+        int currentNode = treeRoots.get(tree);
+
+        while (true) {
+            if (instanceAttributes[attributeIndex.get(currentNode)] < splitPoint.get(currentNode)) {
+                currentNode = childLeft.get(currentNode);
+            } else {
+                currentNode = childRight.get(currentNode);
+            }
+
+            if (currentNode < 0) {
+                return score.get(-currentNode);
+            }
+        }
+    }
+
+    private int calculateMaxDepth() {
+        int max = 0;
+
+        // explicit stack of (node, depth) pairs
+        int[] stack = new int[64];
+        for (int t=0; t!=numTrees; ++t) {
+            int sp = 0;
+            stack[sp++] = treeRoots.get(t);
+            stack[sp++] = 1;
+            while (sp > 0) {
+                int depth = stack[--sp];
+                int node = stack[--sp];
+                max = Math.max(max, depth);
+                if (sp + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                int left = childLeft.get(node);
+                int right = childRight.get(node);
+                if (left >= 0) {
+                    stack[sp++] = left;
+                    stack[sp++] = depth + 1;
+                }
+                if (right >= 0) {
+                    stack[sp++] = right;
+                    stack[sp++] = depth + 1;
+                }
+            }
+        }
+
+        return max;
+    }
+
+    private static int[] toArray(IntBuffer buf) {
+        int[] res = new int[buf.capacity()];
+        buf.duplicate().get(res);
+        return res;
+    }
+
+    private static double[] toArray(DoubleBuffer buf) {
+        double[] res = new double[buf.capacity()];
+        buf.duplicate().get(res);
+        return res;
+    }
+
+}
@@ -0,0 +1,182 @@
+package cz.siret.prank.fforest.api;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compact alternative to FlatBinaryForest that stores every node (split nodes and leaves) in a single long[].
+ *
+ * Node encoding (one 64-bit word):
+ * <pre>
+ *   bits 63..32  split point as float (split node) or score as float (leaf)
+ *   bits 31..16  attribute index as unsigned short, LEAF (0xFFFF) marks a leaf
+ *   bits 15..0   offset of the left child relative to this node, right child is stored right after the left one
+ * </pre>
+ *
+ * Uses 8 bytes per node compared to 24 bytes per split node + 8 bytes per leaf in FlatBinaryForest.
+ * Split points are rounded up to the nearest float, so results are exact for attribute values
+ * representable as float (as in the training DataCache). Scores are rounded to float.
+ *
+ * @see PackedBinaryForestBuilder
+ */
+public class PackedBinaryForest implements BinaryForest, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** attribute index marking a leaf */
+    static final int LEAF = 0xFFFF;
+
+    /** maximal attribute index that can be encoded */
+    static final int MAX_ATTRIBUTE = LEAF - 1;
+
+    /** maximal relative offset of children that can be encoded */
+    static final int MAX_OFFSET = 0xFFFF;
+
+    private static final int BATCH_BLOCK_SIZE = 256;
+
+    private final int numTrees;
+    private transient int maxDepth = -1; // lazy, -1 = not calculated yet
+
+    private final long[] nodes;
+    private final int[] treeRoots;
+
+    public PackedBinaryForest(long[] nodes, int[] treeRoots) {
+        this.numTrees = treeRoots.length;
+        this.nodes = nodes;
+        this.treeRoots = treeRoots;
+    }
+
+//===============================================================================================//
+
+    static long encodeSplit(int attribute, float splitPoint, int childOffset) {
+        return ((long) Float.floatToRawIntBits(splitPoint) << 32) | ((long) attribute << 16) | childOffset;
+    }
+
+    static long encodeLeaf(float score) {
+        return ((long) Float.floatToRawIntBits(score) << 32) | ((long) LEAF << 16);
+    }
+
+    static boolean isLeaf(long node) {
+        return (((int) node) >>> 16) == LEAF;
+    }
+
+    static float value(long node) {
+        return Float.intBitsToFloat((int) (node >>> 32));
+    }
+
+//===============================================================================================//
+
+    @Override
+    public int getNumClasses() {
+        return 2;
+    }
+
+    @Override
+    public int getNumTrees() {
+        return numTrees;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        if (maxDepth < 0) {
+            maxDepth = calculateMaxDepth();
+        }
+        return maxDepth;
+    }
+
+    /**
+     * @return number of longs used for nodes
+     */
+    public int getNumNodes() {
+        return nodes.length;
+    }
+
+    @Override
+    public double predict(double[] instanceAttributes) {
+        double sum = 0d;
+
+        for (int i=0; i!=numTrees; ++i) {
+            sum += predictTree(i, instanceAttributes);
+        }
+
+        return sum / numTrees;
+    }
+
+    @Override
+    public void predictBatch(double[][] rows, int from, int to, double[] out) {
+        for (int blockStart = from; blockStart < to; blockStart += BATCH_BLOCK_SIZE) {
+            int blockEnd = Math.min(to, blockStart + BATCH_BLOCK_SIZE);
+
+            for (int i = blockStart; i != blockEnd; ++i) {
+                out[i] = 0d;
+            }
+            for (int tree = 0; tree != numTrees; ++tree) {
+                for (int i = blockStart; i != blockEnd; ++i) {
+                    out[i] += predictTree(tree, rows[i]);
+                }
+            }
+            for (int i = blockStart; i != blockEnd; ++i) {
+                out[i] /= numTrees;
+            }
+        }
+    }
+
+//===============================================================================================//
+
+    private double predictTree(int tree, double[] instanceAttributes) {
+        long[] nodes = this.nodes;
+        int currentNode = treeRoots[tree];
+
+        while (true) {
+            long node = nodes[currentNode];
+            int lo = (int) node;
+            int attr = lo >>> 16;
+
+            if (attr == LEAF) {
+                return Float.intBitsToFloat((int) (node >>> 32));
+            }
+
+            float split = Float.intBitsToFloat((int) (node >>> 32));
+            currentNode += (lo & 0xFFFF) + (instanceAttributes[attr] < split ? 0 : 1);
+        }
+    }
+
+    /**
+     * Re-creates transient fields after deserialization.
+     */
+    private Object readResolve() {
+        return new PackedBinaryForest(nodes, treeRoots);
+    }
+
+    private int calculateMaxDepth() {
+        int max = 0;
+
+        // explicit stack of (node, depth) pairs
+        int[] stack = new int[64];
+        for (int t=0; t!=numTrees; ++t) {
+            int sp = 0;
+            stack[sp++] = treeRoots[t];
+            stack[sp++] = 0;
+            while (sp > 0) {
+                int depth = stack[--sp];
+                int idx = stack[--sp];
+                long node = nodes[idx];
+                if (isLeaf(node)) {
+                    max = Math.max(max, depth);
+                    continue;
+                }
+                if (sp + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                int left = idx + (((int) node) & 0xFFFF);
+                stack[sp++] = left;
+                stack[sp++] = depth + 1;
+                stack[sp++] = left + 1;
+                stack[sp++] = depth + 1;
+            }
+        }
+
+        return max;
+    }
+
+}
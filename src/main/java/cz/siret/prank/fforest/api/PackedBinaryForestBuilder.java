@@ -0,0 +1,117 @@
+package cz.siret.prank.fforest.api;
+
+import cz.siret.prank.fforest.FasterTree;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Builds PackedBinaryForest from a list of trained trees.
+ *
+ * Each tree is stored in its own contiguous block in breadth-first order, where both children of a split node
+ * are stored next to each other. Relative child offsets are therefore bounded by the width of the tree.
+ */
+public class PackedBinaryForestBuilder {
+
+    /**
+     * Use only positive class probability
+     */
+    boolean useOnlyPositive = false;
+
+//===============================================================================================//
+
+    /**
+     * @param trees
+     * @param useOnlyPositiveClassProbability Use only positive class probability p_class[1] instead of ratio p_class[1] / (p_class[0] + p_class[1])
+     */
+    public PackedBinaryForest buildFromFasterTrees(List<FasterTree> trees, boolean useOnlyPositiveClassProbability) {
+        useOnlyPositive = useOnlyPositiveClassProbability;
+        return buildFromFasterTrees(trees);
+    }
+
+    /**
+     * @throws IllegalArgumentException if some attribute index or child offset doesn't fit into 16 bits
+     */
+    public PackedBinaryForest buildFromFasterTrees(List<FasterTree> trees) {
+        int numTrees = trees.size();
+
+        int numNodes = 0;
+        for (FasterTree tree : trees) {
+            numNodes += countNodes(tree);
+        }
+
+        long[] nodes = new long[numNodes];
+        int[] treeRoots = new int[numTrees];
+
+        int pos = 0;
+        ArrayDeque<FasterTree> queue = new ArrayDeque<>();
+
+        for (int t=0; t!=numTrees; ++t) {
+            treeRoots[t] = pos;
+
+            // node at queue position i is stored at nodes[treeRoots[t] + i]
+            int current = pos;
+            queue.add(trees.get(t));
+            pos++;
+
+            while (!queue.isEmpty()) {
+                FasterTree node = queue.poll();
+
+                if (node.isLeaf()) {
+                    nodes[current] = PackedBinaryForest.encodeLeaf(getScore(node));
+                } else {
+                    int attribute = node.getAttribute();
+                    int offset = pos - current;
+                    if (attribute > PackedBinaryForest.MAX_ATTRIBUTE) {
+                        throw new IllegalArgumentException("Attribute index too large for packed encoding: " + attribute);
+                    }
+                    if (offset > PackedBinaryForest.MAX_OFFSET) {
+                        throw new IllegalArgumentException("Tree " + t + " too wide for packed encoding (child offset " + offset + "), use FlatBinaryForest");
+                    }
+                    nodes[current] = PackedBinaryForest.encodeSplit(attribute, roundUp(node.getSplitPoint()), offset);
+
+                    queue.add(node.getSucessorLeft());
+                    queue.add(node.getSucessorRight());
+                    pos += 2;
+                }
+                current++;
+            }
+        }
+
+        return new PackedBinaryForest(nodes, treeRoots);
+    }
+
+    private float getScore(FasterTree leaf) {
+        return (float) FlatBinaryForestBuilder.getScoreFromProbs(leaf.getClassProbs(), useOnlyPositive);
+    }
+
+    /**
+     * Smallest float >= split point. For any float value x: x < split  <=>  x < roundUp(split).
+     */
+    static float roundUp(double splitPoint) {
+        float res = (float) splitPoint;
+        if (res < splitPoint) {
+            res = Math.nextUp(res);
+        }
+        return res;
+    }
+
+    /**
+     * @return number of all nodes (split nodes and leaves)
+     */
+    private static int countNodes(FasterTree tree) {
+        int res = 0;
+        ArrayDeque<FasterTree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            FasterTree node = stack.pop();
+            res++;
+            if (!node.isLeaf()) {
+                stack.push(node.getSucessorLeft());
+                stack.push(node.getSucessorRight());
+            }
+        }
+        return res;
+    }
+
+}
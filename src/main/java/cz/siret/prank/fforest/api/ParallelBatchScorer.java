@@ -0,0 +1,211 @@
+package cz.siret.prank.fforest.api;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scores batches of rows with FlatBinaryForest in parallel on a ForkJoinPool.
+ *
+ * Large batches are split by rows (instance-parallel). Small batches on big forests are split by trees
+ * (tree-parallel): each task sums scores of its range of trees for all rows into its own partial sums
+ * that are added together when tasks are joined. Results of tree-parallel mode can differ from predict()
+ * in the last bits because of different summation order.
+ *
+ * Rows/sec achieved by the last call are available via getLastRowsPerSecond().
+ */
+public class ParallelBatchScorer {
+
+    public enum Mode {
+        /** choose by batch size, forest size and pool parallelism */
+        AUTO,
+        /** calling thread only */
+        SEQUENTIAL,
+        /** rows split among tasks */
+        INSTANCE_PARALLEL,
+        /** trees split among tasks, partial sums per task */
+        TREE_PARALLEL
+    }
+
+    /** rows scored by one instance-parallel task */
+    private static final int ROWS_PER_TASK = 256;
+
+    /** minimal number of trees scored by one tree-parallel task */
+    private static final int TREES_PER_TASK = 8;
+
+    private final FlatBinaryForest forest;
+    private final ForkJoinPool pool;
+
+    private Mode mode = Mode.AUTO;
+
+    private volatile Mode lastMode;
+    private volatile double lastRowsPerSecond;
+
+    public ParallelBatchScorer(FlatBinaryForest forest) {
+        this(forest, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool pool to run on, owned by the caller
+     */
+    public ParallelBatchScorer(FlatBinaryForest forest, ForkJoinPool pool) {
+        this.forest = forest;
+        this.pool = pool;
+    }
+
+//===============================================================================================//
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode AUTO (default) or a fixed mode
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return mode used by the last call of predictBatch()
+     */
+    public Mode getLastMode() {
+        return lastMode;
+    }
+
+    /**
+     * @return rows per second achieved by the last call of predictBatch()
+     */
+    public double getLastRowsPerSecond() {
+        return lastRowsPerSecond;
+    }
+
+    public double[] predictBatch(double[][] rows) {
+        double[] out = new double[rows.length];
+        predictBatch(rows, 0, rows.length, out);
+        return out;
+    }
+
+    /**
+     * Same as BinaryForest.predictBatch(), writes forest.predict(rows[i]) to out[i] for i in [from, to).
+     */
+    public void predictBatch(double[][] rows, int from, int to, double[] out) {
+        long start = System.nanoTime();
+
+        Mode m = (mode == Mode.AUTO) ? chooseMode(to - from) : mode;
+        switch (m) {
+            case SEQUENTIAL:
+                forest.predictBatch(rows, from, to, out);
+                break;
+            case INSTANCE_PARALLEL:
+                pool.invoke(new InstanceTask(rows, from, to, out));
+                break;
+            case TREE_PARALLEL:
+                predictTreeParallel(rows, from, to, out);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected mode: " + m);
+        }
+
+        long nanos = Math.max(1, System.nanoTime() - start);
+        lastMode = m;
+        lastRowsPerSecond = (to - from) * 1e9 / nanos;
+    }
+
+//===============================================================================================//
+
+    Mode chooseMode(int numRows) {
+        int parallelism = pool.getParallelism();
+
+        if (parallelism <= 1) {
+            return Mode.SEQUENTIAL;
+        }
+        if (numRows >= parallelism * ROWS_PER_TASK) {
+            return Mode.INSTANCE_PARALLEL;
+        }
+        if (forest.getNumTrees() >= 2 * TREES_PER_TASK) {
+            return Mode.TREE_PARALLEL;
+        }
+        return numRows > ROWS_PER_TASK ? Mode.INSTANCE_PARALLEL : Mode.SEQUENTIAL;
+    }
+
+    private void predictTreeParallel(double[][] rows, int from, int to, double[] out) {
+        int numTrees = forest.getNumTrees();
+        int treesPerTask = Math.max(TREES_PER_TASK, numTrees / (2 * pool.getParallelism()));
+
+        double[] sums = pool.invoke(new TreeTask(rows, from, to, 0, numTrees, treesPerTask));
+
+        for (int i = from; i != to; ++i) {
+            out[i] = sums[i - from] / numTrees;
+        }
+    }
+
+    private class InstanceTask extends RecursiveAction {
+        final double[][] rows;
+        final int from;
+        final int to;
+        final double[] out;
+
+        InstanceTask(double[][] rows, int from, int to, double[] out) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                forest.predictBatch(rows, from, to, out);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new InstanceTask(rows, from, mid, out), new InstanceTask(rows, mid, to, out));
+            }
+        }
+    }
+
+    /**
+     * @return partial sums of scores of trees [treeFrom, treeTo) for rows [from, to)
+     */
+    private class TreeTask extends RecursiveTask<double[]> {
+        final double[][] rows;
+        final int from;
+        final int to;
+        final int treeFrom;
+        final int treeTo;
+        final int treesPerTask;
+
+        TreeTask(double[][] rows, int from, int to, int treeFrom, int treeTo, int treesPerTask) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.treeFrom = treeFrom;
+            this.treeTo = treeTo;
+            this.treesPerTask = treesPerTask;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (treeTo - treeFrom <= treesPerTask) {
+                double[] sums = new double[to - from];
+                for (int tree = treeFrom; tree != treeTo; ++tree) {
+                    for (int i = from; i != to; ++i) {
+                        sums[i - from] += forest.predictTree(tree, rows[i]);
+                    }
+                }
+                return sums;
+            }
+
+            int mid = (treeFrom + treeTo) >>> 1;
+            TreeTask left = new TreeTask(rows, from, to, treeFrom, mid, treesPerTask);
+            left.fork();
+            double[] sums = new TreeTask(rows, from, to, mid, treeTo, treesPerTask).compute();
+            double[] leftSums = left.join();
+            for (int i = 0; i != sums.length; ++i) {
+                sums[i] += leftSums[i];
+            }
+            return sums;
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package cz.siret.prank.fforest.api;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Compact BinaryForest with quantized leaf scores.
+ *
+ * Each split node is one long with variable width fields (widths are chosen by the builder):
+ * <pre>
+ *   attribute | threshold index | left child ref | right child ref
+ * </pre>
+ * Threshold index points to a table of split points (per-attribute tables of distinct split points concatenated),
+ * so split points are exact. Child ref is either an offset to a split node of the same tree (split nodes of a tree
+ * are stored in breadth-first order) or, with the highest bit set, the index of a leaf within the tree.
+ *
+ * Leaf scores are stored as 8 or 16 bit codes to a per-forest codebook, so predictions differ from the exact
+ * model by at most getMaxLeafError().
+ *
+ * @see QuantizedBinaryForestBuilder
+ */
+public class QuantizedBinaryForest implements BinaryForest, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int numTrees;
+    private final int maxDepth;
+
+    private final long[] nodes;
+    private final int[] treeRoots;
+    private final int[] treeLeafBase;
+
+    private final double[] thresholds;
+
+    /** leaf codes, exactly one of them is not null */
+    private final byte[] leafCodes8;
+    private final short[] leafCodes16;
+    private final double[] codebook;
+
+    private final int attributeShift;
+    private final int thresholdShift;
+    private final int thresholdMask;
+    private final int childBits;
+    private final int childMask;
+    private final int leafFlag;
+
+    private final double maxLeafError;
+
+    QuantizedBinaryForest(long[] nodes, int[] treeRoots, int[] treeLeafBase, double[] thresholds,
+                          byte[] leafCodes8, short[] leafCodes16, double[] codebook,
+                          int attributeBits, int thresholdBits, int childBits, double maxLeafError) {
+        this.numTrees = treeRoots.length;
+        this.nodes = nodes;
+        this.treeRoots = treeRoots;
+        this.treeLeafBase = treeLeafBase;
+        this.thresholds = thresholds;
+        this.leafCodes8 = leafCodes8;
+        this.leafCodes16 = leafCodes16;
+        this.codebook = codebook;
+        this.attributeShift = 64 - attributeBits;
+        this.thresholdShift = 2 * childBits;
+        this.thresholdMask = (int) ((1L << thresholdBits) - 1);
+        this.childBits = childBits;
+        this.childMask = (int) ((1L << childBits) - 1);
+        this.leafFlag = 1 << (childBits - 1);
+        this.maxLeafError = maxLeafError;
+        this.maxDepth = calculateMaxDepth();  // eagerly, so that it is serialized with the forest
+    }
+
+//===============================================================================================//
+
+    @Override
+    public int getNumClasses() {
+        return 2;
+    }
+
+    @Override
+    public int getNumTrees() {
+        return numTrees;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return max. absolute difference between exact and quantized score of a leaf, also bounds the error of predict()
+     */
+    public double getMaxLeafError() {
+        return maxLeafError;
+    }
+
+    /**
+     * @return size of model arrays in bytes
+     */
+    public long getDataSizeBytes() {
+        long res = nodes.length * 8L + treeRoots.length * 4L + treeLeafBase.length * 4L + thresholds.length * 8L + codebook.length * 8L;
+        res += (leafCodes8 != null) ? leafCodes8.length : leafCodes16.length * 2L;
+        return res;
+    }
+
+    @Override
+    public double predict(double[] instanceAttributes) {
+        double sum = 0d;
+
+        for (int i=0; i!=numTrees; ++i) {
+            sum += predictTree(i, instanceAttributes);
+        }
+
+        return sum / numTrees;
+    }
+
+//===============================================================================================//
+
+    private double predictTree(int tree, double[] instanceAttributes) {
+        int currentNode = treeRoots[tree];
+
+        while (true) {
+            long node = nodes[currentNode];
+            int attr = (int) (node >>> attributeShift);
+            double split = thresholds[(int) (node >>> thresholdShift) & thresholdMask];
+
+            int ref = (instanceAttributes[attr] < split) ? (int) (node >>> childBits) & childMask : (int) node & childMask;
+
+            if ((ref & leafFlag) != 0) {
+                int leaf = treeLeafBase[tree] + (ref & ~leafFlag);
+                return codebook[leafCodes8 != null ? leafCodes8[leaf] & 0xFF : leafCodes16[leaf] & 0xFFFF];
+            }
+            currentNode += ref;
+        }
+    }
+
+    private int calculateMaxDepth() {
+        int max = 0;
+
+        // explicit stack of (node, depth) pairs
+        int[] stack = new int[64];
+        for (int t=0; t!=numTrees; ++t) {
+            int sp = 0;
+            stack[sp++] = treeRoots[t];
+            stack[sp++] = 1;
+            while (sp > 0) {
+                int depth = stack[--sp];
+                int idx = stack[--sp];
+                max = Math.max(max, depth);
+                if (sp + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                long node = nodes[idx];
+                int left = (int) (node >>> childBits) & childMask;
+                int right = (int) node & childMask;
+                if ((left & leafFlag) == 0) {
+                    stack[sp++] = idx + left;
+                    stack[sp++] = depth + 1;
+                }
+                if ((right & leafFlag) == 0) {
+                    stack[sp++] = idx + right;
+                    stack[sp++] = depth + 1;
+                }
+            }
+        }
+
+        return max;
+    }
+
+}
@@ -0,0 +1,274 @@
+package cz.siret.prank.fforest.api;
+
+import cz.siret.prank.fforest.FasterTree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds QuantizedBinaryForest from FlatBinaryForest or from a list of trained trees.
+ *
+ * Codebook of leaf scores contains all distinct scores if there are at most 2^leafBits of them (lossless),
+ * otherwise it is a uniform grid between min. and max. score.
+ */
+public class QuantizedBinaryForestBuilder {
+
+    /**
+     * Use only positive class probability
+     */
+    boolean useOnlyPositive = false;
+
+    /**
+     * 8 or 16
+     */
+    int leafBits = 8;
+
+//===============================================================================================//
+
+    /** concatenated per-attribute tables of distinct split points */
+    private double[] thresholds;
+    private int[] tableStart;
+
+    private double[] codebook;
+    private boolean exactCodebook;
+
+//===============================================================================================//
+
+    public int getLeafBits() {
+        return leafBits;
+    }
+
+    /**
+     * @param leafBits bits per leaf score code, 8 or 16
+     */
+    public void setLeafBits(int leafBits) {
+        if (leafBits != 8 && leafBits != 16) {
+            throw new IllegalArgumentException("leafBits must be 8 or 16");
+        }
+        this.leafBits = leafBits;
+    }
+
+    /**
+     * @param trees
+     * @param useOnlyPositiveClassProbability Use only positive class probability p_class[1] instead of ratio p_class[1] / (p_class[0] + p_class[1])
+     */
+    public QuantizedBinaryForest buildFromFasterTrees(List<FasterTree> trees, boolean useOnlyPositiveClassProbability) {
+        useOnlyPositive = useOnlyPositiveClassProbability;
+        return buildFromFasterTrees(trees);
+    }
+
+    public QuantizedBinaryForest buildFromFasterTrees(List<FasterTree> trees) {
+        return buildFromFlatBinaryForest(new FlatBinaryForestBuilder().buildFromFasterTrees(trees, useOnlyPositive));
+    }
+
+    /**
+     * @throws IllegalArgumentException if some tree is too large for the bits left for child refs
+     */
+    public QuantizedBinaryForest buildFromFlatBinaryForest(FlatBinaryForest flat) {
+        int numTrees = flat.getNumTrees();
+        int[] childLeft = flat.getChildLeft();
+        int[] childRight = flat.getChildRight();
+
+        // 1. layout: split nodes of each tree in BFS order, leaves numbered within tree
+        //    child ref: offset > 0 to a split node, -(leaf + 1) for a leaf
+
+        int[] order = new int[childLeft.length];
+        int[] leftRef = new int[childLeft.length];
+        int[] rightRef = new int[childLeft.length];
+        int[] treeRoots = new int[numTrees];
+        int[] treeLeafBase = new int[numTrees];
+        int[] leafScoreIdx = new int[flat.getScore().length + numTrees];  // single leaf tree uses the same leaf twice
+        int numNodes = 0;
+        int numLeaves = 0;
+        int maxRef = 0;
+
+        for (int t = 0; t != numTrees; ++t) {
+            treeRoots[t] = numNodes;
+            treeLeafBase[t] = numLeaves;
+            order[numNodes++] = flat.getTreeRoot(t);
+
+            for (int k = treeRoots[t]; k != numNodes; ++k) {  // numNodes grows while iterating
+                int node = order[k];
+                for (int c = 0; c != 2; ++c) {
+                    int child = (c == 0) ? childLeft[node] : childRight[node];
+                    int ref;
+                    if (child < 0) {
+                        leafScoreIdx[numLeaves] = -child;
+                        ref = numLeaves - treeLeafBase[t];
+                        maxRef = Math.max(maxRef, ref);
+                        ref = -(ref + 1);
+                        numLeaves++;
+                    } else {
+                        order[numNodes] = child;
+                        ref = numNodes - k;
+                        maxRef = Math.max(maxRef, ref);
+                        numNodes++;
+                    }
+                    if (c == 0) {
+                        leftRef[k] = ref;
+                    } else {
+                        rightRef[k] = ref;
+                    }
+                }
+            }
+        }
+
+        // 2. tables
+
+        buildThresholdTables(flat, order, numNodes);
+        double[] leafScores = new double[numLeaves];
+        for (int i = 0; i != numLeaves; ++i) {
+            leafScores[i] = flat.getScore()[leafScoreIdx[i]];
+        }
+        buildCodebook(leafScores);
+
+        // 3. encoding
+
+        int attributeBits = bitsFor(tableStart.length - 1);
+        int thresholdBits = bitsFor(thresholds.length);
+        int childBits = (64 - attributeBits - thresholdBits) / 2;
+        if (maxRef >= 1L << (childBits - 1)) {
+            throw new IllegalArgumentException("Forest is too large for quantized encoding (child ref " + maxRef
+                    + " doesn't fit to " + (childBits - 1) + " bits)");
+        }
+
+        long[] nodes = new long[numNodes];
+        for (int k = 0; k != numNodes; ++k) {
+            int node = order[k];
+            int attr = flat.getAttributeIndex()[node];
+            long threshold = Arrays.binarySearch(thresholds, tableStart[attr], tableStart[attr + 1], flat.getSplitPoint()[node]);
+            nodes[k] = ((long) attr << (64 - attributeBits)) | (threshold << (2 * childBits))
+                    | (encodeRef(leftRef[k], childBits) << childBits) | encodeRef(rightRef[k], childBits);
+        }
+
+        double maxLeafError = 0;
+        byte[] codes8 = leafBits == 8 ? new byte[numLeaves] : null;
+        short[] codes16 = leafBits == 16 ? new short[numLeaves] : null;
+        for (int i = 0; i != numLeaves; ++i) {
+            int code = encodeScore(leafScores[i]);
+            maxLeafError = Math.max(maxLeafError, Math.abs(leafScores[i] - codebook[code]));
+            if (codes8 != null) {
+                codes8[i] = (byte) code;
+            } else {
+                codes16[i] = (short) code;
+            }
+        }
+
+        return new QuantizedBinaryForest(nodes, treeRoots, treeLeafBase, thresholds, codes8, codes16, codebook,
+                attributeBits, thresholdBits, childBits, maxLeafError);
+    }
+
+    /**
+     * Measures error of the quantized model against the exact model.
+     *
+     * @return {max. absolute error, mean absolute error} of predict() on given rows
+     */
+    public static double[] measureError(BinaryForest exact, BinaryForest quantized, double[][] rows) {
+        double max = 0;
+        double sum = 0;
+        for (double[] row : rows) {
+            double err = Math.abs(exact.predict(row) - quantized.predict(row));
+            max = Math.max(max, err);
+            sum += err;
+        }
+        return new double[] {max, rows.length == 0 ? 0 : sum / rows.length};
+    }
+
+//===============================================================================================//
+
+    private static long encodeRef(int ref, int childBits) {
+        if (ref < 0) {
+            return (-ref - 1) | (1L << (childBits - 1));  // leaf flag
+        }
+        return ref;
+    }
+
+    /**
+     * @return number of bits needed to store values 0 .. n-1
+     */
+    private static int bitsFor(int n) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, n - 1)));
+    }
+
+    private void buildThresholdTables(FlatBinaryForest flat, int[] splitNodes, int numSplitNodes) {
+        int[] attributeIndex = flat.getAttributeIndex();
+        double[] splitPoint = flat.getSplitPoint();
+
+        int numAttributes = 0;
+        for (int k = 0; k != numSplitNodes; ++k) {
+            numAttributes = Math.max(numAttributes, attributeIndex[splitNodes[k]] + 1);
+        }
+
+        int[] counts = new int[numAttributes];
+        for (int k = 0; k != numSplitNodes; ++k) {
+            counts[attributeIndex[splitNodes[k]]]++;
+        }
+        double[][] perAttribute = new double[numAttributes][];
+        for (int a = 0; a != numAttributes; ++a) {
+            perAttribute[a] = new double[counts[a]];
+            counts[a] = 0;
+        }
+        for (int k = 0; k != numSplitNodes; ++k) {
+            int a = attributeIndex[splitNodes[k]];
+            perAttribute[a][counts[a]++] = splitPoint[splitNodes[k]];
+        }
+
+        // sorted distinct values of each attribute
+        tableStart = new int[numAttributes + 1];
+        double[] res = new double[numSplitNodes];
+        int pos = 0;
+        for (int a = 0; a != numAttributes; ++a) {
+            tableStart[a] = pos;
+            double[] values = perAttribute[a];
+            Arrays.sort(values);
+            for (int i = 0; i != values.length; ++i) {
+                if (i == 0 || Double.compare(values[i], values[i - 1]) != 0) {
+                    res[pos++] = values[i];
+                }
+            }
+        }
+        tableStart[numAttributes] = pos;
+        thresholds = Arrays.copyOf(res, pos);
+    }
+
+    private void buildCodebook(double[] leafScores) {
+        double[] scores = leafScores.clone();
+        Arrays.sort(scores);
+
+        int size = 1 << leafBits;
+        double[] distinct = new double[size];
+        int numDistinct = 0;
+        exactCodebook = true;
+        for (double s : scores) {
+            if (numDistinct == 0 || Double.compare(s, distinct[numDistinct - 1]) != 0) {
+                if (numDistinct == size) {
+                    exactCodebook = false;
+                    break;
+                }
+                distinct[numDistinct++] = s;
+            }
+        }
+
+        if (exactCodebook) {
+            codebook = Arrays.copyOf(distinct, Math.max(1, numDistinct));
+        } else {
+            double min = scores[0];
+            double max = scores[scores.length - 1];
+            codebook = new double[size];
+            for (int i = 0; i != size; ++i) {
+                codebook[i] = min + (max - min) * i / (size - 1);
+            }
+        }
+    }
+
+    private int encodeScore(double score) {
+        if (exactCodebook) {
+            return Arrays.binarySearch(codebook, score);
+        }
+        double min = codebook[0];
+        double max = codebook[codebook.length - 1];
+        int code = (int) Math.round((score - min) / (max - min) * (codebook.length - 1));
+        return Math.max(0, Math.min(codebook.length - 1, code));
+    }
+
+}
@@ -0,0 +1,156 @@
+package cz.siret.prank.fforest.api;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * BinaryForest that scores trees with up to 64 leaves by the QuickScorer algorithm
+ * (Lucchese et al., SIGIR 2015).
+ *
+ * Split nodes of all such trees are grouped by attribute and sorted by split point. For an instance, each attribute
+ * is scanned from the smallest split point up to the first one that is greater than the attribute value. Every scanned
+ * node is a node where the instance goes right, so its bitmask clears the leaves of its left subtree in the bitvector
+ * of its tree. Leaves are numbered from left to right, so the exit leaf of each tree is the lowest remaining bit.
+ *
+ * Trees with more than 64 leaves are evaluated by the underlying FlatBinaryForest.
+ *
+ * @see QuickScorerForestBuilder
+ */
+public class QuickScorerForest implements BinaryForest, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** maximal number of leaves of a tree evaluated with bitvectors */
+    public static final int MAX_LEAVES = 64;
+
+    private static final int BATCH_BLOCK_SIZE = 256;
+
+    private final FlatBinaryForest flat;
+    private final int numTrees;
+
+    /** number of trees evaluated with bitvectors */
+    private final int numQsTrees;
+
+    /** split nodes of attribute a are in [featureStart[a], featureStart[a+1]), sorted by threshold */
+    private final int[] featureStart;
+    private final double[] thresholds;
+    private final int[] nodeTree;
+    private final long[] nodeMask;
+
+    /** scores of leaves of bitvector tree q are in [leafOffset[q], leafOffset[q+1]) */
+    private final int[] leafOffset;
+    private final double[] leafScores;
+
+    /** indexes of trees (in flat) evaluated by the flat engine */
+    private final int[] fallbackTrees;
+
+    /** per-thread bitvectors of trees, reset for every instance */
+    private final transient ThreadLocal<long[]> leafVectors;
+
+    QuickScorerForest(FlatBinaryForest flat, int numQsTrees, int[] featureStart, double[] thresholds, int[] nodeTree,
+                      long[] nodeMask, int[] leafOffset, double[] leafScores, int[] fallbackTrees) {
+        this.flat = flat;
+        this.numTrees = flat.getNumTrees();
+        this.numQsTrees = numQsTrees;
+        this.featureStart = featureStart;
+        this.thresholds = thresholds;
+        this.nodeTree = nodeTree;
+        this.nodeMask = nodeMask;
+        this.leafOffset = leafOffset;
+        this.leafScores = leafScores;
+        this.fallbackTrees = fallbackTrees;
+        this.leafVectors = ThreadLocal.withInitial(() -> new long[numQsTrees]);
+    }
+
+//===============================================================================================//
+
+    @Override
+    public int getNumClasses() {
+        return 2;
+    }
+
+    @Override
+    public int getNumTrees() {
+        return numTrees;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return flat.getMaxDepth();
+    }
+
+    /**
+     * @return number of trees that are evaluated by the flat engine because they have more than 64 leaves
+     */
+    public int getNumFallbackTrees() {
+        return fallbackTrees.length;
+    }
+
+    @Override
+    public double predict(double[] instanceAttributes) {
+        return sumTrees(instanceAttributes, leafVectors.get()) / numTrees;
+    }
+
+    @Override
+    public void predictBatch(double[][] rows, int from, int to, double[] out) {
+        long[] leafVectors = this.leafVectors.get();
+
+        for (int blockStart = from; blockStart < to; blockStart += BATCH_BLOCK_SIZE) {
+            int blockEnd = Math.min(to, blockStart + BATCH_BLOCK_SIZE);
+
+            for (int i = blockStart; i != blockEnd; ++i) {
+                out[i] = sumQsTrees(rows[i], leafVectors);
+            }
+            for (int tree : fallbackTrees) {
+                for (int i = blockStart; i != blockEnd; ++i) {
+                    out[i] += flat.predictTree(tree, rows[i]);
+                }
+            }
+            for (int i = blockStart; i != blockEnd; ++i) {
+                out[i] /= numTrees;
+            }
+        }
+    }
+
+//===============================================================================================//
+
+    /**
+     * Re-creates transient fields after deserialization.
+     */
+    private Object readResolve() {
+        return new QuickScorerForest(flat, numQsTrees, featureStart, thresholds, nodeTree, nodeMask, leafOffset,
+                leafScores, fallbackTrees);
+    }
+
+    private double sumTrees(double[] instanceAttributes, long[] leafVectors) {
+        double sum = sumQsTrees(instanceAttributes, leafVectors);
+
+        for (int tree : fallbackTrees) {
+            sum += flat.predictTree(tree, instanceAttributes);
+        }
+
+        return sum;
+    }
+
+    private double sumQsTrees(double[] instanceAttributes, long[] leafVectors) {
+        Arrays.fill(leafVectors, -1L);
+
+        int numFeatures = featureStart.length - 1;
+        for (int a = 0; a != numFeatures; ++a) {
+            double x = instanceAttributes[a];
+            int end = featureStart[a + 1];
+
+            // !(x < t) to send NaN right as in FlatBinaryForest.predictTree()
+            for (int k = featureStart[a]; k != end && !(x < thresholds[k]); ++k) {
+                leafVectors[nodeTree[k]] &= nodeMask[k];
+            }
+        }
+
+        double sum = 0d;
+        for (int q = 0; q != numQsTrees; ++q) {
+            sum += leafScores[leafOffset[q] + Long.numberOfTrailingZeros(leafVectors[q])];
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,174 @@
+package cz.siret.prank.fforest.api;
+
+import cz.siret.prank.fforest.FasterTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds QuickScorerForest from FlatBinaryForest or from a list of trained trees.
+ */
+public class QuickScorerForestBuilder {
+
+    /**
+     * Use only positive class probability
+     */
+    boolean useOnlyPositive = false;
+
+//===============================================================================================//
+
+    // split nodes of bitvector trees in the order of discovery
+    private int[] nodeAttribute;
+    private double[] nodeThreshold;
+    private int[] nodeTree;
+    private long[] nodeMask;
+    private int numNodes;
+
+    private double[] leafScores;
+    private int numLeaves;
+
+//===============================================================================================//
+
+    /**
+     * @param trees
+     * @param useOnlyPositiveClassProbability Use only positive class probability p_class[1] instead of ratio p_class[1] / (p_class[0] + p_class[1])
+     */
+    public QuickScorerForest buildFromFasterTrees(List<FasterTree> trees, boolean useOnlyPositiveClassProbability) {
+        useOnlyPositive = useOnlyPositiveClassProbability;
+        return buildFromFasterTrees(trees);
+    }
+
+    public QuickScorerForest buildFromFasterTrees(List<FasterTree> trees) {
+        return buildFromFlatBinaryForest(new FlatBinaryForestBuilder().buildFromFasterTrees(trees, useOnlyPositive));
+    }
+
+    public QuickScorerForest buildFromFlatBinaryForest(FlatBinaryForest flat) {
+        int[] childLeft = flat.getChildLeft();
+        int[] childRight = flat.getChildRight();
+        int numTrees = flat.getNumTrees();
+
+        int capacity = numTrees * QuickScorerForest.MAX_LEAVES;
+        nodeAttribute = new int[capacity];
+        nodeThreshold = new double[capacity];
+        nodeTree = new int[capacity];
+        nodeMask = new long[capacity];
+        leafScores = new double[capacity];
+        numNodes = 0;
+        numLeaves = 0;
+
+        List<Integer> fallbackTrees = new ArrayList<>();
+        int[] leafOffset = new int[numTrees + 1];
+        int numQsTrees = 0;
+
+        for (int t = 0; t != numTrees; ++t) {
+            int root = flat.getTreeRoot(t);
+
+            if (childLeft[root] < 0 && childLeft[root] == childRight[root]) {
+                // single leaf tree
+                leafOffset[numQsTrees] = numLeaves;
+                leafScores[numLeaves++] = flat.getScore()[-childLeft[root]];
+                numQsTrees++;
+            } else if (countLeaves(flat, root) <= QuickScorerForest.MAX_LEAVES) {
+                leafOffset[numQsTrees] = numLeaves;
+                compileNode(flat, root, numQsTrees, numLeaves);
+                numQsTrees++;
+            } else {
+                fallbackTrees.add(t);
+            }
+        }
+        leafOffset[numQsTrees] = numLeaves;
+
+        // group nodes by attribute, sort by threshold
+        Integer[] order = new Integer[numNodes];
+        int numFeatures = 0;
+        for (int i = 0; i != numNodes; ++i) {
+            order[i] = i;
+            numFeatures = Math.max(numFeatures, nodeAttribute[i] + 1);
+        }
+        Arrays.sort(order, (a, b) -> {
+            int res = Integer.compare(nodeAttribute[a], nodeAttribute[b]);
+            return res != 0 ? res : Double.compare(nodeThreshold[a], nodeThreshold[b]);
+        });
+
+        int[] featureStart = new int[numFeatures + 1];
+        double[] thresholds = new double[numNodes];
+        int[] sortedTree = new int[numNodes];
+        long[] sortedMask = new long[numNodes];
+        for (int k = 0; k != numNodes; ++k) {
+            int i = order[k];
+            thresholds[k] = nodeThreshold[i];
+            sortedTree[k] = nodeTree[i];
+            sortedMask[k] = nodeMask[i];
+            featureStart[nodeAttribute[i] + 1]++;
+        }
+        for (int a = 0; a != numFeatures; ++a) {
+            featureStart[a + 1] += featureStart[a];
+        }
+
+        int[] fallback = new int[fallbackTrees.size()];
+        for (int i = 0; i != fallback.length; ++i) {
+            fallback[i] = fallbackTrees.get(i);
+        }
+
+        return new QuickScorerForest(flat, numQsTrees, featureStart, thresholds, sortedTree, sortedMask,
+                Arrays.copyOf(leafOffset, numQsTrees + 1), Arrays.copyOf(leafScores, numLeaves), fallback);
+    }
+
+//===============================================================================================//
+
+    /**
+     * Collects split nodes of the subtree and numbers its leaves from left to right.
+     * Recursion depth is bounded by MAX_LEAVES.
+     *
+     * @param leafBase index of the first leaf of the tree in leafScores
+     * @return number of leaves in the subtree
+     */
+    private int compileNode(FlatBinaryForest flat, int node, int qsTree, int leafBase) {
+        if (node < 0) {
+            leafScores[numLeaves++] = flat.getScore()[-node];
+            return 1;
+        }
+
+        int idx = numNodes++;
+        int firstLeaf = numLeaves - leafBase;
+        int leftLeaves = compileNode(flat, flat.getChildLeft()[node], qsTree, leafBase);
+        int rightLeaves = compileNode(flat, flat.getChildRight()[node], qsTree, leafBase);
+
+        nodeAttribute[idx] = flat.getAttributeIndex()[node];
+        nodeThreshold[idx] = flat.getSplitPoint()[node];
+        nodeTree[idx] = qsTree;
+        // going right: clear leaves of the left subtree
+        nodeMask[idx] = ~(((1L << leftLeaves) - 1) << firstLeaf);
+
+        return leftLeaves + rightLeaves;
+    }
+
+    /**
+     * @return number of leaves, stops counting at MAX_LEAVES + 1
+     */
+    private static int countLeaves(FlatBinaryForest flat, int root) {
+        int[] childLeft = flat.getChildLeft();
+        int[] childRight = flat.getChildRight();
+
+        int leaves = 0;
+        int[] stack = new int[QuickScorerForest.MAX_LEAVES + 2];
+        int sp = 0;
+        stack[sp++] = root;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (node < 0) {
+                leaves++;
+            } else {
+                stack[sp++] = childLeft[node];
+                stack[sp++] = childRight[node];
+            }
+            // every subtree on the stack has at least one leaf
+            if (leaves + sp > QuickScorerForest.MAX_LEAVES) {
+                return QuickScorerForest.MAX_LEAVES + 1;
+            }
+        }
+        return leaves;
+    }
+
+}
@@ -25,6 +25,7 @@ import cz.siret.prank.ffutils.ATimer;
 import weka.core.Instances;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Random;
 import java.util.concurrent.ForkJoinPool;
 
@@ -77,6 +78,14 @@ public class DataCache2 {
 
   /** Ordering of instances, indexed by attribute, then by instance. */ 
   protected int[][] sortedIndices;
+
+  /**
+   * Bootstrap samples only: buffers for sorted in-bag instances of the selected
+   * attributes (only the first numInBag are used), indexed by order of the attribute
+   * in selectedAttributes. Kept when the DataCache is reused by resample(), see
+   * createInBagSortedIndicesNew().
+   */
+  protected int[][] inBagSortedIndices = null;
   
   /** Weights of instances. */
   protected float[] instWeights;
@@ -89,6 +98,12 @@ public class DataCache2 {
   /** Used in training of FastRandomTrees. */
   protected int[] whatGoesWhere = null;
 
+  /** Bootstrap samples only: the inBagSortedIndices buffers indexed by attribute (the sortedIndices of the bag). */
+  protected int[][] inBagSortedIndicesByAtt = null;
+
+  /** Temporary arrays of tree training, kept if the data is re-used (see FasterForest2Tree.buildRootTree(DataCache2)). */
+  protected TrainingArena arena = null;
+
   /** Array that will be used for a tree to store the indices of the instances that have a missing values for
    * a gives attribute */
   // protected int[] instancesMissVal;
@@ -221,17 +236,47 @@ public class DataCache2 {
    * constructor to see what's deep / shallow copied
    */
   public DataCache2 resample(Random random, int nAttrVirtual) {
+    return resample(random, nAttrVirtual, null);
+  }
+
+  /**
+   * Same as resample(random, nAttrVirtual), but can fill a bootstrap sample
+   * (a view of this DataCache) created earlier by this method instead of creating
+   * a new one. Its inBag, instWeights, whatGoesWhere, selected attributes and sorted
+   * index buffers are then overwritten and re-used, so a thread training many
+   * trees one after another allocates them only once.
+   *
+   * The reused sample must not be in use anymore (by a tree being trained or by
+   * anybody keeping a reference to its inBag).
+   *
+   * @param reuse a DataCache2 returned by resample() of this DataCache2, or null
+   * @return reuse (or a new DataCache2 if reuse is null)
+   */
+  public DataCache2 resample(Random random, int nAttrVirtual, DataCache2 reuse) {
     if (nAttrVirtual >= numAttributes) {
       throw new IllegalArgumentException("nAttr must be less than numAttributes");
     }
-    // makes shallow copy of vals matrix
-    // makes a deep copy of each instance, but with a shallow copy of its attributes
-    // TODO create DataCacheView to avion allocating this and int[] inBag in the constructor
-    DataCache2 result = new DataCache2(this);
+    DataCache2 result;
+    if (reuse == null) {
+      // makes shallow copy of vals matrix
+      // makes a deep copy of each instance, but with a shallow copy of its attributes
+      result = new DataCache2(this);
+      result.instWeights = new float[ numInstances ]; // all 0.0 by default
+      result.selectedAttributes = new int[nAttrVirtual];
+      result.whatGoesWhere = new int[ result.inBag.length ];
+    } else {
+      result = reuse;
+      Arrays.fill(result.inBag, false);
+      Arrays.fill(result.instWeights, 0.0f);
+      result.numInBag = 0;
+      result.sortedIndices = sortedIndices;  // in-bag ones get created from these again
+      if (result.selectedAttributes.length != nAttrVirtual)
+        result.selectedAttributes = new int[nAttrVirtual];
+    }
 
     result.reusableRandomGenerator = random;
     // Time ~ 160908 ns
-    float[] newWeights = new float[ numInstances ]; // all 0.0 by default
+    float[] newWeights = result.instWeights;
     
     for ( int r = 0; r < bagSize; r++ ) {
       
@@ -242,10 +287,8 @@ public class DataCache2 {
         result.inBag[curIdx] = true;
       }
     }
-    result.instWeights = newWeights;
 
     // select the subset of features
-    result.selectedAttributes = new int[nAttrVirtual];
     int[] permIndices = FastRfUtils.randomPermutation(numAttributes, random);
     int nAttInSortedIndices = 0;
     for (int i = 0; i < nAttrVirtual; ++i) {
@@ -257,8 +300,8 @@ public class DataCache2 {
       result.selectedAttributes[i] = a; // it will never have the attribute class
       nAttInSortedIndices += isAttrNominal(a) ? 0 : 1;
     }
-    result.attInSortedIndices = new int[nAttInSortedIndices];
-    result.whatGoesWhere = new int[ result.inBag.length ];
+    if (result.attInSortedIndices == null || result.attInSortedIndices.length != nAttInSortedIndices)
+      result.attInSortedIndices = new int[nAttInSortedIndices];
 
     // Time random access to the weights of all the instances:
     //    - For newWeights[] ~ 18540 ns
@@ -271,10 +314,20 @@ public class DataCache2 {
 
   }
 
-  /** Invoked only when tree is trained. */
+  /**
+   * Invoked only when tree is trained. Sorted indices of in-bag instances are
+   * written to the inBagSortedIndices buffers; those are allocated for all
+   * instances only once, so that they fit any bootstrap sample of this size.
+   * Only the first numInBag indices of each selected attribute are valid then.
+   */
   protected void createInBagSortedIndicesNew() {
 
-    int[][] newSortedIndices = new int[ numAttributes ][ ];
+    if (inBagSortedIndicesByAtt == null)
+      inBagSortedIndicesByAtt = new int[ numAttributes ][ ];
+    int[][] newSortedIndices = inBagSortedIndicesByAtt;
+    Arrays.fill(newSortedIndices, null);  // only the selected attributes
+    if (inBagSortedIndices == null || inBagSortedIndices.length != selectedAttributes.length)
+      inBagSortedIndices = new int[ selectedAttributes.length ][ ];
     // instancesMissVal = new int[numInBag];
     int idx = 0;
     int maxLvl = 0; // maximum number of values for the categorical features
@@ -286,11 +339,13 @@ public class DataCache2 {
       // we will add, at most, only one categorical feature in sortedIndices
 
       attInSortedIndices[idx] = a;
-      ++idx;
 
       int[] sortedIndicesA = sortedIndices[a];
-      int[] newSortedIndicesA = new int[this.numInBag];
+      if (inBagSortedIndices[idx] == null)
+        inBagSortedIndices[idx] = new int[numInstances];
+      int[] newSortedIndicesA = inBagSortedIndices[idx];
       newSortedIndices[a] = newSortedIndicesA;
+      ++idx;
 
       int inBagIdx = 0;
       for (int origIdx : sortedIndicesA) {
@@ -304,6 +359,23 @@ public class DataCache2 {
   }
 
 
+  /**
+   * Copy of inBag that can be kept after this bootstrap sample is re-used
+   * (for OOB error and feature importances), one bit per instance instead of
+   * one byte.
+   */
+  public BitSet inBagAsBitSet() {
+
+    BitSet res = new BitSet(numInstances);
+    for (int i = 0; i < numInstances; i++) {
+      if (inBag[i])
+        res.set(i);
+    }
+    return res;
+
+  }
+
+
   
   /** Does the given attribute - instance combination contain a missing value? */
   public final boolean isValueMissing( int attIndex, int instIndex ) {
@@ -24,16 +24,21 @@
 package cz.siret.prank.fforest2;
 
 import cz.siret.prank.fforest.FasterTree;
+import cz.siret.prank.fforest.PermutationImportances;
 import cz.siret.prank.ffutils.ATimer;
 import weka.classifiers.Classifier;
 import weka.classifiers.RandomizableIteratedSingleClassifierEnhancer;
 import weka.core.*;
 
 import java.util.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -55,7 +60,7 @@ import java.util.concurrent.Future;
  * it will be set automatically to the available number of cores.
  * <p/>
  * <li>Estimating the out-of-bag (OOB) error is also multithreaded, using
- * the VotesCollector class
+ * the OutOfBagVotes class (blocks of instances, each run through all trees)
  * <p/>
  * <li>OOB estimation in Weka's Bagging is one tree - one vote. In FastRF 0.97
  * onwards, some trees will have a heavier weight in the overall vote
@@ -81,9 +86,9 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
   static final long serialVersionUID = 1L;
 
   protected transient DataCache2 myData;
-  protected transient boolean[][] inBag;
+  protected transient BitSet[] inBag;
   protected transient Random random;
-  protected transient ExecutorService threadPool;
+  protected transient ForkJoinPool threadPool;
 
   /**
    * Bagging method. Produces DataCache objects with bootstrap samples of
@@ -128,12 +133,17 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     int bagSize = data.numInstances() * m_BagSizePercent / 100;
     myData.bagSize = bagSize; // no m'acaba d'agradar aquesta assignacio
     random = new Random(m_Seed);
-    inBag = new boolean[m_Classifiers.length][];
+    inBag = new BitSet[m_Classifiers.length];
 
     // thread management
-    threadPool = Executors.newFixedThreadPool(threads);
+    // ForkJoinPool, so that large nodes of trees can be processed by parallel tasks in the same pool
+    threadPool = new ForkJoinPool(threads);
     List<Future<FasterForest2Tree>> futures = new ArrayList<>(m_Classifiers.length);
 
+    // bootstrap samples no longer used by any tree; re-used for the next trees so
+    // their buffers get allocated only once per thread (see DataCache2.resample())
+    Queue<DataCache2> bagDataPool = new ConcurrentLinkedQueue<>();
+
     try {
       final int[] seeds = new int[m_Classifiers.length];
       for (int i = 0; i < m_Classifiers.length; i++) {
@@ -151,11 +161,12 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
           // build tree
 
           FasterForest2Tree curTree = new FasterForest2Tree(motherForest, myData, seed);
-          curTree.buildRootTree();
+          DataCache2 bagData = curTree.buildRootTree(bagDataPool.poll());
 
           if (getCalcOutOfBag() || getComputeImportances()) {
-            inBag[treeIdx] = curTree.myInBag; // large array, store only if we need it
+            inBag[treeIdx] = bagData.inBagAsBitSet(); // large, store only if we need it
           }
+          bagDataPool.add(bagData);
 
           return curTree;
         });
@@ -167,6 +178,7 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++) {
         m_Classifiers[treeIdx] = futures.get(treeIdx).get();
       }
+      bagDataPool.clear(); // allow GC
       System.out.println("time spent building trees: " + timer.getFormatted());
 
       if (getCalcOutOfBag() || getComputeImportances()) {
@@ -249,12 +261,12 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
    * Compute the out-of-bag error for a set of instances.
    *
    * @param data       the instances
-   * @param inBag      numTrees x numInstances indicating out-of-bag instances
+   * @param inBag      in-bag instances of each tree, the rest is out-of-bag
    * @param threadPool the pool of threads
    *
    * @return the oob error
    */
-  private double computeOOBError(Instances data, boolean[][] inBag, ExecutorService threadPool)
+  private double computeOOBError(Instances data, BitSet[] inBag, ExecutorService threadPool)
           throws InterruptedException, ExecutionException {
 
     boolean numeric = data.classAttribute().isNumeric();
@@ -293,33 +305,19 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
    * checked in the function!).
    *
    * @param data       the instances (as a DataCache)
-   * @param inBag      numTrees x numInstances indicating out-of-bag instances
+   * @param inBag      in-bag instances of each tree, the rest is out-of-bag
    * @param threadPool the pool of threads
    *
    * @return the oob error
    */
-  private double computeOOBError(DataCache2 data, boolean[][] inBag, ExecutorService threadPool,
+  private double computeOOBError(DataCache2 data,
+                                 BitSet[] inBag,
+                                 ForkJoinPool threadPool,
                                  Classifier[] classifiers) throws InterruptedException, ExecutionException {
 
-    List<Future<Double>> votes = new ArrayList<>(data.numInstances);
-    for (int i = 0; i < data.numInstances; i++) {
-      VotesCollectorDataCache aCollector = new VotesCollectorDataCache(classifiers, i, data, inBag);
-      votes.add(threadPool.submit(aCollector));
-    }
-
-    double outOfBagCount = 0.0;
-    double errorSum = 0.0;
-
-    for (int i = 0; i < data.numInstances; i++) {
-
-      double vote = votes.get(i).get();
-      // error for instance
-      outOfBagCount += data.instWeights[i];
-      if ( (int) vote != data.instClassValues[i] ) {
-        errorSum += data.instWeights[i];
-      }
-    }
-    return errorSum / outOfBagCount;
+    OutOfBagVotes votes = new OutOfBagVotes(data.numInstances, data.numClasses);
+    votes.addTrees(classifiers, inBag, data, threadPool);
+    return votes.error(data);
   }
   
   ///////////////////////////////
@@ -442,16 +440,40 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
    */
   private void computeImportances() throws ExecutionException, InterruptedException {
     m_FeatureImportances = new double[myData.numAttributes];
-    // TODO Potser s'haurien d'agafar nomes els arbres que continguin l'atribut en questio
-    // es una tonteria agafar tots els altres
-    for (int j = 0; j < myData.numAttributes; j++) {
+
+    // leaves of OOB instances are cached once, then only trees splitting on the
+    // scrambled attribute are evaluated again
+    double[] weights = new double[myData.numInstances];
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = myData.instWeights[i];
+    }
+    PermutationImportances importances = new PermutationImportances(m_Classifiers.length, myData.vals,
+      myData.instClassValues, weights, myData.numClasses);
+
+    List<Future<?>> futures = new ArrayList<>(m_Classifiers.length);
+    for (int i = 0; i < m_Classifiers.length; i++) {
+      final int treeIdx = i;
+      futures.add(threadPool.submit(() -> {
+        // trees are converted to FasterTree only later, in convertToLightTrees()
+        FasterTree tree = ((FasterForest2Tree) m_Classifiers[treeIdx]).toLightCopy();
+        importances.setTree(treeIdx, tree, inBag[treeIdx]);
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    // attributes are scrambled through permutations, more of them at once (myData is not changed)
+    int[] attributes = new int[myData.numAttributes - 1];
+    for (int j = 0, k = 0; j < myData.numAttributes; j++) {
       if (j != myData.classIndex) {
-        float[] unscrambled = myData.scrambleOneAttribute(j, random);
-        double sError = computeOOBError(myData, inBag, threadPool, m_Classifiers);
-        myData.vals[j] = unscrambled; // restore the original state
-        m_FeatureImportances[j] = sError - m_OutOfBagError;
+        attributes[k++] = j;
       }
     }
+    double[] sErrors = importances.errors(attributes, random, threadPool);
+    for (int k = 0; k < attributes.length; k++) {
+      m_FeatureImportances[attributes[k]] = sErrors[k] - m_OutOfBagError;
+    }
   }
 
   /**
@@ -475,14 +497,14 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
         else indicesTreesWithoutAttr.add(k);
       }
       // Take the FastRandomTrees and its inBag array that have the attribute "j"
-      boolean[][] inBagWithAttr = new boolean[indicesTreesWithAttr.size()][];
+      BitSet[] inBagWithAttr = new BitSet[indicesTreesWithAttr.size()];
       Classifier[] classifiersWithAttr = new Classifier[indicesTreesWithAttr.size()];
       for (int k = 0; k < indicesTreesWithAttr.size(); ++k) {
         inBagWithAttr[k] = inBag[indicesTreesWithAttr.get(k)];
         classifiersWithAttr[k] = m_Classifiers[indicesTreesWithAttr.get(k)];
       }
       // Take the FastRandomTrees and its inBag array that don't have the attribute "j"
-      boolean[][] inBagWithoutAttr = new boolean[indicesTreesWithoutAttr.size()][];
+      BitSet[] inBagWithoutAttr = new BitSet[indicesTreesWithoutAttr.size()];
       Classifier[] classifiersWithoutAttr = new Classifier[indicesTreesWithoutAttr.size()];
       for (int k = 0; k < indicesTreesWithoutAttr.size(); ++k) {
         inBagWithoutAttr[k] = inBag[indicesTreesWithoutAttr.get(k)];
@@ -548,28 +570,28 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
           else indicesTreesWithoutIJ.add(k);
         }
         // Take the FastRandomTrees and its inBag array for I
-        boolean[][] inBagWithI = new boolean[indicesTreesWithI.size()][];
+        BitSet[] inBagWithI = new BitSet[indicesTreesWithI.size()];
         Classifier[] classifiersWithI = new Classifier[indicesTreesWithI.size()];
         for (int k = 0; k < indicesTreesWithI.size(); ++k) {
           inBagWithI[k] = inBag[indicesTreesWithI.get(k)];
           classifiersWithI[k] = m_Classifiers[indicesTreesWithI.get(k)];
         }
         // Take the FastRandomTrees and its inBag array for J
-        boolean[][] inBagWithJ = new boolean[indicesTreesWithJ.size()][];
+        BitSet[] inBagWithJ = new BitSet[indicesTreesWithJ.size()];
         Classifier[] classifiersWithJ = new Classifier[indicesTreesWithJ.size()];
         for (int k = 0; k < indicesTreesWithJ.size(); ++k) {
           inBagWithJ[k] = inBag[indicesTreesWithJ.get(k)];
           classifiersWithJ[k] = m_Classifiers[indicesTreesWithJ.get(k)];
         }
         // Take the FastRandomTrees and its inBag array for IJ
-        boolean[][] inBagWithIJ = new boolean[indicesTreesWithIJ.size()][];
+        BitSet[] inBagWithIJ = new BitSet[indicesTreesWithIJ.size()];
         Classifier[] classifiersWithIJ = new Classifier[indicesTreesWithIJ.size()];
         for (int k = 0; k < indicesTreesWithIJ.size(); ++k) {
           inBagWithIJ[k] = inBag[indicesTreesWithIJ.get(k)];
           classifiersWithIJ[k] = m_Classifiers[indicesTreesWithIJ.get(k)];
         }
         // Take the FastRandomTrees and its inBag array for without IJ
-        boolean[][] inBagWithoutIJ = new boolean[indicesTreesWithoutIJ.size()][];
+        BitSet[] inBagWithoutIJ = new BitSet[indicesTreesWithoutIJ.size()];
         Classifier[] classifiersWithoutIJ = new Classifier[indicesTreesWithoutIJ.size()];
         for (int k = 0; k < indicesTreesWithoutIJ.size(); ++k) {
           inBagWithoutIJ[k] = inBag[indicesTreesWithoutIJ.get(k)];
@@ -895,19 +917,99 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
 
   public final double[] distributionForAttributes(double[] instanceAttributes, int numClasses) {
     double[] sums = new double[numClasses];
+    distributionForAttributes(instanceAttributes, sums);
+    return sums;
+  }
+
+  /**
+   * Allocation-free version of distributionForAttributes().
+   *
+   * @param instanceAttributes attribute values of the instance
+   * @param out receives the class distribution, length must be the number of classes
+   */
+  public final void distributionForAttributes(double[] instanceAttributes, double[] out) {
+    int numClasses = out.length;
     double[] newProbs;
 
+    Arrays.fill(out, 0d);
     for (int i = 0; i < m_NumIterations; i++) {
       newProbs = ((FasterTree)m_Classifiers[i]).distributionForAttributes(instanceAttributes);
       for (int j = 0; j < numClasses; j++)
-        sums[j] += newProbs[j];
+        out[j] += newProbs[j];
     }
 
-    if (Utils.eq(Utils.sum(sums), 0)) {
-      return sums;
-    } else {
-      Utils.normalize(sums);
-      return sums;
+    if (!Utils.eq(Utils.sum(out), 0)) {
+      Utils.normalize(out);
+    }
+  }
+
+  /**
+   * Number of instances evaluated by one task in distributionsForInstances().
+   */
+  private static final int BATCH_BLOCK_SIZE = 256;
+
+  /**
+   * Batch version of distributionForInstance(). Copies attribute values of the batch to columns,
+   * then evaluates blocks of instances in parallel in ForkJoinPool.commonPool(). Within a block, trees are the outer
+   * loop, so each tree is traversed for all instances of the block while its nodes are in cache.
+   * Results are the same as calling distributionForInstance() for each instance.
+   *
+   * @param insts instances to classify (with nominal class)
+   * @param numThreads max. number of threads (0 = autodetect), the common pool may provide fewer
+   * @return class distributions, one row per instance
+   */
+  public final double[][] distributionsForInstances(Instances insts, int numThreads) throws Exception {
+
+    int numInstances = insts.numInstances();
+    double[][] columns = new double[insts.numAttributes()][numInstances];
+    for (int i = 0; i < numInstances; i++) {
+      Instance instance = insts.instance(i);
+      for (int a = 0; a < columns.length; a++) {
+        columns[a][i] = instance.value(a);
+      }
+    }
+
+    double[][] res = new double[numInstances][insts.numClasses()];
+
+    int numBlocks = (numInstances + BATCH_BLOCK_SIZE - 1) / BATCH_BLOCK_SIZE;
+    int threads = Math.min(numBlocks, numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors());
+
+    if (threads <= 1) {
+      distributionsForBlock(columns, 0, numInstances, res);
+      return res;
+    }
+
+    // threads workers in the common pool take blocks one by one, the calling thread runs one of them
+    AtomicInteger nextBlock = new AtomicInteger();
+    List<ForkJoinTask<?>> workers = new ArrayList<>(threads);
+    for (int w = 0; w < threads; w++) {
+      workers.add(ForkJoinTask.adapt(() -> {
+        for (int b = nextBlock.getAndIncrement(); b < numBlocks; b = nextBlock.getAndIncrement()) {
+          int blockFrom = b * BATCH_BLOCK_SIZE;
+          distributionsForBlock(columns, blockFrom, Math.min(numInstances, blockFrom + BATCH_BLOCK_SIZE), res);
+        }
+      }));
+    }
+    ForkJoinTask.invokeAll(workers);
+
+    return res;
+  }
+
+  private void distributionsForBlock(double[][] columns, int from, int to, double[][] res) {
+    for (int t = 0; t < m_NumIterations; t++) {
+      FasterTree tree = (FasterTree) m_Classifiers[t];
+      for (int i = from; i < to; i++) {
+        double[] newProbs = tree.distributionForColumns(columns, i);
+        double[] sums = res[i];
+        for (int j = 0; j < newProbs.length; j++)
+          sums[j] += newProbs[j];
+      }
+    }
+
+    for (int i = from; i < to; i++) {
+      if (!Utils.eq(Utils.sum(res[i]), 0)) {
+        Utils.normalize(res[i]);
+      }
     }
   }
 
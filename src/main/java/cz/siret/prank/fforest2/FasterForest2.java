@@ -25,7 +25,11 @@ package cz.siret.prank.fforest2;
 
 import cz.siret.prank.fforest.api.FlatBinaryForest;
 import cz.siret.prank.fforest.api.FlatBinaryForestBuilder;
+import cz.siret.prank.fforest.api.FlatForest;
+import cz.siret.prank.fforest.api.FlatForestBuilder;
 import cz.siret.prank.fforest.api.FlattableForest;
+import cz.siret.prank.fforest.api.PackedBinaryForest;
+import cz.siret.prank.fforest.api.PackedBinaryForestBuilder;
 import weka.classifiers.AbstractClassifier;
 import weka.core.*;
 import weka.core.TechnicalInformation.Field;
@@ -86,6 +90,16 @@ import java.util.concurrent.ExecutionException;
  *  The maximum depth of the trees, 0 for unlimited.
  *  (default 0)</pre>
  * <p/>
+ * <pre> -psplit &lt;num&gt;
+ *  Min. number of instances in a node to search for its split and partition it
+ *  in parallel (with more threads), 0 to disable.
+ *  (default 100000)</pre>
+ * <p/>
+ * <pre> -fork &lt;num&gt;
+ *  Min. number of instances in a node to build its subtrees as separate tasks
+ *  (that idle threads can take over), 0 to disable.
+ *  (default 0)</pre>
+ * <p/>
  * <pre> -numFeatTree &lt;num&gt;
  *  Number of features selected for each tree.</pre>
  * <p/>
@@ -147,6 +161,18 @@ public class FasterForest2
   /** The maximum depth of the trees (0 = unlimited) */
   protected int m_MaxDepth = 0;
 
+  /**
+   * Min. number of instances in a node to evaluate candidate attributes and partition
+   * sorted indices in parallel ForkJoin tasks (0 = never). See FasterForest2Tree.buildTree().
+   */
+  protected int m_ParallelSplitThreshold = 100000;
+
+  /**
+   * Min. number of instances in a node to build its two subtrees as separate ForkJoin
+   * tasks (0 = never). See FasterForest2Tree.buildTree().
+   */
+  protected int m_ForkSubtreesThreshold = 0;
+
   /** The header information. */
   protected Instances m_Info = null;
 
@@ -317,6 +343,77 @@ public class FasterForest2
     m_MaxDepth = value;
   }
 
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String parallelSplitThresholdTipText(){
+    return "Min. number of instances in a node to search for its split and partition it in parallel, 0 to disable.";
+  }
+
+  /**
+   * Get the min. number of instances in a node to search for its split and partition
+   * it in parallel, 0 for never.
+   *
+   * @return the min. number of instances.
+   */
+  public int getParallelSplitThreshold(){
+    return m_ParallelSplitThreshold;
+  }
+
+  /**
+   * Set the min. number of instances in a node to search for its split and partition
+   * it in parallel, 0 for never. Helps when there are fewer trees than threads, as
+   * otherwise large nodes near the root are processed by a single thread.
+   *
+   * @param value the min. number of instances, or 0.
+   */
+  public void setParallelSplitThreshold(int value){
+    if (value < 0) {
+      throw new IllegalArgumentException("Parallel split threshold must not be negative.");
+    }
+    m_ParallelSplitThreshold = value;
+  }
+
+  /**
+   * Returns the tip text for this property
+   *
+   * @return tip text for this property suitable for
+   *         displaying in the explorer/experimenter gui
+   */
+  public String forkSubtreesThresholdTipText(){
+    return "Min. number of instances in a node to build its subtrees as separate tasks (that idle threads can take over), 0 to disable.";
+  }
+
+  /**
+   * Get the min. number of instances in a node to build its subtrees as separate
+   * tasks, 0 for never.
+   *
+   * @return the min. number of instances.
+   */
+  public int getForkSubtreesThreshold(){
+    return m_ForkSubtreesThreshold;
+  }
+
+  /**
+   * Set the min. number of instances in a node to build its subtrees as separate
+   * tasks, 0 for never. Threads that finished their trees can then take over parts
+   * of the trees still being built. Subtrees of such nodes use their own random
+   * number generators, so the trees differ for different values of this threshold
+   * (but not for different numbers of threads). Off by default, so that forests
+   * trained with the same seed stay the same as in earlier versions.
+   *
+   * @param value the min. number of instances, or 0.
+   */
+  public void setForkSubtreesThreshold(int value){
+    if (value < 0) {
+      throw new IllegalArgumentException("Fork subtrees threshold must not be negative.");
+    }
+    m_ForkSubtreesThreshold = value;
+  }
+
 
   /**
    * Returns the tip text for this property
@@ -465,6 +562,18 @@ public class FasterForest2
         + "\t(default 0)",
       "depth", 1, "-depth <num>"));
 
+    newVector.addElement(new Option(
+      "\tMin. number of instances in a node to search for its split and partition it\n"
+        + "\tin parallel (with more threads), 0 to disable.\n"
+        + "\t(default 100000)",
+      "psplit", 1, "-psplit <num>"));
+
+    newVector.addElement(new Option(
+      "\tMin. number of instances in a node to build its subtrees as separate tasks\n"
+        + "\t(that idle threads can take over), 0 to disable.\n"
+        + "\t(default 0)",
+      "fork", 1, "-fork <num>"));
+
     newVector.addElement(new Option(
       "\tThe number of simultaneous threads to use for computation, 0 for autodetect.\n"
         + "\t(default 0)",
@@ -508,6 +617,12 @@ public class FasterForest2
       result.add("" + getMaxDepth());
     }
 
+    result.add("-psplit");
+    result.add("" + getParallelSplitThreshold());
+
+    result.add("-fork");
+    result.add("" + getForkSubtreesThreshold());
+
     if(getNumThreads() > 0){
       result.add("-threads");
       result.add("" + getNumThreads());
@@ -545,6 +660,16 @@ public class FasterForest2
    *  The maximum depth of the trees, 0 for unlimited.
    *  (default 0)</pre>
    * <p/>
+   * <pre> -psplit &lt;num&gt;
+   *  Min. number of instances in a node to search for its split and partition it
+   *  in parallel (with more threads), 0 to disable.
+   *  (default 100000)</pre>
+   * <p/>
+   * <pre> -fork &lt;num&gt;
+   *  Min. number of instances in a node to build its subtrees as separate tasks
+   *  (that idle threads can take over), 0 to disable.
+   *  (default 0)</pre>
+   * <p/>
    * <pre> -threads
    *  Number of simultaneous threads to use.
    *  (default 0 = autodetect number of available cores)</pre>
@@ -606,6 +731,20 @@ public class FasterForest2
       setMaxDepth(0);
     }
 
+    tmpStr = Utils.getOption("psplit", options);
+    if ( tmpStr.length() != 0 ){
+      setParallelSplitThreshold(Integer.parseInt(tmpStr));
+    } else {
+      setParallelSplitThreshold(100000);
+    }
+
+    tmpStr = Utils.getOption("fork", options);
+    if ( tmpStr.length() != 0 ){
+      setForkSubtreesThreshold(Integer.parseInt(tmpStr));
+    } else {
+      setForkSubtreesThreshold(0);
+    }
+
     tmpStr = Utils.getOption("threads", options);
     if ( tmpStr.length() != 0 ){
       setNumThreads(Integer.parseInt(tmpStr));
@@ -748,6 +887,46 @@ public class FasterForest2
     return m_bagger.distributionForAttributes(instanceAttributes, numClasses);
   }
 
+  /**
+   * Computes class distribution for given attribute values into a caller provided array.
+   * Doesn't allocate, so the array can be reused between calls.
+   *
+   * @param instanceAttributes attribute values of the instance
+   * @param out receives the class distribution, length must be the number of classes
+   */
+  public final void distributionForAttributes(double[] instanceAttributes, double[] out) {
+    m_bagger.distributionForAttributes(instanceAttributes, out);
+  }
+
+  /**
+   * @return true, distributionsForInstances() evaluates the batch tree by tree in parallel
+   */
+  @Override
+  public boolean implementsMoreEfficientBatchPrediction() {
+    return true;
+  }
+
+  /**
+   * Calculates class distributions for a batch of instances.
+   * Uses up to getNumThreads() threads of the common ForkJoinPool, results are the same as from distributionForInstance().
+   *
+   * @param insts the instances to be classified
+   *
+   * @return the distributions the forest generates for the instances
+   *
+   * @throws Exception if computation fails
+   */
+  @Override
+  public double[][] distributionsForInstances(Instances insts) throws Exception {
+
+    if (m_ZeroR != null || insts.classAttribute().isNumeric()) {
+      return super.distributionsForInstances(insts);
+    }
+
+    return m_bagger.distributionsForInstances(insts, m_NumThreads);
+
+  }
+
   /**
    * Outputs a description of this classifier.
    *
@@ -892,6 +1071,14 @@ public class FasterForest2
     return new FlatBinaryForestBuilder().buildFromFasterTrees(m_bagger.getClassifiersAsTrees());
   }
 
+  public PackedBinaryForest toPackedBinaryForest() {
+    return new PackedBinaryForestBuilder().buildFromFasterTrees(m_bagger.getClassifiersAsTrees());
+  }
+
+  public FlatForest toFlatForest() {
+    return new FlatForestBuilder().buildFromFasterTrees(m_bagger.getClassifiersAsTrees(), m_Info.numClasses());
+  }
+
 }
 
 
@@ -28,9 +28,13 @@ import weka.classifiers.AbstractClassifier;
 import weka.core.*;
 import weka.core.Capabilities.Capability;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
 
 
 /**
@@ -85,14 +89,31 @@ class FasterForest2Tree
   /** Class probabilities from the training vals. */
   protected float[] m_ClassProbs = null;
 
+  /** m_ClassProbs converted to doubles once, returned by distributionFor...() methods (must not be modified). */
+  protected double[] m_ClassProbsDouble = null;
+
   /** The dataset used for training. */
   protected transient DataCache2 data = null;
 
   /**
-   * created in buildRootTree(), one for each root tree
+   * created in buildRootTree(), one for each root tree; shared by subtrees built in
+   * parallel (see buildSubtreesInTasks()), as each node uses only its own range of it
    */
   private int[] tempIndices = null;
 
+  /**
+   * Random number generator used to choose attributes; data.reusableRandomGenerator
+   * shared by the whole tree, except for subtrees of nodes that build their subtrees
+   * in separate tasks.
+   */
+  protected transient Random random;
+
+  /**
+   * Temporary arrays re-used by all nodes of the tree (and by the following
+   * trees trained by the same thread), see buildRootTree(DataCache2).
+   */
+  protected transient TrainingArena arena;
+
 
   /** Minimum number of instances for leaf. */
   protected static final int m_MinNum = 1;
@@ -123,6 +144,8 @@ class FasterForest2Tree
     this.data = from.data;
     this.m_seed = from.m_seed;
     this.tempIndices = from.tempIndices;
+    this.random = from.random;
+    this.arena = from.arena;
   }
 
   /**
@@ -206,15 +229,35 @@ class FasterForest2Tree
    * function. 
    */
   public void buildRootTree() {
-    // makes a copy of data and selects randomly which are the inBag instances and the subset of features
-    data = data.resample(data.getRandomNumberGenerator(m_seed), m_MotherForest.m_numFeatTree);
     // we need to save the inBag[] array in order to have access to it after this.data is destroyed
-    myInBag = data.inBag;
+    myInBag = buildRootTree(null).inBag;
+  }
+
+  /**
+   * Builds classifier like buildRootTree(), but can re-use a bootstrap sample of
+   * a previous tree (see DataCache2.resample()), together with the temporary
+   * arrays of its training (DataCache2.arena). myInBag is not set, as the
+   * returned sample gets overwritten when it is re-used by the next tree.
+   *
+   * @param reuse bootstrap sample returned by this method for a previous tree
+   * (that must not be used anymore), or null
+   * @return the bootstrap sample the tree was trained on
+   */
+  public DataCache2 buildRootTree(DataCache2 reuse) {
+    // selects randomly which are the inBag instances and the subset of features
+    DataCache2 bagData = data.resample(data.getRandomNumberGenerator(m_seed), m_MotherForest.m_numFeatTree, reuse);
+    data = bagData;
+    random = data.reusableRandomGenerator;
 
     int n = data.numInstances;
 
+    // temporary arrays come along with the re-used bootstrap sample
+    if (data.arena == null)
+      data.arena = new TrainingArena(data.numClasses);
+    arena = data.arena;
+
     // compute initial class counts
-    float[] classProbs = new float[data.numClasses];
+    float[] classProbs = arena.takeClassDist();
     for (int i = 0; i < n; i++) {
       classProbs[data.instClassValues[i]] += data.instWeights[i];
     }
@@ -228,13 +271,18 @@ class FasterForest2Tree
     // create the sorted indices matrix
     data.createInBagSortedIndicesNew();
 
-    tempIndices = new int[n];
+    if (arena.tempIndices == null)
+      arena.tempIndices = new int[n];
+    tempIndices = arena.tempIndices;
     
     // first recursive call
     buildTree(data.sortedIndices, 0, data.numInBag - 1,
             classProbs, attIndicesWindow, 0);
 
     this.data = null;
+    this.random = null;
+    this.arena = null;
+    return bagData;
 //    int nNodes = countNodes();
 //    Benchmark.updateNumNodes(nNodes);
   }
@@ -256,24 +304,17 @@ class FasterForest2Tree
   @Override
   public double[] distributionForInstance(Instance instance) throws Exception {
 
-    double[] returnedDist = null;
-
-    if (m_Attribute != -1) {  // ============================ node is not a leaf
-
-        if (instance.value(m_Attribute) < m_SplitPoint) {
-          returnedDist = m_Successors[0].distributionForInstance(instance);
-        } else {
-          returnedDist = m_Successors[1].distributionForInstance(instance);
-        }
-
-      return returnedDist;
-
-    } else { // =============================================== node is a leaf
-
-      return FastRfUtils.toDoubles2(m_ClassProbs);
+    FasterForest2Tree node = this;
 
+    while (node.m_Attribute != -1) {  // node is not a leaf
+      if (instance.value(node.m_Attribute) < node.m_SplitPoint) {
+        node = node.m_Successors[0];
+      } else {
+        node = node.m_Successors[1];
+      }
     }
 
+    return node.m_ClassProbsDouble;
   }
 
   /**
@@ -292,36 +333,40 @@ class FasterForest2Tree
    */
   public double[] distributionForInstanceInDataCache(DataCache2 data, int instIdx) {
 
-    if (m_Attribute != -1) {  // ============================ node is not a leaf
-      double[] returnedDist = null;
-        if ( data.vals[m_Attribute][instIdx] < m_SplitPoint) {
-          returnedDist = m_Successors[0].distributionForInstanceInDataCache(data, instIdx);
-        } else {
-          returnedDist = m_Successors[1].distributionForInstanceInDataCache(data, instIdx);
-        }
-      return returnedDist;
-    } else { // =============================================== node is a leaf
-      return FastRfUtils.toDoubles2(m_ClassProbs);
+    FasterForest2Tree node = this;
+
+    while (node.m_Attribute != -1) {  // node is not a leaf
+      if ( data.vals[node.m_Attribute][instIdx] < node.m_SplitPoint) {
+        node = node.m_Successors[0];
+      } else {
+        node = node.m_Successors[1];
+      }
     }
+
+    return node.m_ClassProbsDouble;
   }
 
   private int countNodes() {
-    if (m_Attribute != -1) {
-      int result = 1;
-      if (m_Successors[0] != null)  {
-        result += ((FasterForest2Tree) m_Successors[0]).countNodes();
-      }
-      if (m_Successors[1] != null)  {
-        result += ((FasterForest2Tree) m_Successors[1]).countNodes();
+    int result = 0;
+    ArrayDeque<FasterForest2Tree> stack = new ArrayDeque<>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      FasterForest2Tree node = stack.pop();
+      result++;
+      if (node.m_Attribute != -1) {
+        if (node.m_Successors[0] != null)  {
+          stack.push(node.m_Successors[0]);
+        }
+        if (node.m_Successors[1] != null)  {
+          stack.push(node.m_Successors[1]);
+        }
       }
-      return result;
-    } else {
-      return 1;
     }
+    return result;
   }
   
  /**
-   * Recursively generates a tree. A derivative of the buildTree function from
+   * Generates a tree. A derivative of the buildTree function from
    * the "weka.classifiers.trees.RandomTree" class, with the following changes
    * made:
    * <ul>
@@ -368,6 +413,11 @@ class FasterForest2Tree
    * split, but rather re-sorted within the same array in the splitDataNew(),
    * and passed down to buildTree() as the original large matrix, but with
    * start and end points explicitly specified
+   *
+   * <li>the tree is built without recursion: nodes waiting to be split are kept
+   *   on a SubtreeStack and built one by one by buildNode(), in the same order
+   *   as they were built recursively, so the depth of the tree is not limited
+   *   by the stack size of the thread
    * 
    * </ul>
    * 
@@ -384,6 +434,28 @@ class FasterForest2Tree
           int depth
                            )  {
 
+    SubtreeStack stack = arena.stack;
+    stack.push(this, startAt, endAt, classProbs, depth);
+
+    while (stack.size > 0) {
+      FasterForest2Tree node = stack.pop();
+      node.buildNode(sortedIndices, stack.poppedStartAt, stack.poppedEndAt,
+              stack.poppedClassProbs, attIndicesWindow, stack.poppedDepth, stack);
+    }
+
+    stack.joinForked();
+  }
+
+  /**
+   * Splits one node of the tree built by buildTree() (or makes it a leaf),
+   * pushing its children to the stack instead of building them recursively.
+   */
+  private void buildNode(int[][] sortedIndices, int startAt, int endAt,
+          float[] classProbs,
+          int[] attIndicesWindow,
+          int depth,
+          SubtreeStack stack)  {
+
     int sortedIndicesLength = endAt - startAt + 1;
 
     // Check if node doesn't contain enough instances or is pure 
@@ -405,14 +477,15 @@ class FasterForest2Tree
         classProbs[1] /= sortedIndicesLength;
       }
       m_ClassProbs = classProbs;
+      m_ClassProbsDouble = FastRfUtils.toDoubles2(classProbs);
       this.data = null;
       return;
     } // (leaf making)
     
     // new 0.99: all the following are for the best attribute only! they're updated while sequentially through the attributes
     float val = Float.NaN; // value of splitting criterion
-    float[][] dist = new float[2][data.numClasses];  // class distributions (contingency table), indexed first by branch, then by class
-    float[] prop = new float[2]; // the branch sizes (as fraction)
+    float[][] dist = arena.takeNodeDists();  // class distributions (contingency table), indexed first by branch, then by class
+    float[] prop = arena.nodeProps; // the branch sizes (as fraction)
     float split = Float.NaN;  // split point
 
     // Investigate K random attributes
@@ -424,8 +497,63 @@ class FasterForest2Tree
     float bestNegPosterior = -Float.MAX_VALUE;
     int bestAttIdx = -1;
 
-    Random random = data.reusableRandomGenerator;
+    if ( useParallelSplit(sortedIndicesLength) ) {
+
+      // large node: choose the first k attributes up front (the same ones the loop below
+      // would choose), evaluate them in parallel, and then go through the results in the
+      // order of choosing exactly as the loop would
+      int numCandidates = Math.min(k, windowSize);
+      int[] candidates = new int[numCandidates];
+      for (int c = 0; c < numCandidates; c++) {
+        int chosenIndex = random.nextInt(windowSize);
+        attIndex = attIndicesWindow[chosenIndex];
+        windowSize--;
+        attIndicesWindow[chosenIndex] = attIndicesWindow[windowSize];
+        attIndicesWindow[windowSize] = attIndex;
+        candidates[c] = attIndex;
+      }
+      k -= numCandidates;
+
+      float[][] candidateProps = new float[numCandidates][2];
+      float[][][] candidateDists = new float[numCandidates][2][data.numClasses];
+      float[] candidateSplits = distributionParallelAtts(candidateProps, candidateDists,
+              candidates, sortedIndices, startAt, endAt, classProbs);
+
+      for (int c = 0; c < numCandidates; c++) {
+        float[][] d = candidateDists[c];
+        // same test as in distributionSequentialAtt()
+        float curScore = -SplitCriteria.giniConditionedOnRowsLR2(d[0][0], d[0][1], d[1][0], d[1][1]);
+        if ( Float.isNaN(candidateSplits[c]) || !(curScore > bestNegPosterior) ) {
+          continue;  // no split point or not better than a previous attribute
+        }
+        dist[0][0] = d[0][0];
+        dist[0][1] = d[0][1];
+        dist[1][0] = d[1][0];
+        dist[1][1] = d[1][1];
+        prop[0] = candidateProps[c][0];
+        prop[1] = candidateProps[c][1];
+        split = candidateSplits[c];
+        bestAttIdx = candidates[c];
+
+        if ( Float.isNaN(prior) ) {
+          prior = SplitCriteria.giniOverColumns(dist);
+        }
+
+        float negPosterior = - SplitCriteria.giniConditionedOnRows(dist);
+        if ( negPosterior > bestNegPosterior ) {
+          bestNegPosterior = negPosterior;
+        } else {
+          throw new IllegalArgumentException("Very strange!");
+        }
+
+        val = prior - (-negPosterior);
+        if ( val > 1e-2 ) {
+          sensibleSplitFound = true;
+        }
+      }
+    }
 
+    // the remaining attributes (all k of them in a small node) one by one
     while ((windowSize > 0) && (k-- > 0 || !sensibleSplitFound ) ) {
 
       int chosenIndex = random.nextInt(windowSize);
@@ -482,38 +610,37 @@ class FasterForest2Tree
 //      Benchmark.updateTime(System.nanoTime() - t);
 
       m_Successors = new FasterForest2Tree[2];  // dist.length now always == 2
-      for (int i = 0; i < 2; i++) {
-        FasterForest2Tree auxTree = new FasterForest2Tree(this);
-
-        // check if we're about to make an empty branch - this can happen with
-        // nominal attributes with more than two categories (as of ver. 0.98)
-        if (belowTheSplitStartsAt - startAt == 0) {
-          // in this case, modify the chosenAttDists[i] so that it contains
-          // the current, before-split class probabilities, properly normalized
-          // by the number of instances (as we won't be able to normalize
-          // after the split)
-          //for (int j = 0; j < dist[i].length; j++)
-          //  dist[i][j] = classProbs[j] / sortedIndicesLength;
-
+      m_Successors[0] = new FasterForest2Tree(this);
+      m_Successors[1] = new FasterForest2Tree(this);
+
+      // check if we're about to make an empty branch - this can happen with
+      // nominal attributes with more than two categories (as of ver. 0.98)
+      if (belowTheSplitStartsAt - startAt == 0) {
+        // in this case, modify the chosenAttDists[i] so that it contains
+        // the current, before-split class probabilities, properly normalized
+        // by the number of instances (as we won't be able to normalize
+        // after the split)
+        for (int i = 0; i < 2; i++) {
           dist[i][0] = classProbs[0] / sortedIndicesLength;
           dist[i][1] = classProbs[1] / sortedIndicesLength;
         }
+      }
 
-        if (i == 0) {   // before split
-          auxTree.buildTree(sortedIndices, startAt, belowTheSplitStartsAt - 1,
-                  dist[i], attIndicesWindow, depth + 1);
-        } else {  // after split
-          auxTree.buildTree(sortedIndices, belowTheSplitStartsAt, endAt,
-                  dist[i], attIndicesWindow, depth + 1);
-        }
-
-        dist[i] = null;
-        m_Successors[i] = auxTree;
+      if ( useSubtreeTasks(sortedIndicesLength) ) {
+        buildSubtreesInTasks(sortedIndices, startAt, belowTheSplitStartsAt, endAt,
+                dist, attIndicesWindow, depth, stack);
+      } else {
+        // right one first, so that the left one is built first
+        stack.push(m_Successors[1], belowTheSplitStartsAt, endAt, dist[1], depth + 1);
+        stack.push(m_Successors[0], startAt, belowTheSplitStartsAt - 1, dist[0], depth + 1);
       }
+      arena.releaseClassDist(classProbs);  // children have their own ones
+      dist = null;
       sortedIndices = null;
 
     } else { // ------ make leaf --------
 
+      arena.releaseNodeDists();
       m_Attribute = -1;
 
       // normalize by dividing with the number of instances (as of ver. 0.97)
@@ -526,6 +653,7 @@ class FasterForest2Tree
         classProbs[1] /= sortedIndicesLength;
       }
       m_ClassProbs = classProbs;
+      m_ClassProbsDouble = FastRfUtils.toDoubles2(classProbs);
     }
     this.data = null; // dereference all pointers so data can be GC'd after tree is built
   }
@@ -537,15 +665,19 @@ class FasterForest2Tree
    */
   public int numNodes() {
 
-    if (m_Attribute == -1) {
-      return 1;
-    } else {
-      int size = 1;
-      for (FasterForest2Tree successor : m_Successors) {
-        size += successor.numNodes();
+    int size = 0;
+    ArrayDeque<FasterForest2Tree> stack = new ArrayDeque<>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      FasterForest2Tree node = stack.pop();
+      size++;
+      if (node.m_Attribute != -1) {
+        for (FasterForest2Tree successor : node.m_Successors) {
+          stack.push(successor);
+        }
       }
-      return size;
     }
+    return size;
   }
 
 
@@ -573,8 +705,9 @@ class FasterForest2Tree
 
     int j;
     // 0.99: we have binary splits also for nominal data
-    int[] num = new int[2]; // how many instances go to each branch
-    // we might possibly want to recycle this array for the whole tree
+    int[] num = arena.branchSizes; // how many instances go to each branch
+    num[0] = 0;
+    num[1] = 0;
 
     int[] tempArr = tempIndices; // = new int[ endAt-startAt+1 ];
 
@@ -592,10 +725,16 @@ class FasterForest2Tree
       num[branch] += 1;
     } // end for instance by instance
 
+    if ( useParallelSplit(endAt - startAt + 1) ) {
+      partitionParallel(sortedIndices, startAt, endAt, num);
+      return startAt+num[0];
+    }
+
     for (int a : data.attInSortedIndices) { // xxxxxxxxxx attr by attr
 
       // the first index of the sortedIndices in the above branch, and the first index in the below
-      int startAbove = startAt, startBelow = 0; // always only 2 sub-branches, remember where second starts
+      // (the same range of tempArr as of sortedIndices, so that subtrees built in parallel don't interfere)
+      int startAbove = startAt, startBelow = startAt; // always only 2 sub-branches, remember where second starts
 
       int[] sortedIndicesA = sortedIndices[a];
 
@@ -615,7 +754,7 @@ class FasterForest2Tree
       }
 
       // now copy the tempArr into the sortedIndices, thus overwriting it
-      System.arraycopy( tempArr, 0, sortedIndicesA, startAt+num[0], num[1] );
+      System.arraycopy( tempArr, startAt, sortedIndicesA, startAt+num[0], num[1] );
 
 
 
@@ -624,6 +763,129 @@ class FasterForest2Tree
     return startAt+num[0]; // the first index of "below the split" instances
   }
 
+  /**
+   * Parallel version of the attribute-by-attribute loop of splitDataNew(), used
+   * for large nodes. Attributes are divided among as many ForkJoin tasks as there
+   * are threads in the pool, each task with its own temporary array.
+   *
+   * @param num number of instances going to each branch
+   */
+  private void partitionParallel(int[][] sortedIndices, int startAt, int endAt, int[] num) {
+
+    DataCache2 data = this.data;
+    int[] atts = data.attInSortedIndices;
+    int numTasks = Math.min(ForkJoinTask.getPool().getParallelism(), atts.length);
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(numTasks);
+
+    for (int t = 0; t < numTasks; t++) {
+      final int firstAtt = t;
+      tasks.add(ForkJoinTask.adapt(() -> {
+        int[] tempArr = new int[num[1]];
+        for (int i = firstAtt; i < atts.length; i += numTasks) {
+          int[] sortedIndicesA = sortedIndices[atts[i]];
+          int startAbove = startAt, startBelow = 0;
+          for (int j = startAt; j <= endAt; j++) {
+            int inst = sortedIndicesA[j];
+            if ( data.whatGoesWhere[ inst ] == 0 ) {
+              sortedIndicesA[startAbove] = inst;
+              startAbove++;
+            } else {
+              tempArr[startBelow] = inst;
+              startBelow++;
+            }
+          }
+          System.arraycopy( tempArr, 0, sortedIndicesA, startAt+num[0], num[1] );
+        }
+      }));
+    }
+    ForkJoinTask.invokeAll(tasks);
+  }
+
+  /**
+   * Should the subtrees of a node with the given number of instances be built by
+   * buildSubtreesInTasks()? Depends only on the size of the node (see
+   * FasterForest2.m_ForkSubtreesThreshold), so that the trees are the same
+   * regardless of the number of threads.
+   */
+  private boolean useSubtreeTasks(int numInstances) {
+    int threshold = m_MotherForest.m_ForkSubtreesThreshold;
+    return threshold > 0 && numInstances >= threshold;
+  }
+
+  /**
+   * Builds both subtrees of a large node: the right one in a ForkJoin task that
+   * can be taken over by an idle thread (e.g. one that has finished its trees
+   * while others are still being built), the left one in the current thread
+   * (it is pushed to the stack, the task is joined by buildTree() at the end).
+   *
+   * Both subtrees get their own random number generators, and the right one
+   * also its own arena and attribute window, so the result doesn't depend on the order
+   * in which (or threads by which) they are built. Outside of a ForkJoinPool,
+   * the subtrees are built one after another.
+   */
+  private void buildSubtreesInTasks(int[][] sortedIndices, int startAt, int belowTheSplitStartsAt, int endAt,
+                                    float[][] dist, int[] attIndicesWindow, int depth, SubtreeStack stack) {
+
+    FasterForest2Tree left = m_Successors[0];
+    FasterForest2Tree right = m_Successors[1];
+    left.random = new Random(random.nextLong());
+    right.random = new Random(random.nextLong());
+    right.arena = new TrainingArena(data.numClasses);
+    int[] rightAttIndicesWindow = attIndicesWindow.clone();
+    float[] rightClassProbs = dist[1];
+
+    Runnable buildRight = () -> right.buildTree(sortedIndices, belowTheSplitStartsAt, endAt,
+            rightClassProbs, rightAttIndicesWindow, depth + 1);
+
+    if ( ForkJoinTask.inForkJoinPool() ) {
+      stack.forked.add(ForkJoinTask.adapt(buildRight).fork());
+    } else {
+      stack.deferred.add(buildRight);
+    }
+    stack.push(left, startAt, belowTheSplitStartsAt - 1, dist[0], depth + 1);
+  }
+
+  /**
+   * Should split search and partitioning of a node with the given number of
+   * instances run in parallel ForkJoin tasks? Only if the node is large enough
+   * (see FasterForest2.m_ParallelSplitThreshold) and the tree is being trained
+   * in a ForkJoinPool with more threads, so that the tasks share the threads
+   * with training of other trees.
+   */
+  private boolean useParallelSplit(int numInstances) {
+    int threshold = m_MotherForest.m_ParallelSplitThreshold;
+    return threshold > 0 && numInstances >= threshold
+            && ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool().getParallelism() > 1;
+  }
+
+  /**
+   * Evaluates candidate attributes for a split of a large node in parallel
+   * ForkJoin tasks. Unlike in the sequential search, every attribute gets its
+   * own props and dists (regardless of which one is the best).
+   *
+   * @param props gets filled with props of each candidate (see distributionSequentialAtt())
+   * @param dists gets filled with dists of each candidate
+   * @param candidates attributes to examine
+   * @return split points of candidates, NaN where there's no split point
+   */
+  private float[] distributionParallelAtts(float[][] props, float[][][] dists, int[] candidates,
+                                           int[][] sortedIndices, int startAt, int endAt, float[] classProbs) {
+
+    float[] splits = new float[candidates.length];
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(candidates.length);
+
+    for (int c = 0; c < candidates.length; c++) {
+      final int cc = c;
+      tasks.add(ForkJoinTask.adapt(() -> {
+        splits[cc] = distributionSequentialAtt(props[cc], dists[cc],
+                -Float.MAX_VALUE, candidates[cc], sortedIndices[candidates[cc]], startAt, endAt, classProbs);
+      }));
+    }
+    ForkJoinTask.invokeAll(tasks);
+
+    return splits;
+  }
+
 
   /**
    * Computes class distribution for an attribute. New in FastRF 0.99, main
@@ -939,32 +1201,138 @@ class FasterForest2Tree
    * Dismantles this tree in the process.
    */
   public FasterTree toLightVersion() {
-    int attribute = m_Attribute;
-    if (attribute < 0) {
-      attribute = -1;
-    }
-    boolean isLeaf = (attribute == -1);
-
-    FasterTree leftChild = null;
-    FasterTree rightChild = null;
-    if (!isLeaf) {
-      leftChild = m_Successors[0].toLightVersion();
-      m_Successors[0] = null;  // to allow gc
-      rightChild = m_Successors[1].toLightVersion();
-      m_Successors[1] = null;     // to allow gc
-      m_Successors = null;     // to allow gc
+    return toLightVersion(true);
+  }
+
+  /**
+   * Same as toLightVersion(), but keeps this tree intact.
+   */
+  public FasterTree toLightCopy() {
+    return toLightVersion(false);
+  }
+
+  private FasterTree toLightVersion(boolean dismantle) {
+    // converted bottom-up without recursion: every node after its children,
+    // converted nodes wait for their parents on the results stack
+    ArrayDeque<FasterForest2Tree> stack = new ArrayDeque<>();
+    ArrayDeque<FasterTree> results = new ArrayDeque<>();
+    ArrayDeque<FasterForest2Tree> postOrder = new ArrayDeque<>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      FasterForest2Tree node = stack.pop();
+      postOrder.push(node);
+      if (node.m_Attribute >= 0) {
+        stack.push(node.m_Successors[0]);
+        stack.push(node.m_Successors[1]);
+      }
     }
 
-    double[] classProbs = (isLeaf) ? FastRfUtils.toDoubles2(m_ClassProbs) : null;
+    // popped from postOrder, nodes come in post-order (left subtree, right subtree, node)
+    while (!postOrder.isEmpty()) {
+      FasterForest2Tree node = postOrder.pop();
+      int attribute = node.m_Attribute;
+      if (attribute < 0) {
+        attribute = -1;
+      }
+      boolean isLeaf = (attribute == -1);
+
+      FasterTree leftChild = null;
+      FasterTree rightChild = null;
+      if (!isLeaf) {
+        rightChild = results.pop();
+        leftChild = results.pop();
+        if (dismantle) {
+          node.m_Successors = null;     // to allow gc
+        }
+      }
 
-    FasterTree res = new FasterTree(leftChild, rightChild, attribute, m_SplitPoint, classProbs);
+      double[] classProbs = (isLeaf) ? node.m_ClassProbsDouble : null;
 
-    return res;
+      results.push(new FasterTree(leftChild, rightChild, attribute, node.m_SplitPoint, classProbs));
+    }
+
+    return results.pop();
   }
 
 
   
 
   
-}
 
+  /**
+   * Nodes waiting to be built by buildTree(), kept in parallel arrays (growing
+   * as needed) to avoid allocating an object per node. LIFO, so with the right
+   * child pushed before the left one the nodes are built depth-first, left to
+   * right, as they were recursively.
+   */
+  static final class SubtreeStack {
+
+    int size = 0;
+
+    private FasterForest2Tree[] nodes = new FasterForest2Tree[16];
+    private int[] startAt = new int[16];
+    private int[] endAt = new int[16];
+    private int[] depth = new int[16];
+    private float[][] classProbs = new float[16][];
+
+    /** parameters of the node returned by the last pop() */
+    int poppedStartAt;
+    int poppedEndAt;
+    int poppedDepth;
+    float[] poppedClassProbs;
+
+    /** subtrees built in ForkJoin tasks (see buildSubtreesInTasks()), joined by joinForked() */
+    final List<ForkJoinTask<?>> forked = new ArrayList<>();
+
+    /** subtrees that would be built in ForkJoin tasks if running in a ForkJoinPool */
+    final List<Runnable> deferred = new ArrayList<>();
+
+    void push(FasterForest2Tree node, int startAt, int endAt, float[] classProbs, int depth) {
+      if (size == nodes.length) {
+        int newLength = 2 * size;
+        nodes = Arrays.copyOf(nodes, newLength);
+        this.startAt = Arrays.copyOf(this.startAt, newLength);
+        this.endAt = Arrays.copyOf(this.endAt, newLength);
+        this.depth = Arrays.copyOf(this.depth, newLength);
+        this.classProbs = Arrays.copyOf(this.classProbs, newLength);
+      }
+      nodes[size] = node;
+      this.startAt[size] = startAt;
+      this.endAt[size] = endAt;
+      this.depth[size] = depth;
+      this.classProbs[size] = classProbs;
+      size++;
+    }
+
+    /**
+     * @return the node on the top of the stack, its parameters are in popped* fields
+     */
+    FasterForest2Tree pop() {
+      size--;
+      FasterForest2Tree res = nodes[size];
+      poppedStartAt = startAt[size];
+      poppedEndAt = endAt[size];
+      poppedDepth = depth[size];
+      poppedClassProbs = classProbs[size];
+      nodes[size] = null;  // to allow gc
+      classProbs[size] = null;
+      return res;
+    }
+
+    /**
+     * Waits for the subtrees built in ForkJoin tasks, builds the deferred ones.
+     */
+    void joinForked() {
+      for (int i = forked.size() - 1; i >= 0; i--) {
+        forked.get(i).join();
+      }
+      forked.clear();
+      for (int i = 0; i < deferred.size(); i++) {
+        deferred.get(i).run();
+      }
+      deferred.clear();
+    }
+
+  }
+
+}
@@ -0,0 +1,79 @@
+package cz.siret.prank.fforest2;
+
+import java.util.ArrayDeque;
+
+/**
+ * Temporary arrays used while training a tree by FasterForest2Tree. The arena is
+ * kept by the bootstrap sample (DataCache2.arena) and so re-used by all trees a
+ * thread trains one after another (see DataCache2.resample()); nodes only take
+ * arrays from it and give them back, so training a tree allocates (almost) only
+ * the tree itself, i.e. its nodes and class distributions of its leaves.
+ *
+ * Used by one thread at a time; subtrees built in separate ForkJoin tasks get an
+ * arena of their own.
+ */
+class TrainingArena {
+
+  final int numClasses;
+
+  /** props of the best split of the node being built */
+  final float[] nodeProps = new float[2];
+
+  /** dists of the best split of the node being built, rows are class distributions taken by takeNodeDists() */
+  final float[][] nodeDists = new float[2][];
+
+  /** number of instances going to each branch, see FasterForest2Tree.splitDataNew() */
+  final int[] branchSizes = new int[2];
+
+  /** nodes waiting to be built */
+  final FasterForest2Tree.SubtreeStack stack = new FasterForest2Tree.SubtreeStack();
+
+  /** class distributions of nodes that are no longer needed (split nodes keep only the attribute and split point) */
+  private final ArrayDeque<float[]> classDistPool = new ArrayDeque<>();
+
+  /** see FasterForest2Tree.tempIndices; numInstances long, allocated by the first tree */
+  int[] tempIndices;
+
+
+  TrainingArena(int numClasses) {
+    this.numClasses = numClasses;
+  }
+
+  /**
+   * @return class distribution filled with zeros
+   */
+  float[] takeClassDist() {
+    float[] res = classDistPool.poll();
+    if (res == null) {
+      return new float[numClasses];
+    }
+    for (int c = 0; c < numClasses; c++) {
+      res[c] = 0;
+    }
+    return res;
+  }
+
+  void releaseClassDist(float[] dist) {
+    classDistPool.push(dist);
+  }
+
+  /**
+   * @return nodeDists with new zero class distributions in both rows
+   */
+  float[][] takeNodeDists() {
+    nodeDists[0] = takeClassDist();
+    nodeDists[1] = takeClassDist();
+    return nodeDists;
+  }
+
+  /**
+   * Gives back both rows of nodeDists, when the node didn't pass them to its children.
+   */
+  void releaseNodeDists() {
+    releaseClassDist(nodeDists[0]);
+    releaseClassDist(nodeDists[1]);
+    nodeDists[0] = null;
+    nodeDists[1] = null;
+  }
+
+}
@@ -25,6 +25,7 @@ import weka.classifiers.Classifier;
 import weka.core.Instances;
 import weka.core.Utils;
 
+import java.util.BitSet;
 import java.util.concurrent.Callable;
 
 /**
@@ -41,10 +42,10 @@ public class VotesCollector implements Callable<Double>{
   protected final Classifier[] m_Classifiers;
   protected final int instanceIdx;
   protected final Instances data;
-  protected final boolean[][] inBag;
+  protected final BitSet[] inBag;
 
   public VotesCollector(Classifier[] m_Classifiers, int instanceIdx,
-                        Instances data, boolean[][] inBag){
+                        Instances data, BitSet[] inBag){
     this.m_Classifiers = m_Classifiers;
     this.instanceIdx = instanceIdx;
     this.data = data;
@@ -66,7 +67,7 @@ public class VotesCollector implements Callable<Double>{
     int numVotes = 0;
     for(int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++){
 
-      if ( inBag[treeIdx][instanceIdx] )
+      if ( inBag[treeIdx].get(instanceIdx) )
         continue;
 
       numVotes++;
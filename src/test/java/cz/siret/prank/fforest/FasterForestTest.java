@@ -1,14 +1,52 @@
 package cz.siret.prank.fforest;
 
+import cz.siret.prank.fforest.api.CompiledBinaryForest;
 import cz.siret.prank.fforest.api.FlatBinaryForest;
+import cz.siret.prank.fforest.api.FlatBinaryForestBuilder;
+import cz.siret.prank.fforest.api.FlatBinaryForestFile;
+import cz.siret.prank.fforest.api.FlatBinaryForestBuilder.NodeLayout;
+import cz.siret.prank.fforest.api.FlatForest;
+import cz.siret.prank.fforest.api.FlatForestBuilder;
+import cz.siret.prank.fforest.api.ForestCompiler;
+import cz.siret.prank.fforest.api.MappedBinaryForest;
+import cz.siret.prank.fforest.api.PackedBinaryForest;
+import cz.siret.prank.fforest.api.ParallelBatchScorer;
+import cz.siret.prank.fforest.api.QuantizedBinaryForest;
+import cz.siret.prank.fforest.api.QuantizedBinaryForestBuilder;
+import cz.siret.prank.fforest.api.QuickScorerForest;
+import cz.siret.prank.fforest.api.QuickScorerForestBuilder;
 import cz.siret.prank.fforest2.FasterForest2;
 import org.junit.Before;
 import org.junit.Test;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.Capabilities;
+import weka.core.DenseInstance;
+import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.converters.ConverterUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 /**
  *
@@ -27,6 +65,46 @@ public class FasterForestTest {
         return data;
     }
 
+    /**
+     * @return copy of the object made by Java serialization
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T serializedCopy(T object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread while running r, or -1 if not supported by the JVM
+     */
+    private static long allocatedBytes(Runnable r) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean tbean = (com.sun.management.ThreadMXBean) bean;
+        if (!tbean.isThreadAllocatedMemorySupported() || !tbean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long tid = Thread.currentThread().getId();
+        long before = tbean.getThreadAllocatedBytes(tid);
+        r.run();
+        return tbean.getThreadAllocatedBytes(tid) - before;
+    }
+
+    private static double[][] toRows(Instances data) {
+        double[][] rows = new double[data.numInstances()][];
+        for (int i = 0; i != rows.length; ++i) {
+            rows[i] = data.instance(i).toDoubleArray();
+        }
+        return rows;
+    }
+
     @Before
     public void init() throws Exception {
         dataset1 = loadDataset(dataDir + "p2rank-train.arff.gz");
@@ -79,6 +157,192 @@ public class FasterForestTest {
         ff.toString();
     }
 
+    @Test
+    public void inBagBitSetFF() throws Exception {
+        DataCache data = new DataCache(dataset1, 1);
+        Random random = new Random(42);
+
+        DataCache bag = null;
+        for (int r = 0; r != 3; ++r) {
+            bag = data.resample(data.numInstances, random, bag);
+            BitSet bits = bag.inBagAsBitSet();
+
+            assertEquals(bag.numInBag, bits.cardinality());
+            for (int i = 0; i != data.numInstances; ++i) {
+                assertEquals(bag.inBag[i], bits.get(i));
+            }
+        }
+    }
+
+    private static double trainingAccuracy(Classifier classifier, Instances data) throws Exception {
+        int correct = 0;
+        for (Instance inst : data) {
+            if (classifier.classifyInstance(inst) == inst.classValue()) {
+                correct++;
+            }
+        }
+        return (double) correct / data.numInstances();
+    }
+
+    @Test
+    public void histogramBinsFF() throws Exception {
+        DataCache exact = new DataCache(dataset1, 1);
+
+        for (int maxBins : new int[] {16, 1000}) {
+            DataCache binned = new DataCache(dataset1, maxBins, 1);
+            assertTrue(binned.isBinned());
+            assertTrue(binned.vals == null);
+            assertEquals(maxBins <= 256, binned.binCodesByte != null);
+
+            for (int a = 0; a != dataset1.numAttributes(); ++a) {
+                if (a == dataset1.classIndex()) continue;
+
+                double[] cuts = binned.binCuts[a];
+                assertTrue(binned.numBins(a) <= maxBins);
+                for (int i = 0; i != dataset1.numInstances(); ++i) {
+                    int bin = binned.binCode(a, i);
+                    float value = exact.vals[a][i];
+                    assertTrue(bin == 0 || value > cuts[bin - 1]);
+                    assertTrue(bin == cuts.length || value < cuts[bin]);
+                    for (double cut : cuts) {
+                        assertEquals(value < cut, binned.isBinnedValueBelow(a, i, cut));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void trainHistogramFF() throws Exception {
+        FasterForest exact = setupFF();
+        exact.buildClassifier(dataset1);
+        double exactAccuracy = trainingAccuracy(exact, dataset1);
+
+        for (int numFeatures : new int[] {5, dataset1.numAttributes() - 1}) {  // all features: uses histogram subtraction
+            FasterForest ff = setupFF();
+            ff.setHistogramBins(256);
+            ff.setNumFeatures(numFeatures);
+            ff.buildClassifier(dataset1);
+
+            assertEquals(exactAccuracy, trainingAccuracy(ff, dataset1), 0.03);
+
+            FlatBinaryForest fbf = ff.toFlatBinaryForest();
+            assertEquals(ff.getNumTrees(), fbf.getNumTrees());
+            assertEquals(trainingAccuracy(ff, dataset1), trainingAccuracy(fbf, dataset1), 0.01);
+        }
+    }
+
+    @Test
+    public void histogramOutOfBagFF() throws Exception {
+        FasterForest exact = setupFF();
+        exact.setBagSizePercent(100);
+        exact.setCalcOutOfBag(true);
+        exact.buildClassifier(dataset1);
+
+        FasterForest ff = setupFF();
+        ff.setBagSizePercent(100);
+        ff.setCalcOutOfBag(true);
+        ff.setComputeImportances(true);
+        ff.setHistogramBins(64);
+        ff.buildClassifier(dataset1);
+
+        // OOB error computed from bin codes only
+        assertEquals(exact.measureOutOfBagError(), ff.measureOutOfBagError(), 0.03);
+        assertEquals(dataset1.numAttributes(), ff.getFeatureImportances().length);
+    }
+
+    @Test
+    public void incrementalOutOfBagFF() throws Exception {
+        FasterForest separate = setupFF();
+        separate.setBagSizePercent(100);
+        separate.setCalcOutOfBag(true);
+        separate.buildClassifier(dataset1);
+
+        FasterForest ff = setupFF();
+        ff.setBagSizePercent(100);
+        ff.setCalcOutOfBag(true);
+        ff.setIncrementalOutOfBag(true);
+        ff.buildClassifier(dataset1);
+
+        // same votes, only summed in different order: a near-tie may break differently for at most one instance
+        double maxWeight = 0;
+        for (int i = 0; i != dataset1.numInstances(); ++i) {
+            maxWeight = Math.max(maxWeight, dataset1.instance(i).weight());
+        }
+        assertEquals(separate.measureOutOfBagError(), ff.measureOutOfBagError(), maxWeight / dataset1.sumOfWeights());
+
+        // importances don't depend on the order in which trees finished
+        separate.setComputeImportances(true);
+        separate.buildClassifier(dataset1);
+        ff.setComputeImportances(true);
+        ff.buildClassifier(dataset1);
+        assertArrayEquals(separate.getFeatureImportances(), ff.getFeatureImportances(), 0d);
+    }
+
+    /**
+     * In-bag sets of the trees of a forest trained with FastRfBagging, drawn again from its seeds.
+     */
+    private static BitSet[] inBagOf(FasterForest ff, DataCache data) {
+        Random random = new Random(ff.getSeed());
+        BitSet[] res = new BitSet[ff.getNumTrees()];
+        int[] seeds = new int[res.length];
+        for (int t = 0; t != res.length; ++t) {
+            seeds[t] = random.nextInt();
+        }
+        int bagSize = data.numInstances * ff.getBagSizePercent() / 100;
+        for (int t = 0; t != res.length; ++t) {
+            res[t] = data.resample(bagSize, new Random(seeds[t]), null).inBagAsBitSet();
+        }
+        return res;
+    }
+
+    @Test
+    public void permutationImportancesFF() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (int bins : new int[] {0, 64}) {
+                FasterForest ff = setupFF();
+                ff.setBagSizePercent(100);
+                ff.setMaxDepth(0);
+                ff.setHistogramBins(bins);
+                ff.buildClassifier(dataset1);
+
+                DataCache data = new DataCache(dataset1, bins, 1);
+                FasterTree[] trees = ff.m_bagger.getClassifiersAsTrees().toArray(new FasterTree[0]);
+                BitSet[] inBag = inBagOf(ff, data);
+
+                PermutationImportances importances = new PermutationImportances(trees.length, data);
+                importances.setTrees(trees, inBag, pool);
+
+                OutOfBagVotes votes = new OutOfBagVotes(data.numInstances, data.numClasses);
+                votes.addTrees(trees, inBag, data, pool);
+                assertEquals(votes.error(data), importances.error(), 0d);
+
+                // same as a full OOB pass over the scrambled data
+                int[] attributes = new int[dataset1.numAttributes() - 1];
+                double[] expected = new double[attributes.length];
+                Random random = new Random(42);
+                for (int j = 0, k = 0; j != dataset1.numAttributes(); ++j) {
+                    if (j == dataset1.classIndex()) continue;
+
+                    Object unscrambled = data.scrambleAttribute(j, random);
+                    OutOfBagVotes scrambled = new OutOfBagVotes(data.numInstances, data.numClasses);
+                    scrambled.addTrees(trees, inBag, data, pool);
+                    assertEquals(scrambled.error(data), importances.error(j, pool), 0d);
+                    data.restoreAttribute(j, unscrambled);
+
+                    attributes[k] = j;
+                    expected[k++] = scrambled.error(data);
+                }
+
+                // attributes read through permutations, the same ones as made by scrambleAttribute()
+                assertArrayEquals(expected, importances.errors(attributes, new Random(42), pool), 1e-12);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     @Test
     public void flattenFF() throws Exception {
         FasterForest ff = setupFF();
@@ -91,6 +355,353 @@ public class FasterForestTest {
         assertEquals(ff.getNumTrees(), fbf.getNumTrees());
     }
 
+    @Test
+    public void flatClassifierFF() throws Exception {
+        FasterForest ff = setupFF();
+
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+
+        assertTrue(fbf.getCapabilities().handles(Capabilities.Capability.BINARY_CLASS));
+
+        for (Instance inst : dataset1) {
+            double p = fbf.predict(inst.toDoubleArray());
+            double[] dist = fbf.distributionForInstance(inst);
+            assertEquals(p, fbf.predict(inst), 0d);
+            assertEquals(2, dist.length);
+            assertEquals(p, dist[1], 0d);
+            assertEquals(p > 0.5 ? 1d : 0d, fbf.classifyInstance(inst), 0d);
+        }
+    }
+
+    @Test
+    public void predictBatchFF() throws Exception {
+        FasterForest ff = setupFF();
+
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+
+        double[][] rows = toRows(dataset1);
+        double[] out = new double[rows.length];
+        fbf.predictBatch(rows, out);
+
+        for (int i = 0; i != rows.length; ++i) {
+            assertEquals(fbf.predict(rows[i]), out[i], 0d);
+        }
+    }
+
+    @Test
+    public void predictAboveFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.setNumTrees(50);
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+        double[][] rows = toRows(dataset1);
+        int[] treesEvaluated = new int[1];
+
+        for (double threshold : new double[] {0, 0.2, 0.5, 0.8, 1}) {
+            long totalTrees = 0;
+            for (double[] row : rows) {
+                assertEquals(fbf.predict(row) > threshold, fbf.predictAbove(row, threshold, treesEvaluated));
+                totalTrees += treesEvaluated[0];
+            }
+            assertTrue(totalTrees < (long) rows.length * fbf.getNumTrees());
+        }
+    }
+
+    @Test
+    public void parallelBatchScorerFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+        double[][] rows = toRows(dataset1);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelBatchScorer scorer = new ParallelBatchScorer(fbf, pool);
+            for (ParallelBatchScorer.Mode mode : ParallelBatchScorer.Mode.values()) {
+                scorer.setMode(mode);
+                double[] out = scorer.predictBatch(rows);
+
+                assertTrue(scorer.getLastRowsPerSecond() > 0);
+                for (int i = 0; i != rows.length; ++i) {
+                    assertEquals(fbf.predict(rows[i]), out[i], 1e-12);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void mappedFileFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+        File file = File.createTempFile("flat-forest", ".bin");
+        try {
+            FlatBinaryForestFile.write(fbf, file);
+            checkMappedFile(fbf, file);
+        } finally {
+            deleteMappedFile(file);
+        }
+    }
+
+    private void checkMappedFile(FlatBinaryForest fbf, File file) throws Exception {
+        MappedBinaryForest mapped = FlatBinaryForestFile.map(file);
+        FlatBinaryForest read = FlatBinaryForestFile.read(file);
+
+        assertEquals(fbf.getNumTrees(), mapped.getNumTrees());
+        assertEquals(fbf.getMaxDepth(), mapped.getMaxDepth());
+        for (double[] row : toRows(dataset1)) {
+            assertEquals(fbf.predict(row), mapped.predict(row), 0d);
+            assertEquals(fbf.predict(row), read.predict(row), 0d);
+        }
+    }
+
+    @Test
+    public void corruptedMappedFileFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+        File file = File.createTempFile("flat-forest", ".bin");
+        try {
+            FlatBinaryForestFile.write(fbf, file);
+            // point the left child of node 0 out of the node arrays (header, treeRoots, childLeft...)
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(6 * 4 + fbf.getNumTrees() * 4L);
+                raf.writeInt(Integer.reverseBytes(Integer.MAX_VALUE));  // file is little-endian
+            }
+            try {
+                FlatBinaryForestFile.map(file);
+                fail("corrupted file was mapped");
+            } catch (IOException expected) {
+                // ok
+            }
+        } finally {
+            deleteMappedFile(file);
+        }
+    }
+
+    /**
+     * Mapping is released only when its buffer is garbage collected, and some platforms refuse to delete mapped files.
+     * Callers must not hold a reference to the mapped forest anymore.
+     */
+    private static void deleteMappedFile(File file) {
+        System.gc();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void compiledFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.setMaxDepth(0);
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+
+        ForestCompiler compiler = new ForestCompiler();
+        compiler.setMaxNodesPerMethod(16);  // force splitting to many methods and classes
+        compiler.setMaxNodesPerClass(200);
+        CompiledBinaryForest compiled = compiler.compile(fbf);
+
+        assertEquals(fbf.getMaxDepth(), compiled.getMaxDepth());
+        for (double[] row : toRows(dataset1)) {
+            assertEquals(fbf.predict(row), compiled.predict(row), 0d);
+        }
+    }
+
+    @Test
+    public void quantizedFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.setMaxDepth(0);
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest fbf = ff.toFlatBinaryForest();
+        double[][] rows = toRows(dataset1);
+
+        for (int leafBits : new int[] {8, 16}) {
+            QuantizedBinaryForestBuilder builder = new QuantizedBinaryForestBuilder();
+            builder.setLeafBits(leafBits);
+            QuantizedBinaryForest qf = builder.buildFromFlatBinaryForest(fbf);
+
+            assertEquals(fbf.getMaxDepth(), qf.getMaxDepth());
+            assertTrue(qf.getMaxLeafError() <= (leafBits == 8 ? 1d / 510 : 1d / 131070) + 1e-12);
+            assertTrue(qf.getDataSizeBytes() * 3 < fbf.getDataSizeBytes() * 2);  // at least 1.5x smaller
+
+            double[] error = QuantizedBinaryForestBuilder.measureError(fbf, qf, rows);
+            assertTrue(error[0] <= qf.getMaxLeafError() + 1e-12);
+
+            QuantizedBinaryForest copy = serializedCopy(qf);
+            assertEquals(qf.getMaxDepth(), copy.getMaxDepth());
+            for (double[] row : rows) {
+                assertEquals(qf.predict(row), copy.predict(row), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void flatLayoutsFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.setMaxDepth(0);
+
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest reference = ff.toFlatBinaryForest();
+        double[][] rows = toRows(dataset1);
+
+        for (NodeLayout layout : NodeLayout.values()) {
+            FlatBinaryForestBuilder builder = new FlatBinaryForestBuilder();
+            builder.setLayout(layout);
+            FlatBinaryForest fbf = builder.buildFromFasterTrees(ff.m_bagger.getClassifiersAsTrees());
+
+            assertEquals(reference.getMaxDepth(), fbf.getMaxDepth());
+            for (double[] row : rows) {
+                assertEquals(reference.predict(row), fbf.predict(row), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void packedFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.setMaxDepth(0);
+
+        ff.buildClassifier(dataset1);
+
+        FlatBinaryForest reference = ff.toFlatBinaryForest();
+        PackedBinaryForest packed = ff.toPackedBinaryForest();
+        double[][] rows = toRows(dataset1);
+
+        assertEquals(reference.getNumTrees(), packed.getNumTrees());
+        assertEquals(reference.getMaxDepth(), packed.getMaxDepth());
+
+        double[] batch = new double[rows.length];
+        packed.predictBatch(rows, batch);
+        for (int i = 0; i != rows.length; ++i) {
+            assertEquals(reference.predict(rows[i]), packed.predict(rows[i]), 1e-6);
+            assertEquals(packed.predict(rows[i]), batch[i], 1e-12);
+        }
+
+        PackedBinaryForest copy = serializedCopy(packed);
+        assertEquals(packed.getNumTrees(), copy.getNumTrees());
+        assertEquals(packed.getMaxDepth(), copy.getMaxDepth());
+        for (double[] row : rows) {
+            assertEquals(packed.predict(row), copy.predict(row), 0d);
+        }
+    }
+
+    @Test
+    public void quickScorerFF() throws Exception {
+        double[][] rows = toRows(dataset1);
+
+        // depth 6: all trees have at most 64 leaves, depth 0: all trees use the fallback
+        for (int maxDepth : new int[] {6, 0}) {
+            FasterForest ff = setupFF();
+            ff.setMaxDepth(maxDepth);
+            ff.buildClassifier(dataset1);
+
+            FlatBinaryForest reference = ff.toFlatBinaryForest();
+            QuickScorerForest qs = new QuickScorerForestBuilder().buildFromFlatBinaryForest(reference);
+
+            assertEquals(maxDepth == 0 ? ff.getNumTrees() : 0, qs.getNumFallbackTrees());
+
+            double[] batch = new double[rows.length];
+            qs.predictBatch(rows, batch);
+            QuickScorerForest copy = serializedCopy(qs);
+            for (int i = 0; i != rows.length; ++i) {
+                assertEquals(reference.predict(rows[i]), qs.predict(rows[i]), 1e-12);
+                assertEquals(reference.predict(rows[i]), batch[i], 1e-12);
+                assertEquals(qs.predict(rows[i]), copy.predict(rows[i]), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void flatForestFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.buildClassifier(dataset1);
+
+        assertFlatForestEquals(ff.toFlatForest(), ff, dataset1);
+    }
+
+    @Test
+    public void flatForestMulticlassFF() throws Exception {
+        Instances data = toThreeClasses(dataset1);
+        FasterForest ff = setupFF();
+        ff.buildClassifier(data);
+
+        FlatForest flat = ff.toFlatForest();
+
+        assertEquals(3, flat.getNumClasses());
+        assertEquals(ff.getNumTrees(), flat.getNumTrees());
+        assertFlatForestEquals(flat, ff, data);
+
+        FlatForest copy = serializedCopy(flat);
+        assertEquals(flat.getNumClasses(), copy.getNumClasses());
+        assertEquals(flat.getMaxDepth(), copy.getMaxDepth());
+        assertFlatForestEquals(copy, ff, data);
+    }
+
+    private static void assertFlatForestEquals(FlatForest flat, FasterForest ff, Instances data) {
+        int numClasses = data.numClasses();
+        for (double[] row : toRows(data)) {
+            double[] expected = ff.distributionForAttributes(row, numClasses);
+            double[] actual = flat.distributionForAttributes(row);
+            for (int c = 0; c != numClasses; ++c) {
+                assertEquals(expected[c], actual[c], 1e-6);
+            }
+        }
+    }
+
+    /**
+     * Splits the positive class of the dataset to two classes by the value of the first attribute.
+     */
+    private static Instances toThreeClasses(Instances data) {
+        ArrayList<Attribute> atts = new ArrayList<>();
+        for (int a = 0; a != data.numAttributes() - 1; ++a) {
+            atts.add(new Attribute(data.attribute(a).name()));
+        }
+        atts.add(new Attribute("class", Arrays.asList("0", "1", "2")));
+
+        double pivot = data.instance(data.numInstances() / 2).value(0);
+
+        Instances res = new Instances(data.relationName(), atts, data.numInstances());
+        res.setClassIndex(atts.size() - 1);
+        for (Instance inst : data) {
+            double[] vals = inst.toDoubleArray();
+            int classIdx = vals.length - 1;
+            if (vals[classIdx] == 1 && vals[0] > pivot) {
+                vals[classIdx] = 2;
+            }
+            res.add(new DenseInstance(1d, vals));
+        }
+        return res;
+    }
+
+    @Test
+    public void flatForestFF2() throws Exception {
+        FasterForest2 ff = setupFF2();
+        ff.buildClassifier(dataset1);
+
+        FlatForest flat = ff.toFlatForest();
+
+        for (double[] row : toRows(dataset1)) {
+            double[] expected = ff.distributionForAttributes(row, 2);
+            double[] actual = flat.distributionForAttributes(row);
+            assertEquals(expected[0], actual[0], 1e-6);
+            assertEquals(expected[1], actual[1], 1e-6);
+        }
+    }
+
     @Test
     public void flattenFF2() throws Exception {
         FasterForest2 ff = setupFF2();
@@ -103,6 +714,108 @@ public class FasterForestTest {
         assertEquals(ff.getNumTrees(), fbf.getNumTrees());
     }
 
+    @Test
+    public void distributionsForInstancesFF() throws Exception {
+        FasterForest ff = setupFF();
+        ff.setNumThreads(3);
+
+        ff.buildClassifier(dataset1);
+
+        assertTrue(ff.implementsMoreEfficientBatchPrediction());
+        double[][] dists = ff.distributionsForInstances(dataset1);
+        assertEquals(dataset1.numInstances(), dists.length);
+        for (int i = 0; i != dists.length; ++i) {
+            assertArrayEquals(ff.distributionForInstance(dataset1.instance(i)), dists[i], 0d);
+        }
+    }
+
+    @Test
+    public void distributionForAttributesNoAllocFF() throws Exception {
+        FasterForest ff = setupFF();
+
+        ff.buildClassifier(dataset1);
+
+        double[][] rows = toRows(dataset1);
+        double[] out = new double[dataset1.numClasses()];
+        for (double[] row : rows) {
+            ff.distributionForAttributes(row, out);
+            assertArrayEquals(ff.distributionForAttributes(row, out.length), out, 0d);
+        }
+
+        Runnable predictAll = () -> {
+            for (int r = 0; r != 10; ++r) {
+                for (double[] row : rows) {
+                    ff.distributionForAttributes(row, out);
+                }
+            }
+        };
+        predictAll.run();  // warm-up, JIT compilation allocates on the measured thread
+        long bytes = allocatedBytes(predictAll);
+        assumeTrue("allocation can't be measured on this JVM", bytes >= 0);
+        assertTrue("allocated " + bytes + " bytes", bytes < 1024);
+    }
+
+    @Test
+    public void parallelSplitFF() throws Exception {
+        FasterForest sequential = setupFF();
+        sequential.setNumThreads(4);
+        sequential.setMaxDepth(0);
+        sequential.setParallelSplitThreshold(0);
+        sequential.buildClassifier(dataset1);
+
+        FasterForest parallel = setupFF();
+        parallel.setNumThreads(4);
+        parallel.setMaxDepth(0);
+        parallel.setParallelSplitThreshold(20);
+        parallel.buildClassifier(dataset1);
+
+        for (Instance inst : dataset1) {
+            assertArrayEquals(sequential.distributionForInstance(inst), parallel.distributionForInstance(inst), 0d);
+        }
+    }
+
+    @Test
+    public void deepTreeFlattening() {
+        // chain of split nodes, too deep for recursive traversal with the usual stack sizes
+        int depth = 500000;
+        double[] leafProbs = {0.25, 0.75};
+        FasterTree tree = new FasterTree(null, null, -1, Double.NaN, leafProbs);
+        for (int i = depth - 1; i >= 0; i--) {
+            tree = new FasterTree(new FasterTree(null, null, -1, Double.NaN, leafProbs), tree, 0, i + 0.5, null);
+        }
+
+        assertEquals(2 * depth + 1, tree.numNodes());
+        FasterTree slim = tree.toSlimVersion();
+        assertEquals(2 * depth + 1, slim.numNodes());
+
+        FlatBinaryForest flat = new FlatBinaryForestBuilder().buildFromFasterTrees(Collections.singletonList(slim));
+        assertEquals(depth, flat.getMaxDepth());
+        assertEquals(0.75, flat.predict(new double[] {depth - 0.2}), 0d);
+
+        FlatForest flatForest = new FlatForestBuilder().buildFromFasterTrees(Collections.singletonList(slim), 2);
+        assertEquals(depth, flatForest.getMaxDepth());
+    }
+
+    @Test
+    public void forkSubtreesFF() throws Exception {
+        FasterForest singleThread = setupFF();
+        singleThread.setNumThreads(1);
+        singleThread.setMaxDepth(0);
+        singleThread.setForkSubtreesThreshold(200);
+        singleThread.buildClassifier(dataset1);
+
+        FasterForest multiThread = setupFF();
+        multiThread.setNumThreads(4);
+        multiThread.setMaxDepth(0);
+        multiThread.setForkSubtreesThreshold(200);
+        multiThread.setParallelSplitThreshold(500);
+        multiThread.buildClassifier(dataset1);
+
+        for (Instance inst : dataset1) {
+            assertArrayEquals(singleThread.distributionForInstance(inst), multiThread.distributionForInstance(inst), 0d);
+        }
+    }
+
 //===============================================================================================//
 
     private FasterForest2 setupFF2() {
@@ -153,6 +866,86 @@ public class FasterForestTest {
         ff.toString();
     }
 
+    @Test
+    public void distributionsForInstancesFF2() throws Exception {
+        FasterForest2 ff = setupFF2();
+        ff.setNumThreads(3);
+
+        ff.buildClassifier(dataset1);
+
+        assertTrue(ff.implementsMoreEfficientBatchPrediction());
+        double[][] dists = ff.distributionsForInstances(dataset1);
+        assertEquals(dataset1.numInstances(), dists.length);
+        for (int i = 0; i != dists.length; ++i) {
+            assertArrayEquals(ff.distributionForInstance(dataset1.instance(i)), dists[i], 0d);
+        }
+    }
+
+    @Test
+    public void distributionForAttributesNoAllocFF2() throws Exception {
+        FasterForest2 ff = setupFF2();
+
+        ff.buildClassifier(dataset1);
+
+        double[][] rows = toRows(dataset1);
+        double[] out = new double[dataset1.numClasses()];
+        for (double[] row : rows) {
+            ff.distributionForAttributes(row, out);
+            assertArrayEquals(ff.distributionForAttributes(row, out.length), out, 0d);
+        }
+
+        Runnable predictAll = () -> {
+            for (int r = 0; r != 10; ++r) {
+                for (double[] row : rows) {
+                    ff.distributionForAttributes(row, out);
+                }
+            }
+        };
+        predictAll.run();  // warm-up, JIT compilation allocates on the measured thread
+        long bytes = allocatedBytes(predictAll);
+        assumeTrue("allocation can't be measured on this JVM", bytes >= 0);
+        assertTrue("allocated " + bytes + " bytes", bytes < 1024);
+    }
+
+    @Test
+    public void parallelSplitFF2() throws Exception {
+        FasterForest2 sequential = setupFF2();
+        sequential.setNumThreads(4);
+        sequential.setMaxDepth(0);
+        sequential.setParallelSplitThreshold(0);
+        sequential.buildClassifier(dataset1);
+
+        FasterForest2 parallel = setupFF2();
+        parallel.setNumThreads(4);
+        parallel.setMaxDepth(0);
+        parallel.setParallelSplitThreshold(20);
+        parallel.buildClassifier(dataset1);
+
+        for (Instance inst : dataset1) {
+            assertArrayEquals(sequential.distributionForInstance(inst), parallel.distributionForInstance(inst), 0d);
+        }
+    }
+
+    @Test
+    public void forkSubtreesFF2() throws Exception {
+        FasterForest2 singleThread = setupFF2();
+        singleThread.setNumThreads(1);
+        singleThread.setMaxDepth(0);
+        singleThread.setForkSubtreesThreshold(200);
+        singleThread.buildClassifier(dataset1);
+
+        FasterForest2 multiThread = setupFF2();
+        multiThread.setNumThreads(4);
+        multiThread.setMaxDepth(0);
+        multiThread.setForkSubtreesThreshold(200);
+        multiThread.setParallelSplitThreshold(500);
+        multiThread.buildClassifier(dataset1);
+
+        for (Instance inst : dataset1) {
+            assertArrayEquals(singleThread.distributionForInstance(inst), multiThread.distributionForInstance(inst), 0d);
+        }
+    }
+
 // TODO fix failing test featureImportancesNewFF2
 
 //    @Test